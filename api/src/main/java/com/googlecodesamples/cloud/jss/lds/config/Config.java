@@ -15,17 +15,38 @@
  */
 package com.googlecodesamples.cloud.jss.lds.config;
 
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
 import com.google.cloud.opentelemetry.trace.TraceExporter;
+import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
 import io.opentelemetry.sdk.OpenTelemetrySdk;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
 import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Configuration
+@EnableScheduling
 public class Config {
+	static final String VIRTUAL_THREADS = "spring.threads.virtual.enabled";
+
 	/**
 	 * Create a distributed tracing system based on the OpenTelemetry
 	 * and uses the Google Cloud Trace Exporter
@@ -40,4 +61,115 @@ public class Config {
 				.setTracerProvider(tracerProvider)
 				.build();
 	}
+
+	/**
+	 * Create the executor that processes the files of an upload request concurrently.
+	 * A bounded pool is used, and the submitting request thread runs the task itself when
+	 * the queue is full. With virtual threads every file gets its own thread, but no more
+	 * files than the pool could hold, running and queued, are processed at once; further
+	 * submissions wait for one to finish on a semaphore, which parks a virtual thread
+	 * without pinning its carrier.
+	 */
+	@Bean
+	public Executor uploadExecutor(
+			@Value("${" + VIRTUAL_THREADS + "}") boolean virtualThreads,
+			@Value("${upload.executor.pool.size}") int poolSize,
+			@Value("${upload.executor.queue.capacity}") int queueCapacity) {
+		if (virtualThreads) {
+			return boundedExecutor(virtualThreadExecutor("upload-"), poolSize + queueCapacity);
+		}
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(poolSize);
+		executor.setMaxPoolSize(poolSize);
+		executor.setQueueCapacity(queueCapacity);
+		executor.setThreadNamePrefix("upload-");
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		return executor;
+	}
+
+	/**
+	 * Run every servlet request on its own virtual thread instead of the Tomcat worker pool,
+	 * so requests blocked on Firestore or Cloud Storage do not hold a platform thread.
+	 */
+	@Bean
+	@ConditionalOnProperty(value = VIRTUAL_THREADS, havingValue = "true")
+	public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandler() {
+		Executor executor = virtualThreadExecutor("http-");
+		return protocolHandler -> protocolHandler.setExecutor(executor);
+	}
+
+	/**
+	 * Write streaming responses on virtual threads instead of the default
+	 * application task executor, whose small pool would cap concurrent downloads.
+	 */
+	@Bean
+	@ConditionalOnProperty(value = VIRTUAL_THREADS, havingValue = "true")
+	public WebMvcConfigurer virtualThreadAsyncSupport() {
+		SimpleAsyncTaskExecutor executor = virtualThreadExecutor("mvc-async-");
+		return new WebMvcConfigurer() {
+			@Override
+			public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+				configurer.setTaskExecutor(executor);
+			}
+		};
+	}
+
+	/**
+	 * Serialize all fields of files by default. Responses that select fields
+	 * replace the filter of files with their own.
+	 */
+	@Bean
+	public Jackson2ObjectMapperBuilderCustomizer fileFieldFilter() {
+		return builder -> builder.filters(new SimpleFilterProvider()
+				.addFilter(BaseFile.FIELD_FILTER, SimpleBeanPropertyFilter.serializeAll()));
+	}
+
+	/**
+	 * Limit the number of tasks of an executor that run at once. Submitting a task blocks
+	 * until a permit is free. The permits are a semaphore rather than the monitor-based
+	 * throttle of SimpleAsyncTaskExecutor, which would pin a waiting virtual thread.
+	 */
+	static Executor boundedExecutor(Executor executor, int limit) {
+		Semaphore permits = new Semaphore(limit);
+		return task -> {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("interrupted while waiting for a permit", e);
+			}
+			try {
+				executor.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						permits.release();
+					}
+				});
+			} catch (RuntimeException e) {
+				permits.release();
+				throw e;
+			}
+		};
+	}
+
+	/**
+	 * Create an unbounded executor that starts a new virtual thread for every task.
+	 * Java 17 is the baseline, as Spring Framework 6.0 cannot scan newer class files, so
+	 * the Java 21 thread builder is looked up at runtime and virtual threads are only
+	 * available when the application runs on Java 21 or later.
+	 */
+	static SimpleAsyncTaskExecutor virtualThreadExecutor(String threadNamePrefix) {
+		ThreadFactory factory;
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, threadNamePrefix, 1L);
+			factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(VIRTUAL_THREADS + " requires Java 21 or later", e);
+		}
+		return new SimpleAsyncTaskExecutor(factory);
+	}
 }
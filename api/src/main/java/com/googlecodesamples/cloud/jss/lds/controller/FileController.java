@@ -16,23 +16,50 @@
 
 package com.googlecodesamples.cloud.jss.lds.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import com.google.cloud.storage.Blob;
 import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
+import com.googlecodesamples.cloud.jss.lds.model.FileDeleteResponse;
 import com.googlecodesamples.cloud.jss.lds.model.FileListResponse;
 import com.googlecodesamples.cloud.jss.lds.model.FileResponse;
+import com.googlecodesamples.cloud.jss.lds.model.UploadResponse;
+import com.googlecodesamples.cloud.jss.lds.model.UploadSession;
 import com.googlecodesamples.cloud.jss.lds.service.FileService;
 import com.googlecodesamples.cloud.jss.lds.service.OpenTelemetryService;
+import com.googlecodesamples.cloud.jss.lds.util.LdsUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.MappingJacksonValue;
 import org.springframework.util.CollectionUtils;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /** REST API controller of the backend service */
@@ -41,12 +68,22 @@ import java.util.stream.Collectors;
 public class FileController {
   private static final Logger log = LoggerFactory.getLogger(FileController.class);
   private static final String STRING_SEPARATOR = "\\s+";
+  private static final String FIELD_SEPARATOR = ",";
+  private static final String MATCH_ANY = "any";
+  private static final String MATCH_ALL = "all";
+  private static final int NEWLINE = '\n';
+  private static final String BYTES_UNIT = "bytes";
+  private static final String RESET_STATUS_PATH = "/api/reset/status";
+  private static final String MULTIPART_BYTERANGES = "multipart/byteranges; boundary=";
   private final FileService fileService;
   private final OpenTelemetryService openTelemetryService;
+  private final ObjectMapper objectMapper;
 
-  public FileController(FileService fileService, OpenTelemetryService openTelemetryService) {
+  public FileController(FileService fileService, OpenTelemetryService openTelemetryService,
+      ObjectMapper objectMapper) {
     this.fileService = fileService;
     this.openTelemetryService = openTelemetryService;
+    this.objectMapper = objectMapper;
   }
 
   /**
@@ -67,7 +104,7 @@ public class FileController {
    *
    * @param files list of files upload to the server
    * @param tags list of tags (separated by space) label the files
-   * @return list of uploaded files
+   * @return list of uploaded files, and the files that failed if any
    */
   @PostMapping("/files")
   public ResponseEntity<?> uploadFiles(
@@ -75,32 +112,502 @@ public class FileController {
     return openTelemetryService.spanScope(this.getClass().getName(), "uploadFiles", () -> {
       log.info("entering uploadFiles()");
       List<String> tagList = getTagList(tags);
-      List<BaseFile> fileList = fileService.uploadFiles(files, tagList);
-      return ResponseEntity.status(HttpStatus.CREATED).body(new FileListResponse(fileList));
+      FileListResponse response = fileService.uploadFiles(files, tagList);
+      if (!CollectionUtils.isEmpty(response.getErrors())) {
+        return ResponseEntity.status(HttpStatus.MULTI_STATUS).body(response);
+      }
+      return ResponseEntity.status(HttpStatus.CREATED).body(response);
+    });
+  }
+
+  /**
+   * Start a resumable upload of a single file. The chunks are then written with PUT, and the
+   * upload is completed with its tags once all bytes are persisted.
+   *
+   * @param name name of the file
+   * @param size size of the file in bytes
+   * @param contentType content type of the file, guessed from the name if not given
+   * @return the upload with its ID and offset
+   */
+  @PostMapping("/uploads")
+  public ResponseEntity<?> createUpload(
+      @RequestParam String name,
+      @RequestParam long size,
+      @RequestParam(required = false) String contentType) throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "createUpload", () -> {
+      log.info("entering createUpload()");
+      try {
+        UploadSession session = fileService.createUpload(name, contentType, size);
+        return ResponseEntity.status(HttpStatus.CREATED).body(new UploadResponse(session));
+      } catch (IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Get the state of a resumable upload. The offset is read from Cloud Storage, so a client can
+   * resume from it after a chunk was interrupted.
+   *
+   * @param uploadId unique ID of the upload
+   * @return the upload with the number of bytes persisted, or status NotFound or Gone
+   */
+  @GetMapping("/uploads/{id}")
+  public ResponseEntity<?> getUpload(@PathVariable("id") String uploadId) throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "getUpload", () -> {
+      log.info("entering getUpload()");
+      UploadSession session = fileService.getUpload(uploadId);
+      if (session == null) {
+        return ResponseEntity.notFound().build();
+      }
+      try {
+        return ResponseEntity.ok().body(new UploadResponse(fileService.refreshUpload(session)));
+      } catch (IllegalStateException e) {
+        return ResponseEntity.status(HttpStatus.GONE).body(e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Write a chunk of a resumable upload. The request body is the chunk, which must start at the
+   * offset persisted so far.
+   *
+   * @param uploadId unique ID of the upload
+   * @param offset offset of the chunk in the file
+   * @param length length of the chunk in bytes
+   * @param content content of the chunk
+   * @return the upload with the number of bytes persisted, or status NotFound, Conflict when
+   *     the offset is not the persisted one, BadRequest or Gone
+   */
+  @PutMapping("/uploads/{id}")
+  public ResponseEntity<?> writeUploadChunk(
+      @PathVariable("id") String uploadId,
+      @RequestParam long offset,
+      @RequestHeader(HttpHeaders.CONTENT_LENGTH) long length,
+      InputStream content) throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "writeUploadChunk", () -> {
+      log.info("entering writeUploadChunk()");
+      UploadSession session = fileService.getUpload(uploadId);
+      if (session == null) {
+        return ResponseEntity.notFound().build();
+      }
+      if (offset != session.getOffset()) {
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(new UploadResponse(session));
+      }
+      try {
+        session = fileService.writeUploadChunk(session, length, content);
+        return ResponseEntity.ok().body(new UploadResponse(session));
+      } catch (IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+      } catch (IllegalStateException e) {
+        return ResponseEntity.status(HttpStatus.GONE).body(e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Complete a resumable upload and save the file with its tags.
+   *
+   * @param uploadId unique ID of the upload
+   * @param tags list of tags (separated by space) label the file
+   * @return file data, or status NotFound, Conflict when bytes are missing, or Gone
+   */
+  @PostMapping("/uploads/{id}/complete")
+  public ResponseEntity<?> completeUpload(
+      @PathVariable("id") String uploadId, @RequestParam String tags) throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "completeUpload", () -> {
+      log.info("entering completeUpload()");
+      UploadSession session = fileService.getUpload(uploadId);
+      if (session == null) {
+        return ResponseEntity.notFound().build();
+      }
+      try {
+        if (!session.checkComplete()) {
+          session = fileService.refreshUpload(session);
+        }
+      } catch (IllegalStateException e) {
+        return ResponseEntity.status(HttpStatus.GONE).body(e.getMessage());
+      }
+      if (!session.checkComplete()) {
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(new UploadResponse(session));
+      }
+      BaseFile file = fileService.completeUpload(session, getTagList(tags));
+      return ResponseEntity.status(HttpStatus.CREATED).body(new FileResponse(file));
     });
   }
 
   /**
    * Search files with the given tags.
    *
+   * <p>The request thread is released while the query is in flight. The response carries an
+   * ETag; when the change marker shows that the collection is unchanged since the ETag given in
+   * If-None-Match was computed, the status NotModified is returned without running the query.
+   *
+   * <p>When fields are given, only the document fields they are derived from are read from
+   * Firestore, and only those fields of each file are serialized.
+   *
+   * <p>By default a file matches when it has any of the tags. With match=all it must have all of
+   * them, and the search goes through the tag index.
+   *
    * @param tags list of tags (separated by space) label the files
    * @param orderNo order number of the last file
    * @param size number of files return
-   * @return list of files with pagination
+   * @param fields names of the fields of each file (separated by comma), all fields if absent
+   * @param match "any" or "all" of the tags
+   * @param ifNoneMatch ETags of the versions the client already has
+   * @return list of files with pagination, or status NotModified or BadRequest
    */
   @GetMapping("/files")
-  public ResponseEntity<?> getFilesByTag(
+  public CompletableFuture<ResponseEntity<?>> getFilesByTag(
       @RequestParam(required = false) String tags,
       @RequestParam(required = false) String orderNo,
-      @RequestParam(required = false, defaultValue = "50") int size) throws Exception {
-    return openTelemetryService.spanScope(this.getClass().getName(), "getFilesByTag", () -> {
+      @RequestParam(required = false, defaultValue = "50") int size,
+      @RequestParam(required = false) String fields,
+      @RequestParam(required = false, defaultValue = MATCH_ANY) String match,
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch)
+      throws Exception {
+    return openTelemetryService.spanScopeAsync(this.getClass().getName(), "getFilesByTag", () -> {
       log.info("entering getFilesByTag()");
       List<String> tagList = getTagList(tags);
-      List<BaseFile> fileList = fileService.getFilesByTag(tagList, orderNo, size);
-      if (CollectionUtils.isEmpty(fileList)) {
-        return ResponseEntity.ok().body(new FileListResponse(new ArrayList<>()));
+      List<String> fieldList = getFieldList(fields);
+      boolean matchAll;
+      try {
+        BaseFile.getSourceFields(fieldList);
+        matchAll = isMatchAll(match, tagList);
+      } catch (IllegalArgumentException e) {
+        return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(e.getMessage()));
+      }
+      return fileService.getChangeMarkerAsync().thenCompose(changeMarker -> {
+        String knownETag =
+            fileService.getListETag(tagList, orderNo, size, fieldList, matchAll, changeMarker);
+        if (LdsUtil.matchETag(ifNoneMatch, knownETag)) {
+          return CompletableFuture.completedFuture(notModified(knownETag));
+        }
+        CompletableFuture<List<BaseFile>> files = matchAll
+            ? fileService.getFilesByAllTagsAsync(tagList, orderNo, size, fieldList)
+            : fileService.getFilesByTagAsync(tagList, orderNo, size, fieldList);
+        return files.thenApply(fileList -> {
+          FileListResponse response = new FileListResponse(
+              CollectionUtils.isEmpty(fileList) ? new ArrayList<>() : fileList);
+          String etag = response.genETag(fieldList);
+          fileService.putListETag(tagList, orderNo, size, fieldList, matchAll, changeMarker, etag);
+          if (LdsUtil.matchETag(ifNoneMatch, etag)) {
+            return notModified(etag);
+          }
+          return ResponseEntity.ok().eTag(etag).body(filterFields(response, fieldList));
+        });
+      });
+    });
+  }
+
+  /**
+   * Search files whose names contain the query, ignoring case.
+   *
+   * <p>The search runs on an in-memory trigram index of the names. Files whose whole name
+   * matches come first, then the names starting with the query, then those with a word starting
+   * with it, then the others, newest first within each group. The order number of the last file
+   * of a page gives the next page.
+   *
+   * @param q the substring of the names, at least three chars long
+   * @param orderNo order number of the last file
+   * @param size number of files return
+   * @return list of files with pagination, or status BadRequest, or ServiceUnavailable while the
+   *     index is built
+   */
+  @GetMapping("/files/search")
+  public CompletableFuture<ResponseEntity<?>> searchFiles(
+      @RequestParam String q,
+      @RequestParam(required = false) String orderNo,
+      @RequestParam(required = false, defaultValue = "50") int size) throws Exception {
+    return openTelemetryService.spanScopeAsync(this.getClass().getName(), "searchFiles", () -> {
+      log.info("entering searchFiles()");
+      try {
+        return fileService.searchFilesByNameAsync(q, orderNo, size)
+            .thenApply(fileList -> ResponseEntity.ok().body(new FileListResponse(fileList)));
+      } catch (IllegalArgumentException e) {
+        return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(e.getMessage()));
+      } catch (IllegalStateException e) {
+        return CompletableFuture.completedFuture(
+            ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage()));
+      }
+    });
+  }
+
+  /**
+   * Get the metadata of a file.
+   *
+   * <p>The request thread is released while the lookup is in flight. The response carries an
+   * ETag, and the status NotModified is returned when it matches If-None-Match.
+   *
+   * @param fileId unique ID of the file
+   * @param ifNoneMatch ETags of the versions the client already has
+   * @return file data, or status NotFound or NotModified
+   */
+  @GetMapping("/files/{id}")
+  public CompletableFuture<ResponseEntity<?>> getFileById(
+      @PathVariable("id") String fileId,
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch)
+      throws Exception {
+    return openTelemetryService.spanScopeAsync(this.getClass().getName(), "getFileById", () -> {
+      log.info("entering getFileById()");
+      return fileService.getFileByIdAsync(fileId).thenApply(file -> {
+        if (file == null) {
+          return ResponseEntity.notFound().build();
+        }
+        FileResponse response = new FileResponse(file);
+        String etag = response.genETag();
+        if (LdsUtil.matchETag(ifNoneMatch, etag)) {
+          return notModified(etag);
+        }
+        return ResponseEntity.ok().eTag(etag).body(response);
+      });
+    });
+  }
+
+  /**
+   * Search files with the given tags, streamed as newline-delimited JSON with one file per line.
+   *
+   * <p>Each file is written to the response as soon as it is read from Firestore, so the memory
+   * used does not grow with the size of the page. The response has no ETag, and an error after
+   * the first files were sent ends the stream early.
+   *
+   * @param tags list of tags (separated by space) label the files
+   * @param orderNo order number of the last file
+   * @param size number of files return
+   * @param fields names of the fields of each file (separated by comma), all fields if absent
+   * @param match "any" or "all" of the tags
+   * @return stream of files, or status BadRequest
+   */
+  @GetMapping(value = "/files", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public ResponseEntity<StreamingResponseBody> streamFilesByTag(
+      @RequestParam(required = false) String tags,
+      @RequestParam(required = false) String orderNo,
+      @RequestParam(required = false, defaultValue = "50") int size,
+      @RequestParam(required = false) String fields,
+      @RequestParam(required = false, defaultValue = MATCH_ANY) String match) throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "streamFilesByTag", () -> {
+      log.info("entering streamFilesByTag()");
+      List<String> tagList = getTagList(tags);
+      List<String> fieldList = getFieldList(fields);
+      boolean matchAll;
+      try {
+        BaseFile.getSourceFields(fieldList);
+        matchAll = isMatchAll(match, tagList);
+      } catch (IllegalArgumentException e) {
+        byte[] message = e.getMessage().getBytes(StandardCharsets.UTF_8);
+        return ResponseEntity.badRequest().contentType(MediaType.TEXT_PLAIN)
+            .body(out -> out.write(message));
+      }
+      ObjectWriter writer = objectMapper.writer(getFieldFilters(fieldList));
+      StreamingResponseBody body = out -> {
+        try {
+          Consumer<BaseFile> consumer = file -> {
+            try {
+              out.write(writer.writeValueAsBytes(file));
+              out.write(NEWLINE);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          };
+          if (matchAll) {
+            fileService.streamFilesByAllTags(tagList, orderNo, size, fieldList, consumer);
+          } else {
+            fileService.streamFilesByTag(tagList, orderNo, size, fieldList, consumer);
+          }
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while streaming files");
+        } catch (ExecutionException e) {
+          throw new IOException("failed to stream files", e.getCause());
+        }
+      };
+      return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    });
+  }
+
+  /**
+   * Download the content of a file, or ranges of it.
+   *
+   * <p>The content is streamed from Cloud Storage and only the requested ranges are read. A
+   * single range is sent as PartialContent with a Content-Range, several ranges as
+   * multipart/byteranges. The ranges are ignored when If-Range does not match the current
+   * content, or when several ranges add up to the whole content.
+   *
+   * @param fileId unique ID of the file
+   * @param range value of the Range header
+   * @param ifRange value of the If-Range header, an ETag or a date
+   * @return the content or the ranges, or status NotFound or RequestedRangeNotSatisfiable
+   */
+  @GetMapping("/files/{id}/content")
+  public ResponseEntity<StreamingResponseBody> getContent(
+      @PathVariable("id") String fileId,
+      @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+      @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange)
+      throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "getContent", () -> {
+      log.info("entering getContent()");
+      BaseFile file = fileService.getFileById(fileId);
+      Blob content = file == null ? null : fileService.getContent(file);
+      if (content == null) {
+        return ResponseEntity.notFound().build();
+      }
+      long length = content.getSize();
+      String etag = "\"" + content.getGeneration() + "\"";
+      MediaType contentType = MediaTypeFactory.getMediaType(file.getName())
+          .orElse(MediaType.APPLICATION_OCTET_STREAM);
+      OffsetDateTime updateTime = content.getUpdateTimeOffsetDateTime();
+      long lastModified = updateTime == null ? 0 : updateTime.toInstant().toEpochMilli();
+
+      List<HttpRange> ranges = List.of();
+      if (range != null && LdsUtil.matchIfRange(ifRange, etag, lastModified)) {
+        try {
+          ranges = HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+          log.info("ignoring invalid range " + range);
+        }
+      }
+      if (ranges.isEmpty()) {
+        return contentBuilder(HttpStatus.OK, etag, lastModified)
+            .contentType(contentType)
+            .contentLength(length)
+            .body(out -> fileService.writeContent(content, 0, length, out));
+      }
+      List<HttpRange> satisfiable = ranges.stream()
+          .filter(httpRange -> httpRange.getRangeStart(length) < length)
+          .collect(Collectors.toList());
+      if (satisfiable.isEmpty()) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+            .header(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " */" + length)
+            .build();
+      }
+      long rangesLength = satisfiable.stream()
+          .mapToLong(httpRange -> getRangeLength(httpRange, length))
+          .sum();
+      if (satisfiable.size() > 1 && rangesLength >= length) {
+        return contentBuilder(HttpStatus.OK, etag, lastModified)
+            .contentType(contentType)
+            .contentLength(length)
+            .body(out -> fileService.writeContent(content, 0, length, out));
+      }
+      if (satisfiable.size() == 1) {
+        HttpRange httpRange = satisfiable.get(0);
+        long start = httpRange.getRangeStart(length);
+        long rangeLength = getRangeLength(httpRange, length);
+        return contentBuilder(HttpStatus.PARTIAL_CONTENT, etag, lastModified)
+            .contentType(contentType)
+            .contentLength(rangeLength)
+            .header(HttpHeaders.CONTENT_RANGE, genContentRange(httpRange, length))
+            .body(out -> fileService.writeContent(content, start, rangeLength, out));
+      }
+
+      String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+      List<byte[]> partHeaders = satisfiable.stream()
+          .map(httpRange -> ("\r\n--" + boundary + "\r\n"
+              + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+              + HttpHeaders.CONTENT_RANGE + ": " + genContentRange(httpRange, length) + "\r\n\r\n")
+              .getBytes(StandardCharsets.US_ASCII))
+          .collect(Collectors.toList());
+      byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+      long multipartLength = rangesLength + end.length
+          + partHeaders.stream().mapToLong(partHeader -> partHeader.length).sum();
+      return contentBuilder(HttpStatus.PARTIAL_CONTENT, etag, lastModified)
+          .contentType(MediaType.parseMediaType(MULTIPART_BYTERANGES + boundary))
+          .contentLength(multipartLength)
+          .body(out -> {
+            for (int i = 0; i < satisfiable.size(); i++) {
+              HttpRange httpRange = satisfiable.get(i);
+              out.write(partHeaders.get(i));
+              fileService.writeContent(content, httpRange.getRangeStart(length),
+                  getRangeLength(httpRange, length), out);
+            }
+            out.write(end);
+          });
+    });
+  }
+
+  /**
+   * Download the thumbnail of an image file, through a cache on heap and on local disk.
+   *
+   * @param fileId unique ID of the file
+   * @param ifNoneMatch ETags of the versions the client already has
+   * @return the thumbnail, or status NotFound, BadRequest or NotModified
+   */
+  @GetMapping("/files/{id}/thumbnail")
+  public ResponseEntity<?> getThumbnail(
+      @PathVariable("id") String fileId,
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch)
+      throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "getThumbnail", () -> {
+      log.info("entering getThumbnail()");
+      BaseFile file = fileService.getFileById(fileId);
+      if (file == null) {
+        return ResponseEntity.notFound().build();
       }
-      return ResponseEntity.ok().body(new FileListResponse(fileList));
+      if (!file.checkImageFileType()) {
+        return ResponseEntity.badRequest().build();
+      }
+      // the thumbnail path is derived from the hash of the content
+      String etag = LdsUtil.generateETag(file.genThumbnailPath());
+      if (LdsUtil.matchETag(ifNoneMatch, etag)) {
+        return notModified(etag);
+      }
+      byte[] thumbnail = fileService.getThumbnail(file);
+      if (thumbnail == null) {
+        return ResponseEntity.notFound().build();
+      }
+      return ResponseEntity.ok()
+          .eTag(etag)
+          .contentType(MediaTypeFactory.getMediaType(file.getName())
+              .orElse(MediaType.APPLICATION_OCTET_STREAM))
+          .body(thumbnail);
+    });
+  }
+
+  /**
+   * Download a resized image of a file. The resized image is created once per size and served
+   * from Cloud Storage afterwards.
+   *
+   * @param fileId unique ID of the file
+   * @param width requested width, snapped up to one of the supported widths
+   * @param height requested height, or none to keep the aspect ratio
+   * @param fit how the image fits the requested size: contain, cover or fill
+   * @param ifNoneMatch ETags of the versions the client already has
+   * @return the image, or status NotFound, BadRequest or NotModified
+   */
+  @GetMapping("/files/{id}/image")
+  public ResponseEntity<?> getImage(
+      @PathVariable("id") String fileId,
+      @RequestParam("w") int width,
+      @RequestParam(value = "h", required = false) Integer height,
+      @RequestParam(required = false, defaultValue = "contain") String fit,
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch)
+      throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "getImage", () -> {
+      log.info("entering getImage()");
+      BaseFile file = fileService.getFileById(fileId);
+      if (file == null) {
+        return ResponseEntity.notFound().build();
+      }
+      if (!file.checkImageFileType()) {
+        return ResponseEntity.badRequest().build();
+      }
+      String path;
+      try {
+        path = fileService.getImagePath(file, width, height, fit);
+      } catch (IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+      }
+      String etag = LdsUtil.generateETag(path);
+      if (LdsUtil.matchETag(ifNoneMatch, etag)) {
+        return notModified(etag);
+      }
+      return ResponseEntity.ok()
+          .eTag(etag)
+          .contentType(MediaTypeFactory.getMediaType(file.getName())
+              .orElse(MediaType.APPLICATION_OCTET_STREAM))
+          .body(new InputStreamResource(fileService.openContent(path)));
     });
   }
 
@@ -119,12 +626,11 @@ public class FileController {
       @RequestParam String tags) throws Exception {
     return openTelemetryService.spanScope(this.getClass().getName(), "updateFile", () -> {
       log.info("entering updateFile()");
-      BaseFile oldFile = fileService.getFileById(fileId);
-      if (oldFile == null) {
+      List<String> tagList = getTagList(tags);
+      BaseFile newFile = fileService.updateFile(file, tagList, fileId);
+      if (newFile == null) {
         return ResponseEntity.notFound().build();
       }
-      List<String> tagList = getTagList(tags);
-      BaseFile newFile = fileService.updateFile(file, tagList, oldFile);
       return ResponseEntity.ok().body(new FileResponse(newFile));
     });
   }
@@ -139,29 +645,238 @@ public class FileController {
   public ResponseEntity<?> deleteFile(@PathVariable("id") String fileId) throws Exception {
     return openTelemetryService.spanScope(this.getClass().getName(), "deleteFile", () -> {
       log.info("entering deleteFile()");
-      BaseFile file = fileService.getFileById(fileId);
-      if (file == null) {
+      if (!fileService.deleteFile(fileId)) {
         return ResponseEntity.notFound().build();
       }
-      fileService.deleteFile(file);
       return ResponseEntity.noContent().build();
     });
   }
 
   /**
-   * Delete all files.
+   * Delete many files at once, given either their IDs or tags.
+   *
+   * @param fileIds JSON array of the unique IDs of the files
+   * @param tags list of tags (separated by space), to delete every file with any of them
+   * @return ids of the deleted files and the files that failed, or status BadRequest
+   */
+  @DeleteMapping("/files")
+  public ResponseEntity<?> deleteFiles(
+      @RequestBody(required = false) List<String> fileIds,
+      @RequestParam(required = false) String tags) throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "deleteFiles", () -> {
+      log.info("entering deleteFiles()");
+      FileDeleteResponse response;
+      if (!CollectionUtils.isEmpty(fileIds)) {
+        response = fileService.deleteFiles(fileIds);
+      } else if (StringUtils.hasText(tags)) {
+        response = fileService.deleteFilesByTag(getTagList(tags));
+      } else {
+        return ResponseEntity.badRequest().body("file ids or tags are required");
+      }
+      if (!CollectionUtils.isEmpty(response.getErrors())) {
+        return ResponseEntity.status(HttpStatus.MULTI_STATUS).body(response);
+      }
+      return ResponseEntity.ok().body(response);
+    });
+  }
+
+  /**
+   * Start deleting all files in the background.
    *
-   * @return status NoContent
+   * @return status Accepted with the progress of the purge, or Conflict if one is running
    */
   @DeleteMapping("/reset")
   public ResponseEntity<?> resetFile() throws Exception {
     return openTelemetryService.spanScope(this.getClass().getName(), "resetFile", () -> {
       log.info("entering resetFile()");
-      fileService.resetFile();
-      return ResponseEntity.noContent().build();
+      HttpStatus status = fileService.resetFile() ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT;
+      return ResponseEntity.status(status)
+          .header(HttpHeaders.LOCATION, RESET_STATUS_PATH)
+          .body(fileService.getResetStatus());
+    });
+  }
+
+  /**
+   * Get the progress of the purge of all files.
+   *
+   * @return objects listed and deleted, rate and ETA of the purge
+   */
+  @GetMapping("/reset/status")
+  public ResponseEntity<?> getResetStatus() throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "getResetStatus", () -> {
+      log.info("entering getResetStatus()");
+      return ResponseEntity.ok().body(fileService.getResetStatus());
+    });
+  }
+
+  /**
+   * Get the statistics of the file metadata cache.
+   *
+   * @return size, hit, miss and eviction counts of the cache
+   */
+  @GetMapping("/stats/metadata-cache")
+  public ResponseEntity<?> getMetadataCacheStats() throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "getMetadataCacheStats",
+        () -> {
+          log.info("entering getMetadataCacheStats()");
+          return ResponseEntity.ok().body(fileService.getMetadataCacheStats());
+        });
+  }
+
+  /**
+   * Get the statistics of the thumbnail cache.
+   *
+   * @return hit rates, entries and bytes held of the heap and disk tiers
+   */
+  @GetMapping("/stats/thumbnail-cache")
+  public ResponseEntity<?> getThumbnailCacheStats() throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "getThumbnailCacheStats",
+        () -> {
+          log.info("entering getThumbnailCacheStats()");
+          return ResponseEntity.ok().body(fileService.getThumbnailCacheStats());
+        });
+  }
+
+  /**
+   * Get the statistics of the replica of the file metadata.
+   *
+   * @return size, sync state, snapshot counts and lag of the replica
+   */
+  @GetMapping("/stats/replica")
+  public ResponseEntity<?> getReplicaStats() throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "getReplicaStats", () -> {
+      log.info("entering getReplicaStats()");
+      return ResponseEntity.ok().body(fileService.getReplicaStats());
     });
   }
 
+  /**
+   * Get the tags with the number of files they label and the total size of those files.
+   *
+   * <p>The response comes from a rollup of the tag counters kept in memory, so it does not read
+   * the files and may lag behind the latest changes by up to the rollup interval.
+   *
+   * @return statistics of the tags, the most used first
+   */
+  @GetMapping("/tags")
+  public ResponseEntity<?> getTags() throws Exception {
+    return openTelemetryService.spanScope(this.getClass().getName(), "getTags", () -> {
+      log.info("entering getTags()");
+      return ResponseEntity.ok().body(fileService.getTags());
+    });
+  }
+
+  /**
+   * Build a NotModified response.
+   *
+   * @param etag the current ETag of the resource
+   * @return status NotModified with the ETag
+   */
+  private ResponseEntity<?> notModified(String etag) {
+    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+  }
+
+  /**
+   * Start a response with the content of a file, with the headers common to full and partial
+   * content.
+   *
+   * @param status status of the response
+   * @param etag the ETag of the content
+   * @param lastModified the last modification time of the content in milliseconds
+   * @return the response builder
+   */
+  private ResponseEntity.BodyBuilder contentBuilder(HttpStatus status, String etag,
+      long lastModified) {
+    return ResponseEntity.status(status)
+        .header(HttpHeaders.ACCEPT_RANGES, BYTES_UNIT)
+        .eTag(etag)
+        .lastModified(lastModified);
+  }
+
+  /**
+   * Get the number of bytes of a satisfiable range.
+   *
+   * @param httpRange the range
+   * @param length length of the content
+   * @return number of bytes in the range
+   */
+  private long getRangeLength(HttpRange httpRange, long length) {
+    return httpRange.getRangeEnd(length) - httpRange.getRangeStart(length) + 1;
+  }
+
+  /**
+   * Build the Content-Range of a satisfiable range.
+   *
+   * @param httpRange the range
+   * @param length length of the content
+   * @return value of the Content-Range header
+   */
+  private String genContentRange(HttpRange httpRange, long length) {
+    return BYTES_UNIT + " " + httpRange.getRangeStart(length) + "-"
+        + httpRange.getRangeEnd(length) + "/" + length;
+  }
+
+  /**
+   * Limit the serialized fields of the files in a list to the given fields.
+   *
+   * @param response list of files
+   * @param fields names of the fields, or empty for all fields
+   * @return the body to serialize
+   */
+  private Object filterFields(FileListResponse response, List<String> fields) {
+    if (fields.isEmpty()) {
+      return response;
+    }
+    MappingJacksonValue body = new MappingJacksonValue(response);
+    body.setFilters(getFieldFilters(fields));
+    return body;
+  }
+
+  /**
+   * Get the filters that limit the serialized fields of files to the given fields.
+   *
+   * @param fields names of the fields, or empty for all fields
+   * @return the filters
+   */
+  private SimpleFilterProvider getFieldFilters(List<String> fields) {
+    return new SimpleFilterProvider().addFilter(BaseFile.FIELD_FILTER, fields.isEmpty()
+        ? SimpleBeanPropertyFilter.serializeAll()
+        : SimpleBeanPropertyFilter.filterOutAllExcept(new HashSet<>(fields)));
+  }
+
+  /**
+   * Check whether a search must match all the tags. With fewer than two tags both modes return
+   * the same files, so the tag index is only used for several tags.
+   *
+   * @param match "any" or "all" of the tags
+   * @param tags list of tags
+   * @return true if the search goes through the tag index
+   * @throws IllegalArgumentException if the mode is neither "any" nor "all"
+   */
+  private boolean isMatchAll(String match, List<String> tags) {
+    if (!MATCH_ANY.equals(match) && !MATCH_ALL.equals(match)) {
+      throw new IllegalArgumentException("unknown match: " + match);
+    }
+    return MATCH_ALL.equals(match) && tags.size() > 1;
+  }
+
+  /**
+   * Split the list of fields by comma.
+   *
+   * @param fields list of fields in a single string (separated by comma)
+   * @return list of fields, empty for all fields
+   */
+  private List<String> getFieldList(String fields) {
+    if (!StringUtils.hasText(fields)) {
+      return new ArrayList<>();
+    }
+    return Arrays.stream(fields.split(FIELD_SEPARATOR))
+        .map(String::trim)
+        .filter(StringUtils::hasText)
+        .distinct()
+        .collect(Collectors.toList());
+  }
+
   /**
    * Split the string by separator.
    *
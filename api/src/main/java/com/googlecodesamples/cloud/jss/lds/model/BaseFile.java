@@ -16,19 +16,38 @@
 
 package com.googlecodesamples.cloud.jss.lds.model;
 
-import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.google.cloud.firestore.DocumentSnapshot;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.springframework.beans.BeanUtils;
 
 /**
  * The BaseFile class represents a file being uploaded by the users
  */
+@JsonFilter(BaseFile.FIELD_FILTER)
 public class BaseFile extends FileMeta {
-  private static final List<String> IMG_EXTENSIONS = List.of("png", "jpeg", "jpg", "gif");
-  private static final String THUMBNAIL_EXTENSION = "_small";
+  public static final String FIELD_FILTER = "fileFields";
+  // the document fields each JSON field is derived from
+  private static final Map<String, List<String>> FIELD_SOURCES = Map.ofEntries(
+      Map.entry("id", List.of()),
+      Map.entry("path", List.of("path")),
+      Map.entry("name", List.of("name")),
+      Map.entry("tags", List.of("tags")),
+      Map.entry("orderNo", List.of("orderNo")),
+      Map.entry("size", List.of("size")),
+      Map.entry("thumbnailState", List.of("thumbnailState")),
+      Map.entry("thumbnailReady", List.of("thumbnailState", "name")),
+      Map.entry("url", List.of("path")),
+      Map.entry("thumbUrl", List.of("path", "name")),
+      Map.entry("createTime", List.of()),
+      Map.entry("updateTime", List.of()));
   private String url;
   private String thumbUrl;
   private Date createTime;
@@ -37,15 +56,71 @@ public class BaseFile extends FileMeta {
   public BaseFile() {
   }
 
-  public BaseFile(QueryDocumentSnapshot document, String resourceBasePath) {
+  public BaseFile(DocumentSnapshot document, String resourceBasePath) {
     BaseFile file = document.toObject(BaseFile.class);
     BeanUtils.copyProperties(file, this);
-    this.setUrl(resourceBasePath + file.getPath());
-    this.setThumbUrl(resourceBasePath + file.genThumbnailPath());
+    // the ID is not part of a projection
+    this.setId(document.getId());
+    if (file.getPath() != null) {
+      this.setUrl(resourceBasePath + file.getPath());
+      this.setThumbUrl(resourceBasePath + file.genThumbnailPath());
+    }
     this.setCreateTime(document.getCreateTime().toDate());
     this.setUpdateTime(document.getUpdateTime().toDate());
   }
 
+  public BaseFile(FileMeta fileMeta, String resourceBasePath, Date createTime, Date updateTime) {
+    BeanUtils.copyProperties(fileMeta, this);
+    this.setUrl(resourceBasePath + fileMeta.getPath());
+    this.setThumbUrl(resourceBasePath + fileMeta.genThumbnailPath());
+    this.setCreateTime(createTime);
+    this.setUpdateTime(updateTime);
+  }
+
+  /**
+   * Get the document fields needed to serialize the given JSON fields of a file.
+   *
+   * @param fields names of the JSON fields
+   * @return names of the document fields
+   * @throws IllegalArgumentException if a field is unknown
+   */
+  public static Set<String> getSourceFields(Collection<String> fields) {
+    Set<String> sourceFields = new LinkedHashSet<>();
+    for (String field : fields) {
+      List<String> sources = FIELD_SOURCES.get(field);
+      if (sources == null) {
+        throw new IllegalArgumentException("unknown field " + field + ", expected any of "
+            + String.join(",", FIELD_SOURCES.keySet()));
+      }
+      sourceFields.addAll(sources);
+    }
+    return sourceFields;
+  }
+
+  /**
+   * Check whether the thumbnail of the file can be downloaded. Files stored before thumbnails
+   * were generated asynchronously have no state and got their thumbnail at upload.
+   *
+   * @return true if the thumbnail is ready
+   */
+  public boolean isThumbnailReady() {
+    if (getThumbnailState() == null) {
+      return checkImageFileType();
+    }
+    return getThumbnailState() == ThumbnailState.READY;
+  }
+
+  /**
+   * Generate the version identifier of the file from its ID, update time and URL, which changes
+   * when it is signed again.
+   *
+   * @return the identifier used to build ETags
+   */
+  public String genVersion() {
+    long updateMillis = updateTime == null ? 0 : updateTime.getTime();
+    return getId() + "@" + updateMillis + "@" + url;
+  }
+
   public String getUrl() {
     return url;
   }
@@ -77,12 +152,4 @@ public class BaseFile extends FileMeta {
   public void setUpdateTime(Date updateTime) {
     this.updateTime = updateTime;
   }
-
-  public String genThumbnailPath() {
-    return getPath() + THUMBNAIL_EXTENSION;
-  }
-
-  public boolean checkImageFileType() {
-    return IMG_EXTENSIONS.stream().anyMatch(e -> getName().toLowerCase().endsWith(e));
-  }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+/**
+ * The CacheStatsResponse is a wrapper class for the API endpoint that returns the statistics of a cache
+ */
+public class CacheStatsResponse {
+  private long size;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+  private double hitRate;
+
+  public CacheStatsResponse() {
+  }
+
+  public CacheStatsResponse(long size, long hitCount, long missCount, long evictionCount) {
+    this.size = size;
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.evictionCount = evictionCount;
+    long requestCount = hitCount + missCount;
+    this.hitRate = requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public void setSize(long size) {
+    this.size = size;
+  }
+
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  public void setHitCount(long hitCount) {
+    this.hitCount = hitCount;
+  }
+
+  public long getMissCount() {
+    return missCount;
+  }
+
+  public void setMissCount(long missCount) {
+    this.missCount = missCount;
+  }
+
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public void setEvictionCount(long evictionCount) {
+    this.evictionCount = evictionCount;
+  }
+
+  public double getHitRate() {
+    return hitRate;
+  }
+
+  public void setHitRate(double hitRate) {
+    this.hitRate = hitRate;
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+import java.util.List;
+
+/**
+ * The FileDeleteResponse is a wrapper class for the API endpoint that deletes many files at once
+ */
+public class FileDeleteResponse {
+  private List<String> deleted;
+  private List<FileError> errors;
+
+  public FileDeleteResponse() {
+  }
+
+  public FileDeleteResponse(List<String> deleted, List<FileError> errors) {
+    this.deleted = deleted;
+    this.errors = errors;
+  }
+
+  public List<String> getDeleted() {
+    return deleted;
+  }
+
+  public void setDeleted(List<String> deleted) {
+    this.deleted = deleted;
+  }
+
+  public List<FileError> getErrors() {
+    return errors;
+  }
+
+  public void setErrors(List<FileError> errors) {
+    this.errors = errors;
+  }
+}
@@ -16,16 +16,26 @@
 
 package com.googlecodesamples.cloud.jss.lds.model;
 
+import com.googlecodesamples.cloud.jss.lds.util.LdsUtil;
+
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * The FileListResponse is a wrapper class for the API endpoint that returns a list of files as response
  */
 public class FileListResponse {
   private List<BaseFile> files;
+  private List<FileError> errors;
 
   public FileListResponse(List<BaseFile> files) {
+    this(files, new ArrayList<>());
+  }
+
+  public FileListResponse(List<BaseFile> files, List<FileError> errors) {
     this.files = files;
+    this.errors = errors;
   }
 
   public List<BaseFile> getFiles() {
@@ -35,4 +45,28 @@ public class FileListResponse {
   public void setFiles(List<BaseFile> files) {
     this.files = files;
   }
+
+  public List<FileError> getErrors() {
+    return errors;
+  }
+
+  public void setErrors(List<FileError> errors) {
+    this.errors = errors;
+  }
+
+  public String genETag() {
+    return genETag(List.of());
+  }
+
+  /**
+   * Generate the ETag of the list as serialized with only the given fields.
+   *
+   * @param fields names of the fields, or empty for all fields
+   * @return the ETag
+   */
+  public String genETag(List<String> fields) {
+    String versions = files.stream().map(BaseFile::genVersion).collect(Collectors.joining(","));
+    return LdsUtil.generateETag(
+        fields.isEmpty() ? versions : String.join(",", fields) + "|" + versions);
+  }
 }
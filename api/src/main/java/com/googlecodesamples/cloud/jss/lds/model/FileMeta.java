@@ -16,20 +16,26 @@
 
 package com.googlecodesamples.cloud.jss.lds.model;
 
-import com.googlecodesamples.cloud.jss.lds.util.LdsUtil;
-
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.cloud.Timestamp;
 import java.util.List;
 
 /**
  * The FileMeta class represents the file metadata that corresponds to Firestore database schema
  */
 public class FileMeta {
+  private static final List<String> IMG_EXTENSIONS = List.of("png", "jpeg", "jpg", "gif");
+  private static final String THUMBNAIL_EXTENSION = "_small";
   private String id;
   private String path;
   private String name;
   private List<String> tags;
   private String orderNo;
   private long size;
+  private ThumbnailState thumbnailState;
+  private int thumbnailAttempts;
+  private long thumbnailLease;
+  private Timestamp writeTime;
 
   public FileMeta() {
   }
@@ -39,8 +45,10 @@ public class FileMeta {
     this.path = path;
     this.name = name;
     this.tags = tags;
-    this.orderNo = System.currentTimeMillis() + "-" + LdsUtil.getPathId(path);
+    // the path is shared by files with the same content, the id is not
+    this.orderNo = System.currentTimeMillis() + "-" + id;
     this.size = size;
+    this.thumbnailState = checkImageFileType() ? ThumbnailState.PENDING : ThumbnailState.NONE;
   }
 
   public String getId() {
@@ -90,4 +98,58 @@ public class FileMeta {
   public void setSize(long size) {
     this.size = size;
   }
+
+  public ThumbnailState getThumbnailState() {
+    return thumbnailState;
+  }
+
+  public void setThumbnailState(ThumbnailState thumbnailState) {
+    this.thumbnailState = thumbnailState;
+  }
+
+  @JsonIgnore
+  public int getThumbnailAttempts() {
+    return thumbnailAttempts;
+  }
+
+  public void setThumbnailAttempts(int thumbnailAttempts) {
+    this.thumbnailAttempts = thumbnailAttempts;
+  }
+
+  @JsonIgnore
+  public long getThumbnailLease() {
+    return thumbnailLease;
+  }
+
+  public void setThumbnailLease(long thumbnailLease) {
+    this.thumbnailLease = thumbnailLease;
+  }
+
+  /**
+   * Get the time at which this version was written by a transaction, which does not report the
+   * update time of the document.
+   *
+   * @return the write time, or null if the version was not written by a transaction
+   */
+  @JsonIgnore
+  public Timestamp getWriteTime() {
+    return writeTime;
+  }
+
+  public void setWriteTime(Timestamp writeTime) {
+    this.writeTime = writeTime;
+  }
+
+  public String genThumbnailPath() {
+    return getPath() + THUMBNAIL_EXTENSION;
+  }
+
+  public String genDerivativePath(int width, int height, String fit) {
+    return genThumbnailPath() + "_" + width + "x" + height + "_" + fit;
+  }
+
+  public boolean checkImageFileType() {
+    return getName() != null
+        && IMG_EXTENSIONS.stream().anyMatch(e -> getName().toLowerCase().endsWith(e));
+  }
 }
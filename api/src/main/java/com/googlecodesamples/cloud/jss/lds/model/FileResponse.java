@@ -16,6 +16,8 @@
 
 package com.googlecodesamples.cloud.jss.lds.model;
 
+import com.googlecodesamples.cloud.jss.lds.util.LdsUtil;
+
 /**
  * The FileResponse is a wrapper class for the API endpoint that returns a single file as response
  */
@@ -33,4 +35,8 @@ public class FileResponse {
   public void setFile(BaseFile file) {
     this.file = file;
   }
+
+  public String genETag() {
+    return LdsUtil.generateETag(file.genVersion());
+  }
 }
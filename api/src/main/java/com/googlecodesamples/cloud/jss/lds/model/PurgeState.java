@@ -0,0 +1,31 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+/**
+ * The PurgeState represents the progress of a purge of all files
+ */
+public enum PurgeState {
+  /** No purge was started on this instance. */
+  IDLE,
+  /** The purge is deleting files. */
+  RUNNING,
+  /** All files were deleted. */
+  COMPLETED,
+  /** The purge stopped on an error, or some files could not be deleted. */
+  FAILED
+}
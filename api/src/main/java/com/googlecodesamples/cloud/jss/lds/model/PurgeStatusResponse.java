@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+import java.util.Date;
+
+/**
+ * The PurgeStatusResponse is a wrapper class for the API endpoint that returns the progress of a
+ * purge of all files
+ */
+public class PurgeStatusResponse {
+  private PurgeState state;
+  private Date startTime;
+  private Date endTime;
+  private long listedObjects;
+  private long deletedObjects;
+  private long failedObjects;
+  private boolean listingComplete;
+  private boolean metadataDeleted;
+  private double rate;
+  private Long etaSeconds;
+  private String error;
+
+  public PurgeStatusResponse() {
+  }
+
+  public PurgeState getState() {
+    return state;
+  }
+
+  public void setState(PurgeState state) {
+    this.state = state;
+  }
+
+  public Date getStartTime() {
+    return startTime;
+  }
+
+  public void setStartTime(Date startTime) {
+    this.startTime = startTime;
+  }
+
+  public Date getEndTime() {
+    return endTime;
+  }
+
+  public void setEndTime(Date endTime) {
+    this.endTime = endTime;
+  }
+
+  public long getListedObjects() {
+    return listedObjects;
+  }
+
+  public void setListedObjects(long listedObjects) {
+    this.listedObjects = listedObjects;
+  }
+
+  public long getDeletedObjects() {
+    return deletedObjects;
+  }
+
+  public void setDeletedObjects(long deletedObjects) {
+    this.deletedObjects = deletedObjects;
+  }
+
+  public long getFailedObjects() {
+    return failedObjects;
+  }
+
+  public void setFailedObjects(long failedObjects) {
+    this.failedObjects = failedObjects;
+  }
+
+  public boolean isListingComplete() {
+    return listingComplete;
+  }
+
+  public void setListingComplete(boolean listingComplete) {
+    this.listingComplete = listingComplete;
+  }
+
+  public boolean isMetadataDeleted() {
+    return metadataDeleted;
+  }
+
+  public void setMetadataDeleted(boolean metadataDeleted) {
+    this.metadataDeleted = metadataDeleted;
+  }
+
+  public double getRate() {
+    return rate;
+  }
+
+  public void setRate(double rate) {
+    this.rate = rate;
+  }
+
+  public Long getEtaSeconds() {
+    return etaSeconds;
+  }
+
+  public void setEtaSeconds(Long etaSeconds) {
+    this.etaSeconds = etaSeconds;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public void setError(String error) {
+    this.error = error;
+  }
+}
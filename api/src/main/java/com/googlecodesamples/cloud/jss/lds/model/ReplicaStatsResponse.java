@@ -0,0 +1,122 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+/**
+ * The ReplicaStatsResponse is a wrapper class for the API endpoint that returns the state and the
+ * lag of the in-memory replica of the file metadata
+ */
+public class ReplicaStatsResponse {
+  private boolean enabled;
+  private boolean synced;
+  private long size;
+  private long version;
+  private long snapshotCount;
+  private long resyncCount;
+  private long lastLagMillis;
+  private long maxLagMillis;
+  private long lastSnapshotAgeMillis;
+
+  public ReplicaStatsResponse() {
+  }
+
+  public ReplicaStatsResponse(boolean enabled, boolean synced, long size, long version,
+      long snapshotCount, long resyncCount, long lastLagMillis, long maxLagMillis,
+      long lastSnapshotAgeMillis) {
+    this.enabled = enabled;
+    this.synced = synced;
+    this.size = size;
+    this.version = version;
+    this.snapshotCount = snapshotCount;
+    this.resyncCount = resyncCount;
+    this.lastLagMillis = lastLagMillis;
+    this.maxLagMillis = maxLagMillis;
+    this.lastSnapshotAgeMillis = lastSnapshotAgeMillis;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isSynced() {
+    return synced;
+  }
+
+  public void setSynced(boolean synced) {
+    this.synced = synced;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public void setSize(long size) {
+    this.size = size;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  public long getSnapshotCount() {
+    return snapshotCount;
+  }
+
+  public void setSnapshotCount(long snapshotCount) {
+    this.snapshotCount = snapshotCount;
+  }
+
+  public long getResyncCount() {
+    return resyncCount;
+  }
+
+  public void setResyncCount(long resyncCount) {
+    this.resyncCount = resyncCount;
+  }
+
+  public long getLastLagMillis() {
+    return lastLagMillis;
+  }
+
+  public void setLastLagMillis(long lastLagMillis) {
+    this.lastLagMillis = lastLagMillis;
+  }
+
+  public long getMaxLagMillis() {
+    return maxLagMillis;
+  }
+
+  public void setMaxLagMillis(long maxLagMillis) {
+    this.maxLagMillis = maxLagMillis;
+  }
+
+  public long getLastSnapshotAgeMillis() {
+    return lastSnapshotAgeMillis;
+  }
+
+  public void setLastSnapshotAgeMillis(long lastSnapshotAgeMillis) {
+    this.lastSnapshotAgeMillis = lastSnapshotAgeMillis;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The TagListResponse is a wrapper class for the API endpoint that returns the tags with their
+ * file counts and total sizes
+ */
+public class TagListResponse {
+  private List<TagStats> tags;
+  private Date refreshTime;
+
+  public TagListResponse() {
+  }
+
+  public TagListResponse(List<TagStats> tags, Date refreshTime) {
+    this.tags = tags;
+    this.refreshTime = refreshTime;
+  }
+
+  public List<TagStats> getTags() {
+    return tags;
+  }
+
+  public void setTags(List<TagStats> tags) {
+    this.tags = tags;
+  }
+
+  public Date getRefreshTime() {
+    return refreshTime;
+  }
+
+  public void setRefreshTime(Date refreshTime) {
+    this.refreshTime = refreshTime;
+  }
+}
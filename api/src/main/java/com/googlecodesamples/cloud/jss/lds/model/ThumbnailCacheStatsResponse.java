@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+/**
+ * The ThumbnailCacheStatsResponse is a wrapper class for the API endpoint that returns the
+ * statistics of the tiers of the thumbnail cache
+ */
+public class ThumbnailCacheStatsResponse {
+  private long memoryEntries;
+  private long memoryBytes;
+  private long memoryHitCount;
+  private long memoryMissCount;
+  private long diskEntries;
+  private long diskBytes;
+  private long diskCapacityBytes;
+  private long diskHitCount;
+  private long diskMissCount;
+  private long storageReadCount;
+
+  public ThumbnailCacheStatsResponse() {
+  }
+
+  public long getMemoryEntries() {
+    return memoryEntries;
+  }
+
+  public void setMemoryEntries(long memoryEntries) {
+    this.memoryEntries = memoryEntries;
+  }
+
+  public long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  public void setMemoryBytes(long memoryBytes) {
+    this.memoryBytes = memoryBytes;
+  }
+
+  public long getMemoryHitCount() {
+    return memoryHitCount;
+  }
+
+  public void setMemoryHitCount(long memoryHitCount) {
+    this.memoryHitCount = memoryHitCount;
+  }
+
+  public long getMemoryMissCount() {
+    return memoryMissCount;
+  }
+
+  public void setMemoryMissCount(long memoryMissCount) {
+    this.memoryMissCount = memoryMissCount;
+  }
+
+  public long getDiskEntries() {
+    return diskEntries;
+  }
+
+  public void setDiskEntries(long diskEntries) {
+    this.diskEntries = diskEntries;
+  }
+
+  public long getDiskBytes() {
+    return diskBytes;
+  }
+
+  public void setDiskBytes(long diskBytes) {
+    this.diskBytes = diskBytes;
+  }
+
+  public long getDiskCapacityBytes() {
+    return diskCapacityBytes;
+  }
+
+  public void setDiskCapacityBytes(long diskCapacityBytes) {
+    this.diskCapacityBytes = diskCapacityBytes;
+  }
+
+  public long getDiskHitCount() {
+    return diskHitCount;
+  }
+
+  public void setDiskHitCount(long diskHitCount) {
+    this.diskHitCount = diskHitCount;
+  }
+
+  public long getDiskMissCount() {
+    return diskMissCount;
+  }
+
+  public void setDiskMissCount(long diskMissCount) {
+    this.diskMissCount = diskMissCount;
+  }
+
+  public long getStorageReadCount() {
+    return storageReadCount;
+  }
+
+  public void setStorageReadCount(long storageReadCount) {
+    this.storageReadCount = storageReadCount;
+  }
+
+  public double getMemoryHitRate() {
+    return getHitRate(memoryHitCount, memoryMissCount);
+  }
+
+  public double getDiskHitRate() {
+    return getHitRate(diskHitCount, diskMissCount);
+  }
+
+  private static double getHitRate(long hitCount, long missCount) {
+    long requestCount = hitCount + missCount;
+    return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+  }
+}
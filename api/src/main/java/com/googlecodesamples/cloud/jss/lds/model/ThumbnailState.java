@@ -0,0 +1,31 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+/**
+ * The ThumbnailState represents the progress of the thumbnail generation of a file
+ */
+public enum ThumbnailState {
+  /** The file is not an image and has no thumbnail. */
+  NONE,
+  /** The thumbnail is waiting to be generated. */
+  PENDING,
+  /** The thumbnail has been generated. */
+  READY,
+  /** The thumbnail could not be generated within the maximum number of attempts. */
+  FAILED
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+/**
+ * A blob in Cloud Storage that is no longer referenced by any file, waiting to be deleted with its
+ * thumbnail by the sweeper.
+ */
+public class Tombstone {
+  private static final String THUMBNAIL_EXTENSION = "_small";
+  private String id;
+  private String path;
+  private int attempts;
+  private long nextAttempt;
+
+  public Tombstone() {
+  }
+
+  public Tombstone(String id, String path, long nextAttempt) {
+    this.id = id;
+    this.path = path;
+    this.nextAttempt = nextAttempt;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public void setPath(String path) {
+    this.path = path;
+  }
+
+  public int getAttempts() {
+    return attempts;
+  }
+
+  public void setAttempts(int attempts) {
+    this.attempts = attempts;
+  }
+
+  public long getNextAttempt() {
+    return nextAttempt;
+  }
+
+  public void setNextAttempt(long nextAttempt) {
+    this.nextAttempt = nextAttempt;
+  }
+
+  public String genThumbnailPath() {
+    return getPath() + THUMBNAIL_EXTENSION;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.model;
+
+/**
+ * The UploadSession class represents a resumable upload in progress that corresponds to Firestore
+ * database schema. The session URI grants write access to the upload and is never returned to
+ * clients.
+ */
+public class UploadSession {
+  private String id;
+  private String sessionUri;
+  private String path;
+  private String name;
+  private long size;
+  private long offset;
+  private long createTime;
+
+  public UploadSession() {
+  }
+
+  public UploadSession(String id, String sessionUri, String path, String name, long size) {
+    this.id = id;
+    this.sessionUri = sessionUri;
+    this.path = path;
+    this.name = name;
+    this.size = size;
+    this.createTime = System.currentTimeMillis();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String getSessionUri() {
+    return sessionUri;
+  }
+
+  public void setSessionUri(String sessionUri) {
+    this.sessionUri = sessionUri;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public void setPath(String path) {
+    this.path = path;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public void setSize(long size) {
+    this.size = size;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public void setOffset(long offset) {
+    this.offset = offset;
+  }
+
+  public long getCreateTime() {
+    return createTime;
+  }
+
+  public void setCreateTime(long createTime) {
+    this.createTime = createTime;
+  }
+
+  public boolean checkComplete() {
+    return offset >= size;
+  }
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.util.LdsUtil;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory trigram index over the names of the files, for substring search.
+ *
+ * <p>Each file has a slot, numbered in the order the files were added. The names are lowercased,
+ * and every trigram of a name, packed into a long of three UTF-16 chars, maps to a sorted int
+ * array of the slots whose names contain it. A query is answered by intersecting the posting
+ * arrays of its trigrams, smallest first, and checking the remaining names for the whole query.
+ * Updating a file adds a new slot and frees the old one; a scheduled compaction drops the freed
+ * slots from the postings once they outnumber half of the live ones, so that writers, which may
+ * run on Firestore callback threads, never pay for it.
+ *
+ * <p>Memory budget: a file with a UUID and a name of 24 ASCII chars takes about 200 bytes: 24
+ * for its ID and order time, about 70 for the lowercased name, up to 16 in the ID lookup table,
+ * and 4 per distinct trigram of its name in the postings. About 2 GB of heap is needed for 10M
+ * such files, plus up to half of that again while the arrays grow or the index is compacted.
+ * Files beyond {@code search.index.max.files} are not indexed.
+ */
+@Component
+public class FileNameIndex {
+  private static final Logger log = LoggerFactory.getLogger(FileNameIndex.class);
+  private static final int TRIGRAM = 3;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int INITIAL_POSTINGS = 4;
+  private static final int COMPACT_MIN_FREED = 1024;
+  private static final int RANK_EXACT = 0;
+  private static final int RANK_PREFIX = 1;
+  private static final int RANK_WORD = 2;
+  private static final int RANK_OTHER = 3;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private long[] idHigh = new long[INITIAL_CAPACITY];
+  private long[] idLow = new long[INITIAL_CAPACITY];
+  private long[] times = new long[INITIAL_CAPACITY];
+  private String[] names = new String[INITIAL_CAPACITY];
+  private Map<Integer, String> otherIds = new HashMap<>();
+  private int[] slotTable = new int[INITIAL_CAPACITY * 2];
+  private Map<Long, Postings> postings = new HashMap<>();
+  private int slotCount;
+  private int freedCount;
+  private volatile boolean ready;
+
+  @Value("${search.index.max.files}")
+  private int maxFiles;
+
+  /**
+   * Check whether the index holds all files, after the scan at startup.
+   *
+   * @return true if the index can be searched
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Mark the index as holding all files.
+   *
+   * @param ready true once the scan at startup is complete
+   */
+  public void setReady(boolean ready) {
+    this.ready = ready;
+  }
+
+  /**
+   * Get the number of files in the index.
+   *
+   * @return number of live slots
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return slotCount - freedCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Add a file to the index, or replace its previous name.
+   *
+   * @param fileId unique ID of the file
+   * @param name name of the file
+   * @param orderNo order number of the file
+   */
+  public void put(String fileId, String name, String orderNo) {
+    put(fileId, name, orderNo, true);
+  }
+
+  /**
+   * Add a file to the index unless it is already there. Used by the scan at startup, so that a
+   * file saved while the scan runs is not replaced by the version the scan read.
+   *
+   * @param fileId unique ID of the file
+   * @param name name of the file
+   * @param orderNo order number of the file
+   */
+  public void putIfAbsent(String fileId, String name, String orderNo) {
+    put(fileId, name, orderNo, false);
+  }
+
+  /**
+   * Remove a file from the index.
+   *
+   * @param fileId unique ID of the file
+   */
+  public void remove(String fileId) {
+    lock.writeLock().lock();
+    try {
+      int position = findPosition(fileId);
+      if (slotTable[position] != 0) {
+        free(slotTable[position] - 1);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Compact the index if enough slots were freed since the previous compaction. */
+  @Scheduled(initialDelayString = "${search.index.compact.interval.ms}",
+      fixedDelayString = "${search.index.compact.interval.ms}")
+  public void compact() {
+    lock.writeLock().lock();
+    try {
+      maybeCompact();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Remove all files from the index. */
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      reset(INITIAL_CAPACITY);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Search the files whose names contain the query, ignoring case.
+   *
+   * <p>Matches are ranked by where the query is found: the whole name first, then a prefix of
+   * the name, then the start of a word, then anywhere else. Files of the same rank are ordered
+   * newest first. A page continues after the file of the given order number, at its rank.
+   *
+   * <p>The candidates are compared on the slot arrays, and kept in a sorted array of the size of
+   * the page, so the IDs are only built for the files of the page.
+   *
+   * @param query the substring, at least three chars long
+   * @param orderNo order number of the last file of the previous page, or null for the first
+   * @param size number of files returned
+   * @return IDs of the matching files, in order
+   */
+  public List<String> search(String query, String orderNo, int size) {
+    String normalized = normalize(query);
+    if (normalized.length() < TRIGRAM) {
+      throw new IllegalArgumentException("query must have at least " + TRIGRAM + " chars");
+    }
+    if (size <= 0) {
+      return List.of();
+    }
+    lock.readLock().lock();
+    try {
+      Cursor cursor = getCursor(normalized, orderNo);
+      int[] pageSlots = new int[size];
+      int[] pageRanks = new int[size];
+      int pageSize = 0;
+      for (int slot : getCandidates(normalized)) {
+        String name = names[slot];
+        if (name == null || !name.contains(normalized)) {
+          continue;
+        }
+        int rank = getRank(name, normalized);
+        if (cursor != null && compareToCursor(rank, slot, cursor) <= 0) {
+          continue;
+        }
+        if (pageSize == size
+            && compare(rank, slot, pageRanks[size - 1], pageSlots[size - 1]) >= 0) {
+          continue;
+        }
+        int position = pageSize == size ? size - 1 : pageSize++;
+        for (; position > 0
+            && compare(rank, slot, pageRanks[position - 1], pageSlots[position - 1]) < 0;
+            position--) {
+          pageSlots[position] = pageSlots[position - 1];
+          pageRanks[position] = pageRanks[position - 1];
+        }
+        pageSlots[position] = slot;
+        pageRanks[position] = rank;
+      }
+      List<String> fileIds = new ArrayList<>(pageSize);
+      for (int i = 0; i < pageSize; i++) {
+        fileIds.add(getId(pageSlots[i]));
+      }
+      return fileIds;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Compare two matches in the order of the results: by rank, then newest first, then by ID in
+   * reverse.
+   *
+   * @param rank rank of the first match
+   * @param slot slot of the first match
+   * @param otherRank rank of the second match
+   * @param otherSlot slot of the second match
+   * @return negative if the first match comes first
+   */
+  private int compare(int rank, int slot, int otherRank, int otherSlot) {
+    if (rank != otherRank) {
+      return Integer.compare(rank, otherRank);
+    }
+    if (times[slot] != times[otherSlot]) {
+      return Long.compare(times[otherSlot], times[slot]);
+    }
+    if (otherIds.isEmpty()) {
+      // the canonical form of a UUID sorts as its two longs, unsigned
+      int high = Long.compareUnsigned(idHigh[otherSlot], idHigh[slot]);
+      return high != 0 ? high : Long.compareUnsigned(idLow[otherSlot], idLow[slot]);
+    }
+    return getId(otherSlot).compareTo(getId(slot));
+  }
+
+  /**
+   * Compare a match with the cursor of a page, in the order of the results.
+   *
+   * @param rank rank of the match
+   * @param slot slot of the match
+   * @param cursor the cursor
+   * @return positive if the match comes after the cursor
+   */
+  private int compareToCursor(int rank, int slot, Cursor cursor) {
+    if (rank != cursor.rank) {
+      return Integer.compare(rank, cursor.rank);
+    }
+    if (times[slot] != cursor.time) {
+      return Long.compare(cursor.time, times[slot]);
+    }
+    return cursor.id.compareTo(getId(slot));
+  }
+
+  /**
+   * Find the position of the cursor of a page among the matches of a query. If the file of the
+   * cursor no longer matches, the page continues with the lowest rank.
+   *
+   * @param normalized the lowercased query
+   * @param orderNo order number of the last file of the previous page, or null
+   * @return the cursor, or null for the first page
+   */
+  private Cursor getCursor(String normalized, String orderNo) {
+    int separator = orderNo == null ? -1 : orderNo.indexOf('-');
+    if (separator <= 0) {
+      return null;
+    }
+    String fileId = orderNo.substring(separator + 1);
+    int position = findPosition(fileId);
+    String name = slotTable[position] == 0 ? null : names[slotTable[position] - 1];
+    int rank = name != null && name.contains(normalized)
+        ? getRank(name, normalized) : RANK_OTHER;
+    return new Cursor(rank, LdsUtil.getOrderNoTime(orderNo), fileId);
+  }
+
+  /**
+   * Intersect the posting arrays of the trigrams of a query, smallest first.
+   *
+   * @param normalized the lowercased query
+   * @return sorted slots whose names contain all trigrams of the query
+   */
+  private int[] getCandidates(String normalized) {
+    List<Postings> lists = new ArrayList<>();
+    for (long trigram : getTrigrams(normalized)) {
+      Postings list = postings.get(trigram);
+      if (list == null) {
+        return new int[0];
+      }
+      lists.add(list);
+    }
+    lists.sort(Comparator.comparingInt(list -> list.size));
+    int[] result = Arrays.copyOf(lists.get(0).slots, lists.get(0).size);
+    int resultSize = result.length;
+    for (Postings list : lists.subList(1, lists.size())) {
+      int kept = 0;
+      int j = 0;
+      for (int i = 0; i < resultSize && j < list.size; i++) {
+        while (j < list.size && list.slots[j] < result[i]) {
+          j++;
+        }
+        if (j < list.size && list.slots[j] == result[i]) {
+          result[kept++] = result[i];
+        }
+      }
+      resultSize = kept;
+    }
+    return Arrays.copyOf(result, resultSize);
+  }
+
+  /**
+   * Rank where a query is found in a name.
+   *
+   * @param name the lowercased name
+   * @param normalized the lowercased query
+   * @return the rank, lower is better
+   */
+  private int getRank(String name, String normalized) {
+    if (name.equals(normalized)) {
+      return RANK_EXACT;
+    }
+    if (name.startsWith(normalized)) {
+      return RANK_PREFIX;
+    }
+    for (int i = name.indexOf(normalized); i > 0; i = name.indexOf(normalized, i + 1)) {
+      if (!Character.isLetterOrDigit(name.charAt(i - 1))) {
+        return RANK_WORD;
+      }
+    }
+    return RANK_OTHER;
+  }
+
+  /**
+   * Add a file to the index.
+   *
+   * @param fileId unique ID of the file
+   * @param name name of the file
+   * @param orderNo order number of the file
+   * @param replace whether a file already in the index is replaced or kept
+   */
+  private void put(String fileId, String name, String orderNo, boolean replace) {
+    if (name == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      String normalized = normalize(name);
+      long time = LdsUtil.getOrderNoTime(orderNo);
+      int position = findPosition(fileId);
+      if (slotTable[position] != 0) {
+        int slot = slotTable[position] - 1;
+        if (!replace || (normalized.equals(names[slot]) && time == times[slot])) {
+          return;
+        }
+        free(slot);
+      }
+      if (slotCount - freedCount >= maxFiles) {
+        log.warn("search index is full, file " + fileId + " is not indexed");
+        return;
+      }
+      int slot = addSlot(fileId, normalized, time);
+      slotTable[findPosition(fileId)] = slot + 1;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Add a slot for a file and its trigrams. The new slot is the largest, so the posting arrays
+   * stay sorted.
+   *
+   * @param fileId unique ID of the file
+   * @param name the lowercased name
+   * @param time time of the order number of the file
+   * @return the new slot
+   */
+  private int addSlot(String fileId, String name, long time) {
+    if (slotCount == names.length) {
+      int capacity = names.length * 2;
+      idHigh = Arrays.copyOf(idHigh, capacity);
+      idLow = Arrays.copyOf(idLow, capacity);
+      times = Arrays.copyOf(times, capacity);
+      names = Arrays.copyOf(names, capacity);
+    }
+    if ((slotCount + 1) * 2 > slotTable.length) {
+      rehash(slotTable.length * 2);
+    }
+    int slot = slotCount++;
+    UUID uuid = parseUuid(fileId);
+    if (uuid == null) {
+      otherIds.put(slot, fileId);
+    } else {
+      idHigh[slot] = uuid.getMostSignificantBits();
+      idLow[slot] = uuid.getLeastSignificantBits();
+    }
+    times[slot] = time;
+    names[slot] = name;
+    for (long trigram : getTrigrams(name)) {
+      postings.computeIfAbsent(trigram, key -> new Postings()).add(slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Free a slot. Its entries stay in the posting arrays, and its ID in the lookup table, until
+   * the next compaction, so the scan at startup does not add back a file removed meanwhile.
+   */
+  private void free(int slot) {
+    if (names[slot] != null) {
+      names[slot] = null;
+      freedCount++;
+    }
+  }
+
+  /** Rebuild the index from its live slots when the freed ones outnumber half of them. */
+  private void maybeCompact() {
+    if (freedCount < COMPACT_MIN_FREED || freedCount * 2 < slotCount - freedCount) {
+      return;
+    }
+    int oldCount = slotCount;
+    long[] oldTimes = times;
+    String[] oldNames = names;
+    List<String> oldIds = new ArrayList<>();
+    for (int slot = 0; slot < oldCount; slot++) {
+      oldIds.add(oldNames[slot] == null ? null : getId(slot));
+    }
+    reset(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(oldCount - freedCount) * 2));
+    for (int slot = 0; slot < oldCount; slot++) {
+      if (oldNames[slot] != null) {
+        String fileId = oldIds.get(slot);
+        int newSlot = addSlot(fileId, oldNames[slot], oldTimes[slot]);
+        slotTable[findPosition(fileId)] = newSlot + 1;
+      }
+    }
+    postings.values().forEach(Postings::trim);
+  }
+
+  /** Empty the index, with room for the given number of slots. */
+  private void reset(int capacity) {
+    idHigh = new long[capacity];
+    idLow = new long[capacity];
+    times = new long[capacity];
+    names = new String[capacity];
+    otherIds = new HashMap<>();
+    slotTable = new int[capacity * 2];
+    postings = new HashMap<>();
+    slotCount = 0;
+    freedCount = 0;
+  }
+
+  /** Rebuild the ID lookup table with a new size, a power of two. */
+  private void rehash(int tableSize) {
+    int[] oldTable = slotTable;
+    slotTable = new int[tableSize];
+    for (int entry : oldTable) {
+      if (entry != 0) {
+        slotTable[findPosition(getId(entry - 1))] = entry;
+      }
+    }
+  }
+
+  /**
+   * Find the position of a file ID in the lookup table, by linear probing.
+   *
+   * @param fileId unique ID of the file
+   * @return the position holding the slot of the file, or the empty position where it belongs
+   */
+  private int findPosition(String fileId) {
+    int mask = slotTable.length - 1;
+    int position = fileId.hashCode() & mask;
+    while (slotTable[position] != 0 && !getId(slotTable[position] - 1).equals(fileId)) {
+      position = (position + 1) & mask;
+    }
+    return position;
+  }
+
+  /** Get the ID of the file of a slot. */
+  private String getId(int slot) {
+    String fileId = otherIds.get(slot);
+    return fileId != null ? fileId : new UUID(idHigh[slot], idLow[slot]).toString();
+  }
+
+  /**
+   * Parse a file ID that is the canonical form of a UUID, so it can be kept in two longs.
+   *
+   * @param fileId unique ID of the file
+   * @return the UUID, or null if the ID is in another form
+   */
+  private static UUID parseUuid(String fileId) {
+    try {
+      UUID uuid = UUID.fromString(fileId);
+      return uuid.toString().equals(fileId) ? uuid : null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** Lowercase a name or a query, so that matching ignores case. */
+  private static String normalize(String text) {
+    return text.trim().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Get the distinct trigrams of a text, each packed into a long.
+   *
+   * @param text the lowercased text
+   * @return packed trigrams
+   */
+  private static Set<Long> getTrigrams(String text) {
+    Set<Long> trigrams = new HashSet<>();
+    for (int i = 0; i + TRIGRAM <= text.length(); i++) {
+      trigrams.add(((long) text.charAt(i) << 32)
+          | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+    }
+    return trigrams;
+  }
+
+  /** Growable sorted array of the slots whose names contain a trigram. */
+  private static final class Postings {
+    private int[] slots = new int[INITIAL_POSTINGS];
+    private int size;
+
+    private void add(int slot) {
+      if (size == slots.length) {
+        slots = Arrays.copyOf(slots, size + (size >> 1) + 1);
+      }
+      slots[size++] = slot;
+    }
+
+    private void trim() {
+      slots = Arrays.copyOf(slots, size);
+    }
+  }
+
+  /** The last file of the previous page, with its rank and order. */
+  private static final class Cursor {
+    private final int rank;
+    private final long time;
+    private final String id;
+
+    private Cursor(int rank, long time, String id) {
+      this.rank = rank;
+      this.time = time;
+      this.id = id;
+    }
+  }
+}
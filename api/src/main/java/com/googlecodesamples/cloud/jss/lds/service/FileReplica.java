@@ -0,0 +1,269 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
+import com.googlecodesamples.cloud.jss.lds.model.ReplicaStatsResponse;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.springframework.beans.BeanUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * In-memory copy of the file collection, with secondary indexes by order number and by tag.
+ *
+ * <p>The replica is filled and updated from the snapshots of a listener on the collection. Each
+ * snapshot is applied atomically and increments the version of the replica, which stands in for
+ * the change marker while the replica serves reads. Files are returned as copies, so that signing
+ * their URLs does not change the replica.
+ */
+@Component
+public class FileReplica {
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, BaseFile> files = new HashMap<>();
+  private final NavigableMap<String, String> byOrderNo = new TreeMap<>(Comparator.reverseOrder());
+  private final Map<String, NavigableMap<String, String>> byTag = new HashMap<>();
+  private volatile boolean synced;
+  private volatile long version;
+  private long snapshotCount;
+  private long resyncCount;
+  private long lastSnapshotTime;
+  private long lastLagMillis;
+  private long maxLagMillis;
+
+  /**
+   * Check whether the replica holds the whole collection and is kept in sync.
+   *
+   * @return true if reads can be served from the replica
+   */
+  public boolean isSynced() {
+    return synced;
+  }
+
+  /**
+   * Get the version of the replica, which changes with every applied snapshot. Versions start
+   * from the time of the full load in microseconds, so they do not repeat the change markers of
+   * the collection or the versions of an earlier load.
+   *
+   * @return the version
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Replace the content of the replica with a full snapshot of the collection, and mark it as
+   * synced.
+   *
+   * @param snapshotFiles all files of the collection
+   * @param readTime time the snapshot was read at, in milliseconds
+   */
+  public void load(Collection<BaseFile> snapshotFiles, long readTime) {
+    lock.writeLock().lock();
+    try {
+      files.clear();
+      byOrderNo.clear();
+      byTag.clear();
+      snapshotFiles.forEach(this::put);
+      version = System.currentTimeMillis() * 1000;
+      resyncCount++;
+      recordSnapshot(readTime);
+      synced = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Apply the changes of a snapshot.
+   *
+   * @param upserts files added or modified
+   * @param removedIds IDs of the files removed
+   * @param readTime time the snapshot was read at, in milliseconds
+   */
+  public void apply(Collection<BaseFile> upserts, Collection<String> removedIds, long readTime) {
+    lock.writeLock().lock();
+    try {
+      removedIds.forEach(this::remove);
+      upserts.forEach(file -> {
+        remove(file.getId());
+        put(file);
+      });
+      version++;
+      recordSnapshot(readTime);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Stop serving reads until the next full load, after the listener failed. */
+  public void markUnsynced() {
+    synced = false;
+  }
+
+  /**
+   * Get a copy of a file.
+   *
+   * @param fileId unique ID of the file
+   * @return the file, or null if it does not exist
+   */
+  public BaseFile getFile(String fileId) {
+    lock.readLock().lock();
+    try {
+      return copy(files.get(fileId));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Search files with any of the given tags, newest first, with the same pagination as the
+   * query on the collection.
+   *
+   * @param tags list of tags label the files, or empty for all files
+   * @param orderNo order number of the last file of the previous page
+   * @param size number of files return
+   * @return copies of the files
+   */
+  public List<BaseFile> getFilesByTag(List<String> tags, String orderNo, int size) {
+    lock.readLock().lock();
+    try {
+      NavigableMap<String, String> page = new TreeMap<>(Comparator.reverseOrder());
+      if (tags.isEmpty()) {
+        addPage(page, byOrderNo, orderNo, size);
+      } else {
+        tags.stream().distinct().map(byTag::get)
+            .filter(Objects::nonNull)
+            .forEach(index -> addPage(page, index, orderNo, size));
+      }
+      List<BaseFile> result = new ArrayList<>();
+      for (String fileId : page.values()) {
+        if (result.size() == size) {
+          break;
+        }
+        result.add(copy(files.get(fileId)));
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the statistics of the replica.
+   *
+   * @param enabled whether the replica mode is configured
+   * @return size, sync state, snapshot counts and lag of the replica
+   */
+  public ReplicaStatsResponse getStats(boolean enabled) {
+    lock.readLock().lock();
+    try {
+      long snapshotAge = lastSnapshotTime == 0 ? 0 : System.currentTimeMillis() - lastSnapshotTime;
+      return new ReplicaStatsResponse(enabled, synced, files.size(), version, snapshotCount,
+          resyncCount, lastLagMillis, maxLagMillis, snapshotAge);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Add the entries of an index after the cursor to a page, at most size of them.
+   *
+   * @param page entries of the page, by order number
+   * @param index index of files by order number, newest first
+   * @param orderNo order number of the last file of the previous page
+   * @param size number of files return
+   */
+  private void addPage(NavigableMap<String, String> page, NavigableMap<String, String> index,
+      String orderNo, int size) {
+    NavigableMap<String, String> entries =
+        StringUtils.hasText(orderNo) ? index.tailMap(orderNo, false) : index;
+    int added = 0;
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      if (added++ == size) {
+        break;
+      }
+      page.put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /** Add a file and its index entries. */
+  private void put(BaseFile file) {
+    files.put(file.getId(), file);
+    if (file.getOrderNo() == null) {
+      return;
+    }
+    byOrderNo.put(file.getOrderNo(), file.getId());
+    if (file.getTags() != null) {
+      file.getTags().forEach(tag -> byTag
+          .computeIfAbsent(tag, key -> new TreeMap<>(Comparator.reverseOrder()))
+          .put(file.getOrderNo(), file.getId()));
+    }
+  }
+
+  /** Remove a file and its index entries. */
+  private void remove(String fileId) {
+    BaseFile file = files.remove(fileId);
+    if (file == null || file.getOrderNo() == null) {
+      return;
+    }
+    byOrderNo.remove(file.getOrderNo());
+    if (file.getTags() != null) {
+      file.getTags().forEach(tag -> {
+        NavigableMap<String, String> index = byTag.get(tag);
+        if (index != null) {
+          index.remove(file.getOrderNo());
+          if (index.isEmpty()) {
+            byTag.remove(tag);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Record the arrival of a snapshot. The lag is the time between the read time of the snapshot
+   * on the server and its application here.
+   */
+  private void recordSnapshot(long readTime) {
+    long now = System.currentTimeMillis();
+    snapshotCount++;
+    lastSnapshotTime = now;
+    lastLagMillis = Math.max(0, now - readTime);
+    maxLagMillis = Math.max(maxLagMillis, lastLagMillis);
+  }
+
+  /** Copy a file, so the caller can change it. */
+  private BaseFile copy(BaseFile file) {
+    if (file == null) {
+      return null;
+    }
+    BaseFile copy = new BaseFile();
+    BeanUtils.copyProperties(file, copy);
+    return copy;
+  }
+}
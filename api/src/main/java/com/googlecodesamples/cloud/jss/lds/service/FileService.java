@@ -16,28 +16,64 @@
 
 package com.googlecodesamples.cloud.jss.lds.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.cloud.Timestamp;
+import com.google.cloud.storage.Blob;
 import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
+import com.googlecodesamples.cloud.jss.lds.model.CacheStatsResponse;
+import com.googlecodesamples.cloud.jss.lds.model.FileDeleteResponse;
+import com.googlecodesamples.cloud.jss.lds.model.FileError;
+import com.googlecodesamples.cloud.jss.lds.model.FileListResponse;
 import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
+import com.googlecodesamples.cloud.jss.lds.model.PurgeStatusResponse;
+import com.googlecodesamples.cloud.jss.lds.model.ReplicaStatsResponse;
+import com.googlecodesamples.cloud.jss.lds.model.TagListResponse;
+import com.googlecodesamples.cloud.jss.lds.model.ThumbnailCacheStatsResponse;
+import com.googlecodesamples.cloud.jss.lds.model.ThumbnailState;
+import com.googlecodesamples.cloud.jss.lds.model.UploadSession;
 import com.googlecodesamples.cloud.jss.lds.util.LdsUtil;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import net.coobird.thumbnailator.Thumbnails;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 /** Backend service controller for Firestore and CloudStorage */
 @Service
 public class FileService {
   private static final Logger log = LoggerFactory.getLogger(FirestoreService.class);
-  private static final int THUMBNAIL_SIZE = 300;
+  private static final int LIST_ETAG_CACHE_SIZE = 10000;
   private final FirestoreService firestoreService;
   private final StorageService storageService;
+  private final ThumbnailService thumbnailService;
+  private final SignedUrlService signedUrlService;
+  private final PurgeService purgeService;
+  private final TagService tagService;
+  private final ThumbnailCache thumbnailCache;
+  private final Executor uploadExecutor;
+  private final Cache<String, String> listETagCache = Caffeine.newBuilder()
+      .maximumSize(LIST_ETAG_CACHE_SIZE)
+      .build();
 
   @Value("${resource.path}")
   private String basePath;
@@ -45,62 +81,262 @@ public class FileService {
   @Value("${storage.bucket.name}")
   private String bucketName;
 
-  public FileService(FirestoreService firestoreService, StorageService storageService) {
+  @Value("${upload.session.ttl.ms}")
+  private long uploadTtlMillis;
+
+  public FileService(
+      FirestoreService firestoreService,
+      StorageService storageService,
+      ThumbnailService thumbnailService,
+      SignedUrlService signedUrlService,
+      PurgeService purgeService,
+      TagService tagService,
+      ThumbnailCache thumbnailCache,
+      @Qualifier("uploadExecutor") Executor uploadExecutor) {
     this.firestoreService = firestoreService;
     this.storageService = storageService;
+    this.thumbnailService = thumbnailService;
+    this.signedUrlService = signedUrlService;
+    this.purgeService = purgeService;
+    this.tagService = tagService;
+    this.thumbnailCache = thumbnailCache;
+    this.uploadExecutor = uploadExecutor;
   }
 
   /**
    * Upload files to Firestore and Cloud Storage.
    *
+   * <p>The files are written to Cloud Storage concurrently on the upload executor, under the hash
+   * of their content, and content that is already stored is not written again. A file that
+   * fails is reported in the errors of the response and does not abort the other files. The
+   * metadata of all stored files is then committed to Firestore in batches, and the thumbnails
+   * of the images are requested from the thumbnail pipeline. The files of a batch that fails are
+   * reported in the errors too, and only they release their references to their content.
+   *
    * @param files list of files upload to the server
    * @param tags list of tags label the files
-   * @return list of uploaded files
+   * @return list of uploaded files in the order of the input and list of failed files
    */
-  public List<BaseFile> uploadFiles(List<MultipartFile> files, List<String> tags)
-      throws InterruptedException, ExecutionException, IOException {
+  public FileListResponse uploadFiles(List<MultipartFile> files, List<String> tags)
+      throws InterruptedException, ExecutionException {
     log.info("entering uploadFiles()");
+    List<CompletableFuture<FileMeta>> futures = files.stream()
+        .map(file -> CompletableFuture.supplyAsync(() -> uploadFile(file, tags), uploadExecutor))
+        .collect(Collectors.toList());
+    List<FileMeta> fileMetaList = new ArrayList<>();
+    List<FileError> errorList = new ArrayList<>();
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        fileMetaList.add(futures.get(i).join());
+      } catch (CompletionException e) {
+        String fileName = files.get(i).getOriginalFilename();
+        log.error("failed to upload file " + fileName, e.getCause());
+        errorList.add(new FileError(fileName, e.getCause().getMessage()));
+      }
+    }
     List<BaseFile> fileList = new ArrayList<>();
-    for (MultipartFile file : files) {
-      String fileId = LdsUtil.generateUuid();
-      BaseFile newFile = createOrUpdateFile(file, tags, fileId, fileId, file.getSize());
-      fileList.add(newFile);
+    if (fileMetaList.isEmpty()) {
+      return new FileListResponse(fileList, errorList);
+    }
+    Map<String, String> failures = new HashMap<>();
+    List<Timestamp> updateTimes = firestoreService.saveAll(fileMetaList, failures);
+    for (int i = 0; i < fileMetaList.size(); i++) {
+      FileMeta fileMeta = fileMetaList.get(i);
+      String failure = failures.get(fileMeta.getId());
+      if (failure != null) {
+        // only the files of the failed batches were not saved, so only they drop their reference
+        log.error("failed to save file " + fileMeta.getName() + ": " + failure);
+        releaseBlobs(fileMeta);
+        errorList.add(new FileError(fileMeta.getName(), failure));
+        continue;
+      }
+      thumbnailService.submit(fileMeta);
+      fileList.add(toBaseFile(fileMeta, null, updateTimes.get(i)));
+    }
+    return new FileListResponse(fileList, errorList);
+  }
+
+  /**
+   * Start a resumable upload of a single file.
+   *
+   * @param name name of the file
+   * @param contentType content type of the file, or null to guess it from the name
+   * @param size size of the file in bytes
+   * @return the upload session
+   */
+  public UploadSession createUpload(String name, String contentType, long size)
+      throws InterruptedException, ExecutionException, IOException {
+    log.info("entering createUpload()");
+    if (size < 0) {
+      throw new IllegalArgumentException("size must not be negative");
+    }
+    if (!StringUtils.hasText(contentType)) {
+      contentType = MediaTypeFactory.getMediaType(name)
+          .orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
+    }
+    String uploadId = LdsUtil.generateUuid();
+    String fileBucketPath = LdsUtil.getFileBucketPath(basePath, uploadId);
+    String sessionUri =
+        storageService.createUploadSession(bucketName, fileBucketPath, contentType, size);
+    UploadSession session = new UploadSession(uploadId, sessionUri, fileBucketPath, name, size);
+    firestoreService.saveUploadSession(session);
+    return session;
+  }
+
+  /**
+   * Search a resumable upload with given uploadId. Uploads older than their time to live are
+   * left to the sweeper and treated as if they did not exist.
+   *
+   * @param uploadId unique id of the upload
+   * @return the upload session, or null if it does not exist or has expired
+   */
+  public UploadSession getUpload(String uploadId)
+      throws InterruptedException, ExecutionException {
+    log.info("entering getUpload()");
+    UploadSession session = firestoreService.getUploadSession(uploadId);
+    long cutoff = System.currentTimeMillis() - uploadTtlMillis;
+    return session == null || session.getCreateTime() < cutoff ? null : session;
+  }
+
+  /**
+   * Write the next chunk of a resumable upload, streaming it straight to Cloud Storage.
+   *
+   * @param session the upload session, with the offset the chunk starts at
+   * @param length length of the chunk in bytes
+   * @param content content of the chunk
+   * @return the upload session with the number of bytes persisted so far
+   */
+  public UploadSession writeUploadChunk(UploadSession session, long length, InputStream content)
+      throws InterruptedException, ExecutionException, IOException {
+    log.info("entering writeUploadChunk()");
+    long offset = storageService.writeUploadChunk(
+        session.getSessionUri(), session.getOffset(), length, session.getSize(), content);
+    firestoreService.updateUploadOffset(session.getId(), offset);
+    session.setOffset(offset);
+    return session;
+  }
+
+  /**
+   * Read the number of bytes persisted by a resumable upload from Cloud Storage, which may be
+   * ahead of the offset last acknowledged when a chunk was interrupted.
+   *
+   * @param session the upload session
+   * @return the upload session with the number of bytes persisted so far
+   */
+  public UploadSession refreshUpload(UploadSession session)
+      throws InterruptedException, ExecutionException, IOException {
+    log.info("entering refreshUpload()");
+    long offset = storageService.getUploadOffset(session.getSessionUri(), session.getSize());
+    if (offset != session.getOffset()) {
+      firestoreService.updateUploadOffset(session.getId(), offset);
+      session.setOffset(offset);
     }
-    return fileList;
+    return session;
   }
 
   /**
-   * Update a file to Firestore and Cloud Storage.
+   * Save the metadata of a file whose resumable upload is complete.
    *
-   * @param newFile new file upload to the server
+   * <p>The file takes the ID of the upload. The session is deleted once the file is saved, so
+   * completing the upload again finds no session. The content is stored under the upload rather
+   * than under its hash, so it is not shared with other files.
+   *
+   * @param session the completed upload session
+   * @param tags list of tags label the file
+   * @return the uploaded file
+   */
+  public BaseFile completeUpload(UploadSession session, List<String> tags)
+      throws InterruptedException, ExecutionException {
+    log.info("entering completeUpload()");
+    FileMeta fileMeta = new FileMeta(
+        session.getId(), session.getPath(), session.getName(), tags, session.getSize());
+    Timestamp updateTime = firestoreService.save(fileMeta);
+    firestoreService.deleteUploadSession(session.getId());
+    thumbnailService.submit(fileMeta);
+    return toBaseFile(fileMeta, null, updateTime);
+  }
+
+  /**
+   * Update a file to Firestore and Cloud Storage. The file is read and replaced in one
+   * transaction, so the content released is the one the file referred to when it was replaced.
+   *
+   * @param newFile new file upload to the server, or null to update the tags only
    * @param tags list of tags label the new file
-   * @param file previously uploaded file
-   * @return the updated file
+   * @param fileId unique id of the file
+   * @return the updated file, or null if the file does not exist
    */
-  public BaseFile updateFile(MultipartFile newFile, List<String> tags, BaseFile file)
+  public BaseFile updateFile(MultipartFile newFile, List<String> tags, String fileId)
       throws InterruptedException, ExecutionException, IOException {
     log.info("entering updateFile()");
-    String fileId = file.getId();
     if (newFile == null) {
-      String pathId = LdsUtil.getPathId(file.getPath());
-      return createOrUpdateFileMeta(tags, fileId, pathId, file.getName(), file.getSize());
+      FirestoreService.FileUpdate update =
+          firestoreService.update(fileId, previous -> updateFileMeta(tags, previous), false);
+      return update == null ? null : toBaseFile(update);
+    }
+    FileMeta fileMeta = writeFile(newFile, tags, fileId);
+    FirestoreService.FileUpdate update;
+    try {
+      // the new content holds its own reference, even if it is the same as the old content
+      update = firestoreService.update(fileId, previous -> fileMeta, true);
+    } catch (InterruptedException | ExecutionException e) {
+      releaseBlobs(fileMeta);
+      throw e;
     }
-    storageService.delete(bucketName, file.getPath());
-    storageService.delete(bucketName, file.genThumbnailPath());
-    String newFileId = LdsUtil.generateUuid();
-    return createOrUpdateFile(newFile, tags, fileId, newFileId, newFile.getSize());
+    if (update == null) {
+      releaseBlobs(fileMeta);
+      return null;
+    }
+    thumbnailService.submit(fileMeta);
+    thumbnailCache.invalidate(update.getPrevious().genThumbnailPath());
+    return toBaseFile(update);
   }
 
   /**
-   * Delete a file from Firestore and Cloud Storage.
+   * Delete a file from Firestore and Cloud Storage. The file and its reference to its content
+   * are removed together, so deleting a file twice releases its content once.
    *
-   * @param file the uploaded file
+   * @param fileId unique id of the file
+   * @return true if the file was deleted, false if it did not exist
    */
-  public void deleteFile(BaseFile file) throws InterruptedException, ExecutionException {
+  public boolean deleteFile(String fileId) throws InterruptedException, ExecutionException {
     log.info("entering deleteFile()");
-    firestoreService.delete(file.getId());
-    storageService.delete(bucketName, file.getPath());
-    storageService.delete(bucketName, file.genThumbnailPath());
+    FileMeta fileMeta = firestoreService.delete(fileId);
+    if (fileMeta == null) {
+      return false;
+    }
+    thumbnailCache.invalidate(fileMeta.genThumbnailPath());
+    return true;
+  }
+
+  /**
+   * Delete many files with given fileIds from Firestore and Cloud Storage.
+   *
+   * @param fileIds unique ids of the files
+   * @return ids of the deleted files, and the files that failed or do not exist
+   */
+  public FileDeleteResponse deleteFiles(List<String> fileIds)
+      throws InterruptedException, ExecutionException {
+    log.info("entering deleteFiles()");
+    List<FileMeta> fileMetas = firestoreService.getFileMetasByIds(fileIds);
+    Set<String> foundIds = fileMetas.stream().map(FileMeta::getId).collect(Collectors.toSet());
+    List<FileError> errorList = fileIds.stream()
+        .distinct()
+        .filter(fileId -> !foundIds.contains(fileId))
+        .map(fileId -> new FileError(fileId, null, "file not found"))
+        .collect(Collectors.toList());
+    return deleteFiles(fileMetas, errorList);
+  }
+
+  /**
+   * Delete all files with any of the given tags from Firestore and Cloud Storage.
+   *
+   * @param tags list of tags label the files
+   * @return ids of the deleted files, and the files that failed
+   */
+  public FileDeleteResponse deleteFilesByTag(List<String> tags)
+      throws InterruptedException, ExecutionException {
+    log.info("entering deleteFilesByTag()");
+    return deleteFiles(firestoreService.getFileMetasByTag(tags), new ArrayList<>());
   }
 
   /**
@@ -117,6 +353,125 @@ public class FileService {
     return firestoreService.getFilesByTag(tags, orderNo, size);
   }
 
+  /**
+   * Search files with given tags without blocking the calling thread.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @param fields names of the fields read, or empty for all fields
+   * @return future of the list of uploaded files
+   */
+  public CompletableFuture<List<BaseFile>> getFilesByTagAsync(
+      List<String> tags, String orderNo, int size, List<String> fields) {
+    log.info("entering getFilesByTagAsync()");
+    return firestoreService.getFilesByTagAsync(tags, orderNo, size, fields);
+  }
+
+  /**
+   * Search files with given tags and pass each file to the consumer as it is read.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @param fields names of the fields read, or empty for all fields
+   * @param consumer receives the files in order
+   */
+  public void streamFilesByTag(List<String> tags, String orderNo, int size, List<String> fields,
+      Consumer<BaseFile> consumer) throws InterruptedException, ExecutionException {
+    log.info("entering streamFilesByTag()");
+    firestoreService.streamFilesByTag(tags, orderNo, size, fields, consumer);
+  }
+
+  /**
+   * Search files that have all the given tags, through the tag index, without blocking the
+   * calling thread.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @param fields names of the fields read, or empty for all fields
+   * @return future of the list of uploaded files
+   */
+  public CompletableFuture<List<BaseFile>> getFilesByAllTagsAsync(
+      List<String> tags, String orderNo, int size, List<String> fields) {
+    log.info("entering getFilesByAllTagsAsync()");
+    return firestoreService.getFilesByAllTagsAsync(tags, orderNo, size, fields);
+  }
+
+  /**
+   * Search files that have all the given tags, through the tag index, and pass each file to the
+   * consumer as it is read.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @param fields names of the fields read, or empty for all fields
+   * @param consumer receives the files in order
+   */
+  public void streamFilesByAllTags(List<String> tags, String orderNo, int size,
+      List<String> fields, Consumer<BaseFile> consumer)
+      throws InterruptedException, ExecutionException {
+    log.info("entering streamFilesByAllTags()");
+    firestoreService.streamFilesByAllTags(tags, orderNo, size, fields, consumer);
+  }
+
+  /**
+   * Search files whose names contain the query without blocking the calling thread.
+   *
+   * @param query the substring of the names, at least three chars long
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @return future of the list of uploaded files, ranked
+   */
+  public CompletableFuture<List<BaseFile>> searchFilesByNameAsync(
+      String query, String orderNo, int size) {
+    log.info("entering searchFilesByNameAsync()");
+    return firestoreService.searchFilesByNameAsync(query, orderNo, size);
+  }
+
+  /**
+   * Get the change marker of the file collection without blocking the calling thread.
+   *
+   * @return future of the current marker
+   */
+  public CompletableFuture<Long> getChangeMarkerAsync() {
+    return firestoreService.getChangeMarkerAsync();
+  }
+
+  /**
+   * Get the ETag last computed for a search while the collection had the given change marker.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @param fields names of the fields returned, or empty for all fields
+   * @param matchAll whether the files must have all the tags rather than any of them
+   * @param changeMarker change marker of the collection
+   * @return the ETag, or null if this search was not run at this change marker
+   */
+  public String getListETag(List<String> tags, String orderNo, int size, List<String> fields,
+      boolean matchAll, long changeMarker) {
+    return listETagCache.getIfPresent(
+        genListKey(tags, orderNo, size, fields, matchAll, changeMarker));
+  }
+
+  /**
+   * Remember the ETag of a search result computed while the collection had the given marker.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @param fields names of the fields returned, or empty for all fields
+   * @param matchAll whether the files must have all the tags rather than any of them
+   * @param changeMarker change marker of the collection read before the search
+   * @param etag the ETag of the search result
+   */
+  public void putListETag(List<String> tags, String orderNo, int size, List<String> fields,
+      boolean matchAll, long changeMarker, String etag) {
+    listETagCache.put(genListKey(tags, orderNo, size, fields, matchAll, changeMarker), etag);
+  }
+
   /**
    * Search a single file with given fileId.
    *
@@ -128,67 +483,283 @@ public class FileService {
     return firestoreService.getFileById(fileId);
   }
 
-  /** Delete all files from Firestore and Cloud Storage. */
-  public void resetFile() throws InterruptedException, ExecutionException {
+  /**
+   * Search a single file with given fileId without blocking the calling thread.
+   *
+   * @param fileId unique id of the file
+   * @return future of the uploaded file, completed with null if the file does not exist
+   */
+  public CompletableFuture<BaseFile> getFileByIdAsync(String fileId) {
+    log.info("entering getFileByIdAsync()");
+    return firestoreService.getFileByIdAsync(fileId);
+  }
+
+  /**
+   * Get the bytes of the thumbnail of a file, through the thumbnail cache.
+   *
+   * @param file the image file
+   * @return the thumbnail, or null if it is not created yet
+   */
+  public byte[] getThumbnail(BaseFile file) {
+    log.info("entering getThumbnail()");
+    return thumbnailCache.get(file.genThumbnailPath());
+  }
+
+  /**
+   * Get the statistics of the tiers of the thumbnail cache.
+   *
+   * @return hits, misses, entries and bytes held of each tier
+   */
+  public ThumbnailCacheStatsResponse getThumbnailCacheStats() {
+    return thumbnailCache.getStats();
+  }
+
+  /**
+   * Get the path of a resized image of a file, creating it on first use.
+   *
+   * @param file the image file
+   * @param width requested width
+   * @param height requested height, or null to keep the aspect ratio
+   * @param fit how the image fits the requested size: contain, cover or fill
+   * @return path of the resized image in Cloud Storage
+   */
+  public String getImagePath(BaseFile file, int width, Integer height, String fit)
+      throws IOException {
+    log.info("entering getImagePath()");
+    return thumbnailService.getOrCreateDerivative(file, width, height, fit);
+  }
+
+  /**
+   * Open a stream to read a file from Cloud Storage.
+   *
+   * @param path path of the file in the bucket
+   * @return input stream of the content, to be closed by the caller
+   */
+  public InputStream openContent(String path) {
+    return storageService.read(bucketName, path);
+  }
+
+  /**
+   * Get the metadata of the content of a file in Cloud Storage.
+   *
+   * @param file the file
+   * @return the metadata of the content, or null if it does not exist
+   */
+  public Blob getContent(BaseFile file) {
+    log.info("entering getContent()");
+    return storageService.get(bucketName, file.getPath());
+  }
+
+  /**
+   * Copy a range of the content of a file to an output stream.
+   *
+   * @param content the metadata of the content, pinning the generation to read
+   * @param start offset of the first byte of the range
+   * @param length number of bytes to copy
+   * @param outputStream the stream to copy to, not closed
+   */
+  public void writeContent(Blob content, long start, long length, OutputStream outputStream)
+      throws IOException {
+    storageService.copyRange(content.getBlobId(), start, length, outputStream);
+  }
+
+  /**
+   * Get the statistics of the file metadata cache.
+   *
+   * @return statistics of the cache
+   */
+  public CacheStatsResponse getMetadataCacheStats() {
+    return firestoreService.getCacheStats();
+  }
+
+  /**
+   * Get the statistics of the replica of the file metadata.
+   *
+   * @return size, sync state, snapshot counts and lag of the replica
+   */
+  public ReplicaStatsResponse getReplicaStats() {
+    return firestoreService.getReplicaStats();
+  }
+
+  /**
+   * Get the tags with their file counts and total sizes, from the last rollup of the counters.
+   *
+   * @return statistics of the tags
+   */
+  public TagListResponse getTags() throws InterruptedException, ExecutionException {
+    return tagService.getTags();
+  }
+
+  /**
+   * Start deleting all files from Firestore and Cloud Storage in the background.
+   *
+   * @return true if the purge was started, false if one is running already
+   */
+  public boolean resetFile() {
     log.info("entering resetFile()");
-    firestoreService.deleteCollection();
-    storageService.batchDelete(bucketName);
+    return purgeService.start();
+  }
+
+  /**
+   * Get the progress of the purge of all files.
+   *
+   * @return state, counts, rate and ETA of the purge
+   */
+  public PurgeStatusResponse getResetStatus() {
+    return purgeService.getStatus();
+  }
+
+  /**
+   * Delete many files from Firestore, together with their references to their content. The
+   * content that is no longer referenced is left to the sweeper.
+   *
+   * @param fileMetas metadata of the files
+   * @param errorList errors of the files already excluded
+   * @return ids of the deleted files, and the files that failed
+   */
+  private FileDeleteResponse deleteFiles(List<FileMeta> fileMetas, List<FileError> errorList)
+      throws InterruptedException {
+    Map<String, String> failures = firestoreService.deleteAll(fileMetas);
+    List<String> deletedIds = new ArrayList<>();
+    for (FileMeta fileMeta : fileMetas) {
+      String failure = failures.get(fileMeta.getId());
+      if (failure != null) {
+        errorList.add(new FileError(fileMeta.getId(), fileMeta.getName(), failure));
+        continue;
+      }
+      deletedIds.add(fileMeta.getId());
+      thumbnailCache.invalidate(fileMeta.genThumbnailPath());
+    }
+    return new FileDeleteResponse(deletedIds, errorList);
+  }
+
+  /**
+   * Write a single new file to Cloud Storage, wrapping checked exceptions for the upload executor.
+   *
+   * @param file file upload to the server
+   * @param tags list of tags label the file
+   * @return metadata of the stored file, not yet saved to Firestore
+   */
+  private FileMeta uploadFile(MultipartFile file, List<String> tags) {
+    try {
+      return writeFile(file, tags, LdsUtil.generateUuid());
+    } catch (IOException | ExecutionException e) {
+      throw new CompletionException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CompletionException(e);
+    }
   }
 
   /**
-   * Create or update a file in Cloud Storage with the given fileId.
+   * Write the content of a file to Cloud Storage under the hash of the content, and add a
+   * reference to it.
+   *
+   * <p>The upload is hashed from the local copy kept by the multipart resolver before anything is
+   * sent, so content that is already stored costs a read of the local copy and a transaction
+   * instead of a write to Cloud Storage. Writing the same content twice is harmless, so the
+   * content is also written when the reference exists but the blob does not.
+   *
+   * <p>New content is therefore read twice from the local copy: once to hash it, and again to
+   * send it. This is deliberate. Hashing while streaming to a temporary object would read the
+   * local copy once, but it would send every upload over the network and then copy it to its
+   * content address, including the duplicates that this method skips.
    *
    * @param file file upload to the server
    * @param tags list of tags label the file
    * @param fileId unique ID of the file
-   * @param newFileId unique ID of the new file (for referencing Cloud Storage)
-   * @param size size of the file
-   * @return file data
+   * @return metadata of the stored file
    */
-  private BaseFile createOrUpdateFile(
-      MultipartFile file, List<String> tags, String fileId, String newFileId, long size)
-      throws InterruptedException, ExecutionException, IOException {
-    BaseFile newFile =
-        createOrUpdateFileMeta(tags, fileId, newFileId, file.getOriginalFilename(), size);
-    storageService.save(bucketName, newFile.getPath(), file.getContentType(), file.getBytes());
-    if (newFile.checkImageFileType()) {
-      createThumbnail(file, newFile.genThumbnailPath());
+  private FileMeta writeFile(MultipartFile file, List<String> tags, String fileId)
+      throws IOException, InterruptedException, ExecutionException {
+    String contentId;
+    try (InputStream content = file.getInputStream()) {
+      contentId = LdsUtil.hashContent(content);
+    }
+    String fileBucketPath = LdsUtil.getFileBucketPath(basePath, contentId);
+    FileMeta fileMeta =
+        new FileMeta(fileId, fileBucketPath, file.getOriginalFilename(), tags, file.getSize());
+    boolean firstReference = firestoreService.acquireBlob(contentId);
+    try {
+      if (firstReference || !storageService.exists(bucketName, fileBucketPath)) {
+        try (InputStream content = file.getInputStream()) {
+          storageService.save(bucketName, fileBucketPath, file.getContentType(), content);
+        }
+      } else if (fileMeta.getThumbnailState() == ThumbnailState.PENDING
+          && storageService.exists(bucketName, fileMeta.genThumbnailPath())) {
+        fileMeta.setThumbnailState(ThumbnailState.READY);
+      }
+    } catch (IOException | RuntimeException e) {
+      releaseBlobs(fileMeta);
+      throw e;
     }
-    return newFile;
+    return fileMeta;
   }
 
   /**
-   * Create or update the metadata of a file in Firestore with the given fileId.
+   * Remove the reference of a file to its content. If no other file refers to the content, a
+   * tombstone is recorded and the content and the thumbnail are deleted from Cloud Storage later
+   * by the sweeper, off the request path. Failures are logged, at worst leaving an unreferenced
+   * blob in Cloud Storage.
+   *
+   * @param fileMeta metadata of the file
+   */
+  private void releaseBlobs(FileMeta fileMeta) {
+    try {
+      firestoreService.releaseBlob(LdsUtil.getPathId(fileMeta.getPath()), fileMeta.getPath());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("interrupted while releasing " + fileMeta.getPath(), e);
+    } catch (ExecutionException | RuntimeException e) {
+      log.error("failed to release " + fileMeta.getPath(), e);
+    }
+  }
+
+  /**
+   * Build the new metadata of a file whose tags are updated, keeping its content.
    *
    * @param tags list of tags label the file
-   * @param fileId unique id of the file
-   * @param newFileId unique id of the new file (for referencing Cloud Storage)
-   * @param fileName name of the file
-   * @param size size of the file
+   * @param oldFile current version of the file, as read in the update transaction
+   * @return metadata of the new version
+   */
+  private FileMeta updateFileMeta(List<String> tags, BaseFile oldFile) {
+    String fileBucketPath =
+        LdsUtil.getFileBucketPath(basePath, LdsUtil.getPathId(oldFile.getPath()));
+    FileMeta fileMeta = new FileMeta(
+        oldFile.getId(), fileBucketPath, oldFile.getName(), tags, oldFile.getSize());
+    fileMeta.setThumbnailState(oldFile.getThumbnailState());
+    return fileMeta;
+  }
+
+  /**
+   * Build the file data returned to the client from an update just written to Firestore.
+   *
+   * @param update the previous and new versions of the file
    * @return file data
    */
-  private BaseFile createOrUpdateFileMeta(
-      List<String> tags, String fileId, String newFileId, String fileName, long size)
-      throws InterruptedException, ExecutionException {
-    String fileBucketPath = LdsUtil.getFileBucketPath(basePath, newFileId);
-    FileMeta fileMeta = new FileMeta(fileId, fileBucketPath, fileName, tags, size);
-    firestoreService.save(fileMeta);
-    return getFileById(fileId);
+  private BaseFile toBaseFile(FirestoreService.FileUpdate update) {
+    return toBaseFile(update.getFileMeta(), update.getPrevious().getCreateTime(),
+        update.getUpdateTime());
   }
 
   /**
-   * Create a thumbnail of the given file.
+   * Build the file data returned to the client from the metadata just written to Firestore.
    *
-   * @param file file to create thumbnail
-   * @param thumbnailId unique id of the thumbnail file
+   * @param fileMeta metadata of the file
+   * @param createTime create time of the document, or null if it was created by this write
+   * @param updateTime update time of the document reported by the write
+   * @return file data
    */
-  private void createThumbnail(MultipartFile file, String thumbnailId) throws IOException {
-    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-    Thumbnails.of(file.getInputStream())
-        .size(THUMBNAIL_SIZE, THUMBNAIL_SIZE)
-        .keepAspectRatio(false)
-        .toOutputStream(byteArrayOutputStream);
-    storageService.save(
-        bucketName, thumbnailId, file.getContentType(), byteArrayOutputStream.toByteArray());
+  private BaseFile toBaseFile(FileMeta fileMeta, Date createTime, Timestamp updateTime) {
+    Date updateDate = updateTime.toDate();
+    return signedUrlService.sign(new BaseFile(fileMeta, LdsUtil.getResourceBasePath(basePath),
+        createTime == null ? updateDate : createTime, updateDate));
+  }
+
+  private String genListKey(List<String> tags, String orderNo, int size, List<String> fields,
+      boolean matchAll, long changeMarker) {
+    // the URLs in the results change with the signing window even if the files do not
+    return changeMarker + "|" + signedUrlService.getSigningWindow() + "|" + size + "|" + orderNo
+        + "|" + String.join(",", fields) + "|" + matchAll + "|" + String.join(" ", tags);
   }
 }
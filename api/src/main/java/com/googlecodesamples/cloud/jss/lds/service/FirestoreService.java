@@ -16,22 +16,69 @@
 
 package com.googlecodesamples.cloud.jss.lds.service;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentChange;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
 import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.ListenerRegistration;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.UpdateBuilder;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.collect.Lists;
 import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
+import com.googlecodesamples.cloud.jss.lds.model.CacheStatsResponse;
 import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
+import com.googlecodesamples.cloud.jss.lds.model.ReplicaStatsResponse;
+import com.googlecodesamples.cloud.jss.lds.model.TagStats;
+import com.googlecodesamples.cloud.jss.lds.model.ThumbnailState;
+import com.googlecodesamples.cloud.jss.lds.model.Tombstone;
+import com.googlecodesamples.cloud.jss.lds.model.UploadSession;
 import com.googlecodesamples.cloud.jss.lds.util.LdsUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import javax.annotation.PreDestroy;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
@@ -39,28 +86,320 @@ import org.springframework.util.StringUtils;
 /** Backend service controller for Firestore */
 @Service
 public class FirestoreService {
+  private static final Logger log = LoggerFactory.getLogger(FirestoreService.class);
   private static final String TAGS = "tags";
   private static final String ORDER_NO = "orderNo";
+  private static final String PATH = "path";
+  private static final String NAME = "name";
+  private static final String THUMBNAIL_STATE = "thumbnailState";
+  private static final String THUMBNAIL_ATTEMPTS = "thumbnailAttempts";
+  private static final String THUMBNAIL_LEASE = "thumbnailLease";
+  private static final String VERSION = "version";
+  private static final String MARKER_DOCUMENT = "changes";
+  private static final String REF_COUNT = "refCount";
+  private static final String OFFSET = "offset";
+  private static final String CREATE_TIME = "createTime";
+  private static final String ATTEMPTS = "attempts";
+  private static final String NEXT_ATTEMPT = "nextAttempt";
+  private static final int MAX_BATCH_WRITES = 500;
+  private static final int MAX_IN_VALUES = 10;
+  private static final int STREAM_PAGE_SIZE = 256;
+  private static final String POSTINGS = "postings";
+  private static final String ID = "id";
+  private static final String SIZE = "size";
+  private static final String TAG = "tag";
+  private static final String COUNT = "count";
+  private static final String BYTES = "bytes";
+  private static final int PROBE_PAGE_SIZE = 200;
+  private static final int INDEX_SCAN_PAGE_SIZE = 1000;
+  private static final long INDEX_POLL_OVERLAP_MILLIS = 60_000;
+  private static final long INDEX_RETRY_MAX_MILLIS = 600_000;
   private final Firestore firestore;
+  private final SignedUrlService signedUrlService;
+  private final FileNameIndex fileNameIndex;
+  private final FileReplica fileReplica;
+  private volatile ListenerRegistration replicaListener;
+  private volatile long fileNameIndexCursor;
 
   @Value("${firestore.collection.name}")
   private String collectionName;
 
+  @Value("${firestore.marker.collection.name}")
+  private String markerCollectionName;
+
+  @Value("${firestore.marker.shards}")
+  private int markerShards;
+
+  @Value("${firestore.blob.collection.name}")
+  private String blobCollectionName;
+
+  @Value("${firestore.upload.collection.name}")
+  private String uploadCollectionName;
+
+  @Value("${firestore.tombstone.collection.name}")
+  private String tombstoneCollectionName;
+
+  @Value("${firestore.tag.index.collection.name}")
+  private String tagIndexCollectionName;
+
+  @Value("${firestore.tag.index.backfill}")
+  private boolean tagIndexBackfill;
+
+  @Value("${replica.enabled}")
+  private boolean replicaEnabled;
+
+  @Value("${search.index.enabled}")
+  private boolean fileNameIndexEnabled;
+
+  @Value("${search.index.retry.interval.ms}")
+  private long fileNameIndexRetryMillis;
+
+  @Value("${firestore.tag.counter.collection.name}")
+  private String tagCounterCollectionName;
+
+  @Value("${firestore.tag.counter.shards}")
+  private int tagCounterShards;
+
   @Value("${resource.path}")
   private String basePath;
 
-  public FirestoreService() {
+  @Value("${firestore.cache.max.size}")
+  private long cacheMaxSize;
+
+  @Value("${firestore.cache.ttl.seconds}")
+  private long cacheTtlSeconds;
+
+  @Value("${firestore.stream.timeout.ms}")
+  private long streamTimeoutMillis;
+
+  private AsyncCache<String, BaseFile> fileCache;
+
+  public FirestoreService(SignedUrlService signedUrlService, FileNameIndex fileNameIndex,
+      FileReplica fileReplica) {
     this.firestore = FirestoreOptions.getDefaultInstance().getService();
+    this.signedUrlService = signedUrlService;
+    this.fileNameIndex = fileNameIndex;
+    this.fileReplica = fileReplica;
+  }
+
+  /**
+   * Create the metadata cache. Writes made through this service invalidate their entries, and the
+   * TTL bounds how long writes made by other instances can remain unseen. The files are cached
+   * unsigned and signed on every read, so the TTL does not depend on the validity of signed URLs.
+   */
+  @PostConstruct
+  public void init() {
+    this.fileCache = Caffeine.newBuilder()
+        .maximumSize(cacheMaxSize)
+        .expireAfterWrite(Duration.ofSeconds(cacheTtlSeconds))
+        .recordStats()
+        .buildAsync();
   }
 
   /**
    * Save metadata of a file to Firestore.
    *
    * @param fileMeta metadata of the file
+   * @return update time of the document
+   */
+  public Timestamp save(FileMeta fileMeta) throws InterruptedException, ExecutionException {
+    return saveAsync(fileMeta).get();
+  }
+
+  /**
+   * Save metadata of a file to Firestore without blocking the calling thread.
+   *
+   * <p>The previous version is read and replaced in a transaction, together with the changes of
+   * the tag index and the tag counters, so concurrent saves of the same file cannot apply the
+   * changes against a stale version. A transaction does not report the update time of its
+   * writes, so the write time that the transaction stores in the document is returned instead.
+   *
+   * @param fileMeta metadata of the file
+   * @return future of the write time of the document
    */
-  public void save(FileMeta fileMeta) throws InterruptedException, ExecutionException {
+  public CompletableFuture<Timestamp> saveAsync(FileMeta fileMeta) {
     DocumentReference docRef = firestore.collection(collectionName).document(fileMeta.getId());
-    docRef.set(fileMeta).get();
+    ApiFuture<Timestamp> future = firestore.runTransaction(transaction -> {
+      DocumentSnapshot document = transaction.get(docRef).get();
+      writeVersion(transaction, document.exists() ? convertDoc2FileMeta(document) : null,
+          fileMeta);
+      return fileMeta.getWriteTime();
+    });
+    return LdsUtil.toCompletableFuture(future).thenApply(writeTime -> {
+      fileCache.synchronous().invalidate(fileMeta.getId());
+      fileNameIndex.put(fileMeta.getId(), fileMeta.getName(), fileMeta.getOrderNo());
+      return writeTime;
+    });
+  }
+
+  /**
+   * Update an existing file from its current version in Firestore.
+   *
+   * <p>The current version is read in a transaction, never from the replica or the cache, and
+   * replaced in the same transaction, together with the tag index, the tag counters and, if the
+   * new version holds a reference to new content, the removal of the reference of the current
+   * version to its content. A file updated concurrently is thus released once per update, and
+   * never on the strength of a stale path.
+   *
+   * @param fileId unique id of the file
+   * @param update builds the new version from the current one; called again if the transaction
+   *     is retried
+   * @param replacesContent whether the new version holds its own reference to its content
+   * @return the current and new versions and the write time of the new version, or null if the
+   *     file does not exist
+   */
+  public FileUpdate update(String fileId, Function<BaseFile, FileMeta> update,
+      boolean replacesContent) throws InterruptedException, ExecutionException {
+    DocumentReference docRef = firestore.collection(collectionName).document(fileId);
+    String resourceBasePath = LdsUtil.getResourceBasePath(basePath);
+    FileUpdate fileUpdate = firestore.runTransaction(transaction -> {
+      DocumentSnapshot document = transaction.get(docRef).get();
+      if (!document.exists()) {
+        return null;
+      }
+      BaseFile previous = new BaseFile(document, resourceBasePath);
+      FileMeta fileMeta = update.apply(previous);
+      if (replacesContent) {
+        String path = previous.getPath();
+        DocumentReference blobRef =
+            firestore.collection(blobCollectionName).document(LdsUtil.getPathId(path));
+        writeBlobRelease(transaction, transaction.get(blobRef).get(), path, 1);
+      }
+      writeVersion(transaction, convertDoc2FileMeta(document), fileMeta);
+      return new FileUpdate(previous, fileMeta, fileMeta.getWriteTime());
+    }).get();
+    if (fileUpdate == null) {
+      return null;
+    }
+    FileMeta fileMeta = fileUpdate.getFileMeta();
+    fileCache.synchronous().invalidate(fileId);
+    fileNameIndex.put(fileId, fileMeta.getName(), fileMeta.getOrderNo());
+    return fileUpdate;
+  }
+
+  /**
+   * Replace a file in a transaction, with the changes of the tag index and the tag counters and
+   * an increment of the change marker. The new version is stamped with its write time, taken on
+   * every attempt of the transaction, so the caller can report the time of the version it wrote
+   * without reading the document back.
+   *
+   * @param transaction the transaction, in which the file was read
+   * @param oldMeta current version of the file, or null if it is new
+   * @param newMeta new version of the file
+   */
+  private void writeVersion(Transaction transaction, FileMeta oldMeta, FileMeta newMeta) {
+    newMeta.setWriteTime(Timestamp.now());
+    transaction.set(firestore.collection(collectionName).document(newMeta.getId()), newMeta);
+    writeTagIndex(transaction, oldMeta, newMeta);
+    writeTagCounters(transaction, TagIndex.getTagDeltas(oldMeta, newMeta));
+    bumpChangeMarker(transaction);
+  }
+
+  /**
+   * Save metadata of many files to Firestore.
+   *
+   * <p>The files are expected to be new. The documents, their tag index entries and the changes
+   * of the tag counters are committed in write batches of at most {@value #MAX_BATCH_WRITES}
+   * writes, and the batches are committed concurrently. A batch that fails does not affect the
+   * others; its files are added to the failures. Once all batches settle, the change marker is
+   * bumped once if any of them committed.
+   *
+   * @param fileMetas metadata of the new files
+   * @param failures receives the error messages of the files whose batch failed, by fileId
+   * @return update times of the documents, in the order of the input, null for failed files
+   */
+  public List<Timestamp> saveAll(List<FileMeta> fileMetas, Map<String, String> failures)
+      throws InterruptedException {
+    CollectionReference collection = firestore.collection(collectionName);
+    List<List<FileMeta>> chunks = partitionByWrites(fileMetas);
+    List<ApiFuture<List<WriteResult>>> futures = new ArrayList<>();
+    List<List<Integer>> fileIndexes = new ArrayList<>();
+    for (List<FileMeta> chunk : chunks) {
+      WriteBatch batch = firestore.batch();
+      List<Integer> indexes = new ArrayList<>();
+      Map<String, TagIndex.TagDelta> deltas = new HashMap<>();
+      for (FileMeta fileMeta : chunk) {
+        indexes.add(batch.getMutationsSize());
+        batch.set(collection.document(fileMeta.getId()), fileMeta);
+        writeTagIndex(batch, null, fileMeta);
+        TagIndex.addTagDeltas(deltas, fileMeta, 1);
+      }
+      writeTagCounters(batch, deltas);
+      futures.add(batch.commit());
+      fileIndexes.add(indexes);
+    }
+    List<Timestamp> updateTimes = new ArrayList<>();
+    boolean committed = false;
+    for (int i = 0; i < futures.size(); i++) {
+      List<FileMeta> chunk = chunks.get(i);
+      List<WriteResult> results;
+      try {
+        results = futures.get(i).get();
+      } catch (ExecutionException e) {
+        String message = e.getCause().getMessage();
+        chunk.forEach(fileMeta -> {
+          failures.put(fileMeta.getId(), message);
+          updateTimes.add(null);
+        });
+        continue;
+      }
+      committed = true;
+      for (int j = 0; j < chunk.size(); j++) {
+        FileMeta fileMeta = chunk.get(j);
+        updateTimes.add(results.get(fileIndexes.get(i).get(j)).getUpdateTime());
+        fileNameIndex.put(fileMeta.getId(), fileMeta.getName(), fileMeta.getOrderNo());
+      }
+    }
+    fileCache.synchronous().invalidateAll(
+        fileMetas.stream().map(FileMeta::getId).collect(Collectors.toList()));
+    if (committed) {
+      try {
+        bumpChangeMarker(firestore.batch()).commit().get();
+      } catch (ExecutionException e) {
+        log.error("failed to bump the change marker after saving files", e.getCause());
+      }
+    }
+    return updateTimes;
+  }
+
+  /**
+   * Search the metadata of the files with given fileIds in a single batched read. Only the
+   * fields needed to delete the files, their tag index entries and their counts are read.
+   *
+   * @param fileIds unique ids of the files
+   * @return metadata of the files that exist
+   */
+  public List<FileMeta> getFileMetasByIds(List<String> fileIds)
+      throws InterruptedException, ExecutionException {
+    CollectionReference collection = firestore.collection(collectionName);
+    DocumentReference[] docRefs =
+        fileIds.stream().distinct().map(collection::document).toArray(DocumentReference[]::new);
+    if (docRefs.length == 0) {
+      return new ArrayList<>();
+    }
+    return firestore.getAll(docRefs, FieldMask.of(PATH, NAME, TAGS, ORDER_NO, SIZE)).get().stream()
+        .filter(DocumentSnapshot::exists)
+        .map(this::convertDoc2FileMeta)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Search the metadata of all files with any of the given tags. Only the fields needed to
+   * delete the files, their tag index entries and their counts are read.
+   *
+   * @param tags list of tags label the files
+   * @return metadata of the files
+   */
+  public List<FileMeta> getFileMetasByTag(List<String> tags)
+      throws InterruptedException, ExecutionException {
+    QuerySnapshot snapshot = firestore.collection(collectionName)
+        .whereArrayContainsAny(TAGS, tags)
+        .select(PATH, NAME, TAGS, ORDER_NO, SIZE)
+        .get()
+        .get();
+    return snapshot.getDocuments().stream()
+        .map(this::convertDoc2FileMeta)
+        .collect(Collectors.toList());
   }
 
   /**
@@ -70,13 +409,39 @@ public class FirestoreService {
    * @return file data
    */
   public BaseFile getFileById(String fileId) throws InterruptedException, ExecutionException {
-    ApiFuture<QuerySnapshot> future =
-        firestore.collection(collectionName).whereEqualTo(FieldPath.documentId(), fileId).get();
-    List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-    if (documents.isEmpty()) {
-      return null;
+    return getFileByIdAsync(fileId).get();
+  }
+
+  /**
+   * Search a file with given fileId without blocking the calling thread.
+   *
+   * <p>Files are read from the replica while it is synced. Otherwise they are read through the
+   * metadata cache; a miss is a direct document lookup.
+   *
+   * @param fileId unique id of the file
+   * @return future of the file data, completed with null if the file does not exist
+   */
+  public CompletableFuture<BaseFile> getFileByIdAsync(String fileId) {
+    if (fileReplica.isSynced()) {
+      BaseFile file = fileReplica.getFile(fileId);
+      return CompletableFuture.completedFuture(file == null ? null : signedUrlService.sign(file));
     }
-    return convertDoc2File(documents).get(0);
+    return fileCache.get(fileId, (id, executor) -> {
+      ApiFuture<DocumentSnapshot> future = firestore.collection(collectionName).document(id).get();
+      return LdsUtil.toCompletableFuture(future).thenApply(document -> document.exists()
+          ? new BaseFile(document, LdsUtil.getResourceBasePath(basePath)) : null);
+    }).thenApply(file -> file == null ? null : signedUrlService.sign(file));
+  }
+
+  /**
+   * Get the statistics of the metadata cache.
+   *
+   * @return size, hit, miss and eviction counts of the cache
+   */
+  public CacheStatsResponse getCacheStats() {
+    CacheStats stats = fileCache.synchronous().stats();
+    return new CacheStatsResponse(fileCache.synchronous().estimatedSize(),
+        stats.hitCount(), stats.missCount(), stats.evictionCount());
   }
 
   /**
@@ -89,32 +454,1233 @@ public class FirestoreService {
    */
   public List<BaseFile> getFilesByTag(List<String> tags, String orderNo, int size)
       throws InterruptedException, ExecutionException {
-    ApiFuture<QuerySnapshot> future;
+    return getFilesByTagAsync(tags, orderNo, size).get();
+  }
+
+  /**
+   * Search files with given tags without blocking the calling thread.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @return future of the list of files data
+   */
+  public CompletableFuture<List<BaseFile>> getFilesByTagAsync(
+      List<String> tags, String orderNo, int size) {
+    return getFilesByTagAsync(tags, orderNo, size, List.of());
+  }
+
+  /**
+   * Search files with given tags without blocking the calling thread, reading only the document
+   * fields needed for the given JSON fields.
+   *
+   * <p>While the replica is synced, the files are read from it, with all their fields.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @param fields names of the JSON fields, or empty for whole documents
+   * @return future of the list of files data, with the other fields unset
+   */
+  public CompletableFuture<List<BaseFile>> getFilesByTagAsync(
+      List<String> tags, String orderNo, int size, List<String> fields) {
+    if (fileReplica.isSynced()) {
+      return CompletableFuture.completedFuture(getReplicaFilesByTag(tags, orderNo, size));
+    }
+    ApiFuture<QuerySnapshot> future = getFilesByTagQuery(tags, orderNo, size, fields).get();
+    return LdsUtil.toCompletableFuture(future)
+        .thenApply(snapshot -> convertDoc2File(snapshot.getDocuments()));
+  }
+
+  /**
+   * Search files with given tags and pass each file to the consumer as it arrives.
+   *
+   * <p>The documents are read in pages of at most {@value #STREAM_PAGE_SIZE} documents, and
+   * converted and consumed one at a time on the calling thread. The next page is requested
+   * before the current one is consumed, and no further page is requested until it is, so at most
+   * two pages are held whatever the number of files and however slow the consumer. If the
+   * consumer fails, or a page is not read within the stream timeout, the pending page is
+   * cancelled. While the replica is synced, the files are read from it instead.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @param fields names of the JSON fields, or empty for whole documents
+   * @param consumer receives the files in order
+   */
+  public void streamFilesByTag(List<String> tags, String orderNo, int size, List<String> fields,
+      Consumer<BaseFile> consumer) throws InterruptedException, ExecutionException {
+    if (fileReplica.isSynced()) {
+      getReplicaFilesByTag(tags, orderNo, size).forEach(consumer);
+      return;
+    }
+    Query query = getFilesByTagQuery(tags, orderNo, size, fields);
+    String resourceBasePath = LdsUtil.getResourceBasePath(basePath);
+    int limit = Math.min(size, STREAM_PAGE_SIZE);
+    int remaining = size - limit;
+    ApiFuture<QuerySnapshot> page = query.limit(limit).get();
+    try {
+      while (page != null) {
+        List<QueryDocumentSnapshot> documents =
+            page.get(streamTimeoutMillis, TimeUnit.MILLISECONDS).getDocuments();
+        page = null;
+        if (documents.size() == limit && remaining > 0) {
+          limit = Math.min(remaining, STREAM_PAGE_SIZE);
+          remaining -= limit;
+          page = query.startAfter(documents.get(documents.size() - 1)).limit(limit).get();
+        }
+        for (DocumentSnapshot document : documents) {
+          consumer.accept(signedUrlService.sign(new BaseFile(document, resourceBasePath)));
+        }
+      }
+    } catch (TimeoutException e) {
+      throw new ExecutionException("timed out reading a page of files", e);
+    } finally {
+      if (page != null) {
+        page.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Search files that have all the given tags without blocking the calling thread.
+   *
+   * <p>The search walks the posting list of the tag index with the fewest files, newest first,
+   * and keeps the files whose order numbers are in the posting lists of all other tags. Each
+   * match is checked against the file itself, so postings left behind by concurrent updates are
+   * skipped.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo order number of the last file of the previous page
+   * @param size number of files return
+   * @param fields names of the JSON fields, or empty for whole documents
+   * @return future of the list of files data
+   */
+  public CompletableFuture<List<BaseFile>> getFilesByAllTagsAsync(
+      List<String> tags, String orderNo, int size, List<String> fields) {
+    return sortTagsByPostings(tags).thenCompose(sortedTags ->
+        collectFilesByAllTags(sortedTags, orderNo, size, fields, new ArrayList<>()));
+  }
+
+  /**
+   * Search files that have all the given tags and pass each file to the consumer, one page of
+   * postings at a time.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo order number of the last file of the previous page
+   * @param size number of files return
+   * @param fields names of the JSON fields, or empty for whole documents
+   * @param consumer receives the files in order
+   */
+  public void streamFilesByAllTags(List<String> tags, String orderNo, int size,
+      List<String> fields, Consumer<BaseFile> consumer)
+      throws InterruptedException, ExecutionException {
+    List<String> sortedTags = sortTagsByPostings(tags).get();
+    String cursor = orderNo;
+    int remaining = size;
+    while (remaining > 0) {
+      PostingsPage page = getPostingsPage(sortedTags, cursor, fields).get();
+      for (BaseFile file : page.files.subList(0, Math.min(remaining, page.files.size()))) {
+        consumer.accept(file);
+        remaining--;
+      }
+      if (page.exhausted) {
+        return;
+      }
+      cursor = page.cursor;
+    }
+  }
+
+  /**
+   * Add the entries of the files that are not in the tag index yet, for files saved before the
+   * index was maintained. Entries are idempotent, so the backfill can be run again.
+   *
+   * @return number of files indexed
+   */
+  public long backfillTagIndex() throws InterruptedException, ExecutionException {
+    long count = 0;
+    Query query = firestore.collection(collectionName)
+        .orderBy(FieldPath.documentId())
+        .select(TAGS, ORDER_NO)
+        .limit(MAX_BATCH_WRITES);
+    List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+    while (!documents.isEmpty()) {
+      List<FileMeta> fileMetas =
+          documents.stream().map(this::convertDoc2FileMeta).collect(Collectors.toList());
+      for (List<FileMeta> chunk : partitionByWrites(fileMetas)) {
+        WriteBatch batch = firestore.batch();
+        chunk.forEach(fileMeta -> writeTagIndex(batch, null, fileMeta));
+        bumpChangeMarker(batch);
+        batch.commit().get();
+      }
+      count += documents.size();
+      documents = query.startAfter(documents.get(documents.size() - 1)).get().get().getDocuments();
+    }
+    return count;
+  }
+
+  /** Backfill the tag index in the background once the application is ready, if configured. */
+  @EventListener(ApplicationReadyEvent.class)
+  public void startTagIndexBackfill() {
+    if (!tagIndexBackfill) {
+      return;
+    }
+    new CustomizableThreadFactory("tag-index-").newThread(() -> {
+      try {
+        log.info("indexed the tags of " + backfillTagIndex() + " files");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException | RuntimeException e) {
+        log.error("failed to backfill the tag index", e);
+      }
+    }).start();
+  }
+
+  /**
+   * Search files whose names contain the query, through the in-memory name index, without
+   * blocking the calling thread. The index gives the IDs of the page, and the files are read
+   * from Firestore; files deleted by other instances since the index was built are skipped.
+   *
+   * @param query the substring of the names
+   * @param orderNo order number of the last file of the previous page
+   * @param size number of files return
+   * @return future of the list of files data, ranked
+   */
+  public CompletableFuture<List<BaseFile>> searchFilesByNameAsync(
+      String query, String orderNo, int size) {
+    if (!fileNameIndex.isReady()) {
+      throw new IllegalStateException("the file name index is not built yet");
+    }
+    List<String> fileIds = fileNameIndex.search(query, orderNo, size);
+    if (fileIds.isEmpty()) {
+      return CompletableFuture.completedFuture(new ArrayList<>());
+    }
+    CollectionReference collection = firestore.collection(collectionName);
+    DocumentReference[] docRefs =
+        fileIds.stream().map(collection::document).toArray(DocumentReference[]::new);
+    String resourceBasePath = LdsUtil.getResourceBasePath(basePath);
+    return LdsUtil.toCompletableFuture(firestore.getAll(docRefs)).thenApply(documents ->
+        documents.stream()
+            .filter(DocumentSnapshot::exists)
+            .map(document -> signedUrlService.sign(new BaseFile(document, resourceBasePath)))
+            .collect(Collectors.toList()));
+  }
+
+  /**
+   * Add the names of all files to the in-memory name index, reading only the names and order
+   * numbers, one page at a time. Files saved or deleted while the scan runs keep their newer
+   * state in the index.
+   *
+   * @return number of files read
+   */
+  public long buildFileNameIndex() throws InterruptedException, ExecutionException {
+    long count = 0;
+    Query query = firestore.collection(collectionName)
+        .orderBy(FieldPath.documentId())
+        .select(NAME, ORDER_NO)
+        .limit(INDEX_SCAN_PAGE_SIZE);
+    List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+    while (!documents.isEmpty()) {
+      documents.forEach(document -> fileNameIndex.putIfAbsent(
+          document.getId(), document.getString(NAME), document.getString(ORDER_NO)));
+      count += documents.size();
+      documents = query.startAfter(documents.get(documents.size() - 1)).get().get().getDocuments();
+    }
+    fileNameIndex.setReady(true);
+    return count;
+  }
+
+  /**
+   * Build the name index in the background once the application is ready, if configured. A
+   * failed build is retried, with the delay doubling up to {@value #INDEX_RETRY_MAX_MILLIS} ms,
+   * so the search becomes available once Firestore is reachable.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void startFileNameIndexBuild() {
+    if (!fileNameIndexEnabled) {
+      return;
+    }
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("name-index-");
+    threadFactory.setDaemon(true);
+    threadFactory.newThread(() -> {
+      long retryMillis = fileNameIndexRetryMillis;
+      while (true) {
+        try {
+          fileNameIndexCursor = System.currentTimeMillis();
+          log.info("indexed the names of " + buildFileNameIndex() + " files");
+          return;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (ExecutionException | RuntimeException e) {
+          log.error("failed to build the file name index, retrying in " + retryMillis + " ms", e);
+        }
+        try {
+          Thread.sleep(retryMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        retryMillis = Math.min(retryMillis * 2, INDEX_RETRY_MAX_MILLIS);
+      }
+    }).start();
+  }
+
+  /**
+   * Add the files saved since the previous poll, by any instance, to the name index. Only used
+   * while the replica is disabled; otherwise its listener feeds the index. The poll reads the
+   * names and order numbers of the files whose order numbers are newer than the previous poll,
+   * less an overlap that covers clock skew between instances. Files deleted by other instances
+   * stay in the index, and are dropped from the results when their documents are read.
+   */
+  @Scheduled(initialDelayString = "${search.index.poll.interval.ms}",
+      fixedDelayString = "${search.index.poll.interval.ms}")
+  public void pollFileNameIndex() {
+    if (!fileNameIndexEnabled || replicaEnabled || !fileNameIndex.isReady()) {
+      return;
+    }
+    long cursor = fileNameIndexCursor;
+    long newest = cursor;
+    try {
+      Query query = firestore.collection(collectionName)
+          .orderBy(ORDER_NO)
+          .select(NAME, ORDER_NO)
+          .limit(INDEX_SCAN_PAGE_SIZE);
+      List<QueryDocumentSnapshot> documents = query
+          .startAfter(String.valueOf(cursor - INDEX_POLL_OVERLAP_MILLIS)).get().get()
+          .getDocuments();
+      while (!documents.isEmpty()) {
+        for (QueryDocumentSnapshot document : documents) {
+          String orderNo = document.getString(ORDER_NO);
+          fileNameIndex.put(document.getId(), document.getString(NAME), orderNo);
+          newest = Math.max(newest, LdsUtil.getOrderNoTime(orderNo));
+        }
+        if (documents.size() < INDEX_SCAN_PAGE_SIZE) {
+          break;
+        }
+        documents = query.startAfter(documents.get(documents.size() - 1)).get().get()
+            .getDocuments();
+      }
+      fileNameIndexCursor = newest;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | RuntimeException e) {
+      log.warn("failed to poll the file name index", e);
+    }
+  }
+
+  /**
+   * Get the statistics of the replica of the file metadata.
+   *
+   * @return size, sync state, snapshot counts and lag of the replica
+   */
+  public ReplicaStatsResponse getReplicaStats() {
+    return fileReplica.getStats(replicaEnabled);
+  }
+
+  /** Start the replica of the file metadata once the application is ready, if configured. */
+  @EventListener(ApplicationReadyEvent.class)
+  public void startReplica() {
+    if (replicaEnabled) {
+      startReplicaListener();
+    }
+  }
+
+  /** Restart the listener of the replica if it failed. Reads go to Firestore meanwhile. */
+  @Scheduled(initialDelayString = "${replica.retry.interval.ms}",
+      fixedDelayString = "${replica.retry.interval.ms}")
+  public void checkReplica() {
+    if (replicaEnabled && replicaListener == null) {
+      log.info("restarting the replica listener");
+      startReplicaListener();
+    }
+  }
+
+  /**
+   * Listen to the snapshots of the file collection. The first snapshot holds all files and
+   * replaces the content of the replica; later ones carry the changes since the previous one.
+   * The changes, including those written by other instances, are also applied to the name index.
+   */
+  private void startReplicaListener() {
+    AtomicBoolean loaded = new AtomicBoolean();
+    String resourceBasePath = LdsUtil.getResourceBasePath(basePath);
+    replicaListener = firestore.collection(collectionName).addSnapshotListener(
+        (snapshot, error) -> {
+          if (error != null) {
+            log.warn("replica listener failed, reading from Firestore until it restarts", error);
+            fileReplica.markUnsynced();
+            stopReplicaListener();
+            return;
+          }
+          long readTime = snapshot.getReadTime().toDate().getTime();
+          if (loaded.compareAndSet(false, true)) {
+            List<BaseFile> files = snapshot.getDocuments().stream()
+                .map(document -> new BaseFile(document, resourceBasePath))
+                .collect(Collectors.toList());
+            fileReplica.load(files, readTime);
+            if (fileNameIndexEnabled) {
+              files.forEach(file ->
+                  fileNameIndex.put(file.getId(), file.getName(), file.getOrderNo()));
+            }
+            log.info("replica loaded with " + snapshot.size() + " files");
+            return;
+          }
+          List<BaseFile> upserts = new ArrayList<>();
+          List<String> removedIds = new ArrayList<>();
+          for (DocumentChange change : snapshot.getDocumentChanges()) {
+            if (change.getType() == DocumentChange.Type.REMOVED) {
+              removedIds.add(change.getDocument().getId());
+            } else {
+              upserts.add(new BaseFile(change.getDocument(), resourceBasePath));
+            }
+          }
+          fileReplica.apply(upserts, removedIds, readTime);
+          if (fileNameIndexEnabled) {
+            upserts.forEach(file ->
+                fileNameIndex.put(file.getId(), file.getName(), file.getOrderNo()));
+            removedIds.forEach(fileNameIndex::remove);
+          }
+        });
+  }
+
+  /** Stop listening to the snapshots of the file collection. */
+  private void stopReplicaListener() {
+    ListenerRegistration listener = replicaListener;
+    replicaListener = null;
+    if (listener != null) {
+      listener.remove();
+    }
+  }
+
+  /**
+   * Search files with given tags in the replica.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @return list of files data, signed
+   */
+  private List<BaseFile> getReplicaFilesByTag(List<String> tags, String orderNo, int size) {
+    return fileReplica.getFilesByTag(tags, orderNo, size).stream()
+        .map(signedUrlService::sign)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Order distinct tags by the number of files in their posting lists, smallest first. The
+   * numbers are read from the shards of the tag counters in a single batched read.
+   *
+   * @param tags list of tags
+   * @return future of the ordered tags
+   */
+  private CompletableFuture<List<String>> sortTagsByPostings(List<String> tags) {
+    List<String> distinctTags = tags.stream().distinct().collect(Collectors.toList());
+    CollectionReference counters = firestore.collection(tagCounterCollectionName);
+    DocumentReference[] shardRefs = distinctTags.stream()
+        .flatMap(tag -> IntStream.range(0, tagCounterShards)
+            .mapToObj(shard -> counters.document(TagIndex.getCounterId(tag, shard))))
+        .toArray(DocumentReference[]::new);
+    return LdsUtil.toCompletableFuture(firestore.getAll(shardRefs, FieldMask.of(COUNT)))
+        .thenApply(shards -> {
+          Map<String, Long> counts = new HashMap<>();
+          for (int i = 0; i < shards.size(); i++) {
+            counts.merge(distinctTags.get(i / tagCounterShards), getLong(shards.get(i), COUNT),
+                Long::sum);
+          }
+          return distinctTags.stream()
+              .sorted(Comparator.comparing(counts::get))
+              .collect(Collectors.toList());
+        });
+  }
+
+  /**
+   * Collect files that have all the given tags, one page of postings at a time.
+   *
+   * @param sortedTags distinct tags, the one with the fewest files first
+   * @param cursor order number to continue after, or null to start from the newest
+   * @param size number of files return
+   * @param fields names of the JSON fields, or empty for whole documents
+   * @param files files collected so far
+   * @return future of the collected files
+   */
+  private CompletableFuture<List<BaseFile>> collectFilesByAllTags(List<String> sortedTags,
+      String cursor, int size, List<String> fields, List<BaseFile> files) {
+    return getPostingsPage(sortedTags, cursor, fields).thenCompose(page -> {
+      files.addAll(page.files.subList(0, Math.min(size - files.size(), page.files.size())));
+      if (files.size() >= size || page.exhausted) {
+        return CompletableFuture.completedFuture(files);
+      }
+      return collectFilesByAllTags(sortedTags, page.cursor, size, fields, files);
+    });
+  }
+
+  /**
+   * Read one page of the posting list of the first tag, keep the postings that are in the lists
+   * of all other tags, and read the files they refer to.
+   *
+   * @param sortedTags distinct tags, the one with the fewest files first
+   * @param cursor order number to continue after, or null to start from the newest
+   * @param fields names of the JSON fields, or empty for whole documents
+   * @return future of the matching files of the page
+   */
+  private CompletableFuture<PostingsPage> getPostingsPage(
+      List<String> sortedTags, String cursor, List<String> fields) {
+    Query query = getPostings(sortedTags.get(0)).orderBy(ORDER_NO, Query.Direction.DESCENDING);
+    if (StringUtils.hasText(cursor)) {
+      query = query.startAfter(cursor);
+    }
+    return LdsUtil.toCompletableFuture(query.limit(PROBE_PAGE_SIZE).get())
+        .thenCompose(snapshot -> {
+          List<QueryDocumentSnapshot> candidates = snapshot.getDocuments();
+          if (candidates.isEmpty()) {
+            return CompletableFuture.completedFuture(new PostingsPage(List.of(), cursor, true));
+          }
+          String lastOrderNo = candidates.get(candidates.size() - 1).getString(ORDER_NO);
+          boolean exhausted = candidates.size() < PROBE_PAGE_SIZE;
+          return probePostings(sortedTags, candidates)
+              .thenCompose(matches -> getFilesByPostings(matches, sortedTags, fields))
+              .thenApply(files -> new PostingsPage(files, lastOrderNo, exhausted));
+        });
+  }
+
+  /**
+   * Keep the postings of the first tag whose order numbers are in the lists of all other tags.
+   *
+   * @param sortedTags distinct tags, the one with the fewest files first
+   * @param candidates postings of the first tag
+   * @return future of the matching postings, in the order of the candidates
+   */
+  private CompletableFuture<List<DocumentSnapshot>> probePostings(
+      List<String> sortedTags, List<QueryDocumentSnapshot> candidates) {
+    List<String> otherTags = sortedTags.subList(1, sortedTags.size());
+    if (otherTags.isEmpty()) {
+      return CompletableFuture.completedFuture(new ArrayList<>(candidates));
+    }
+    DocumentReference[] probes = candidates.stream()
+        .flatMap(candidate -> otherTags.stream()
+            .map(tag -> getPostings(tag).document(candidate.getId())))
+        .toArray(DocumentReference[]::new);
+    return LdsUtil.toCompletableFuture(firestore.getAll(probes, FieldMask.of(ORDER_NO)))
+        .thenApply(documents -> {
+          Set<String> found = documents.stream()
+              .filter(DocumentSnapshot::exists)
+              .map(document -> document.getReference().getPath())
+              .collect(Collectors.toSet());
+          return candidates.stream()
+              .filter(candidate -> otherTags.stream().allMatch(tag ->
+                  found.contains(getPostings(tag).document(candidate.getId()).getPath())))
+              .collect(Collectors.toList());
+        });
+  }
+
+  /**
+   * Read the files that postings refer to, skipping the postings whose file was deleted or no
+   * longer has all the tags at the same order number.
+   *
+   * @param postings postings of the first tag
+   * @param tags tags all files must have
+   * @param fields names of the JSON fields, or empty for whole documents
+   * @return future of the files, in the order of the postings
+   */
+  private CompletableFuture<List<BaseFile>> getFilesByPostings(
+      List<DocumentSnapshot> postings, List<String> tags, List<String> fields) {
+    if (postings.isEmpty()) {
+      return CompletableFuture.completedFuture(List.of());
+    }
+    CollectionReference collection = firestore.collection(collectionName);
+    DocumentReference[] docRefs = postings.stream()
+        .map(posting -> collection.document(posting.getString(ID)))
+        .toArray(DocumentReference[]::new);
+    ApiFuture<List<DocumentSnapshot>> future;
+    if (fields.isEmpty()) {
+      future = firestore.getAll(docRefs);
+    } else {
+      Set<String> sourceFields = new LinkedHashSet<>(BaseFile.getSourceFields(fields));
+      sourceFields.add(TAGS);
+      sourceFields.add(ORDER_NO);
+      future = firestore.getAll(docRefs, FieldMask.of(sourceFields.toArray(new String[0])));
+    }
+    String resourceBasePath = LdsUtil.getResourceBasePath(basePath);
+    return LdsUtil.toCompletableFuture(future).thenApply(documents -> {
+      List<BaseFile> files = new ArrayList<>();
+      for (int i = 0; i < documents.size(); i++) {
+        DocumentSnapshot document = documents.get(i);
+        DocumentSnapshot posting = postings.get(i);
+        String orderNo = posting.getString(ORDER_NO);
+        if (!document.exists() || orderNo == null || !orderNo.equals(document.getString(ORDER_NO))
+            || !posting.getId().equals(TagIndex.getPostingId(orderNo))) {
+          continue;
+        }
+        List<?> fileTags = (List<?>) document.get(TAGS);
+        if (fileTags != null && fileTags.containsAll(tags)) {
+          files.add(signedUrlService.sign(new BaseFile(document, resourceBasePath)));
+        }
+      }
+      return files;
+    });
+  }
+
+  /** The previous and the new version of an updated file. */
+  public static final class FileUpdate {
+    private final BaseFile previous;
+    private final FileMeta fileMeta;
+    private final Timestamp updateTime;
+
+    public FileUpdate(BaseFile previous, FileMeta fileMeta, Timestamp updateTime) {
+      this.previous = previous;
+      this.fileMeta = fileMeta;
+      this.updateTime = updateTime;
+    }
+
+    public BaseFile getPrevious() {
+      return previous;
+    }
+
+    public FileMeta getFileMeta() {
+      return fileMeta;
+    }
+
+    public Timestamp getUpdateTime() {
+      return updateTime;
+    }
+  }
+
+  /** One page of a search by all tags. */
+  private static final class PostingsPage {
+    private final List<BaseFile> files;
+    private final String cursor;
+    private final boolean exhausted;
+
+    private PostingsPage(List<BaseFile> files, String cursor, boolean exhausted) {
+      this.files = files;
+      this.cursor = cursor;
+      this.exhausted = exhausted;
+    }
+  }
+
+  /**
+   * Build the query of files with given tags, newest first.
+   *
+   * @param tags list of tags label the files
+   * @param orderNo application defined column for referencing order
+   * @param size number of files return
+   * @param fields names of the JSON fields, or empty for whole documents
+   * @return the query
+   */
+  private Query getFilesByTagQuery(
+      List<String> tags, String orderNo, int size, List<String> fields) {
     Query query =
         firestore.collection(collectionName).orderBy(ORDER_NO, Query.Direction.DESCENDING);
+    if (!fields.isEmpty()) {
+      query = query.select(BaseFile.getSourceFields(fields).toArray(new String[0]));
+    }
     if (!CollectionUtils.isEmpty(tags)) {
       query = query.whereArrayContainsAny(TAGS, tags);
     }
     if (StringUtils.hasText(orderNo)) {
       query = query.startAfter(orderNo);
     }
-    future = query.limit(size).get();
-    List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-    return convertDoc2File(documents);
+    return query.limit(size);
   }
 
   /**
-   * Delete a file from Firestore with given fileId.
+   * Delete a file from Firestore with given fileId, and remove its reference to its content.
    *
    * @param fileId unique id of the file
+   * @return metadata of the deleted file, or null if it did not exist
+   */
+  public FileMeta delete(String fileId) throws InterruptedException, ExecutionException {
+    return deleteAsync(fileId).get();
+  }
+
+  /**
+   * Delete a file from Firestore with given fileId without blocking the calling thread.
+   *
+   * <p>The file is read and deleted in a transaction, together with its tag index entries, the
+   * changes of the tag counters and the removal of its reference to its content, so a file that
+   * is deleted twice, or concurrently, releases its content once.
+   *
+   * @param fileId unique id of the file
+   * @return future of the metadata of the deleted file, completed with null if it did not exist
+   */
+  public CompletableFuture<FileMeta> deleteAsync(String fileId) {
+    ApiFuture<FileMeta> future = firestore.runTransaction(transaction -> {
+      List<FileMeta> deleted = deleteFiles(transaction, List.of(fileId));
+      return deleted.isEmpty() ? null : deleted.get(0);
+    });
+    return LdsUtil.toCompletableFuture(future).thenApply(fileMeta -> {
+      fileCache.synchronous().invalidate(fileId);
+      fileNameIndex.remove(fileId);
+      return fileMeta;
+    });
+  }
+
+  /**
+   * Add a reference to a content-addressed blob. The first reference also removes the tombstone
+   * of the blob, if it was released and not swept yet.
+   *
+   * @param contentId content-addressed ID of the blob
+   * @return true if this is the first reference, so the blob may not be stored yet
+   */
+  public boolean acquireBlob(String contentId) throws InterruptedException, ExecutionException {
+    DocumentReference docRef = firestore.collection(blobCollectionName).document(contentId);
+    DocumentReference tombstoneRef =
+        firestore.collection(tombstoneCollectionName).document(contentId);
+    return firestore.runTransaction(transaction -> {
+      DocumentSnapshot document = transaction.get(docRef).get();
+      Long refCount = document.exists() ? document.getLong(REF_COUNT) : null;
+      if (refCount == null || refCount <= 0) {
+        transaction.set(docRef, Map.of(REF_COUNT, 1L));
+        transaction.delete(tombstoneRef);
+        return true;
+      }
+      transaction.update(docRef, REF_COUNT, refCount + 1);
+      return false;
+    }).get();
+  }
+
+  /**
+   * Remove a reference to a blob. Blobs stored before content addressing have no reference
+   * count and are owned by a single file.
+   *
+   * @param contentId content-addressed ID of the blob
+   * @param path path of the blob in Cloud Storage
+   * @return true if this was the last reference, so the blob is left to the sweeper
+   */
+  public boolean releaseBlob(String contentId, String path)
+      throws InterruptedException, ExecutionException {
+    return releaseBlobAsync(contentId, path, 1).get();
+  }
+
+  /**
+   * Remove references to a blob without blocking the calling thread. When no reference is left, a
+   * tombstone of the blob is written in the same transaction, so the blob is deleted later by the
+   * sweeper instead of on the request path.
+   *
+   * @param contentId content-addressed ID of the blob
+   * @param path path of the blob in Cloud Storage
+   * @param count number of references to remove
+   * @return future of true if no reference is left
+   */
+  public CompletableFuture<Boolean> releaseBlobAsync(String contentId, String path, long count) {
+    DocumentReference docRef = firestore.collection(blobCollectionName).document(contentId);
+    return LdsUtil.toCompletableFuture(firestore.runTransaction(transaction ->
+        writeBlobRelease(transaction, transaction.get(docRef).get(), path, count)));
+  }
+
+  /**
+   * Add the removal of references to a blob to a transaction or a write batch. When no reference
+   * is left, the blob document is deleted and a tombstone is written instead.
+   *
+   * @param writes the transaction or batch, in which the blob document was read
+   * @param blob the blob document, which may not exist for blobs stored before content addressing
+   * @param path path of the blob in Cloud Storage
+   * @param count number of references to remove
+   * @return true if no reference is left
+   */
+  private boolean writeBlobRelease(
+      UpdateBuilder<?> writes, DocumentSnapshot blob, String path, long count) {
+    Long refCount = blob.exists() ? blob.getLong(REF_COUNT) : null;
+    if (refCount == null || refCount <= count) {
+      writes.delete(blob.getReference());
+      writes.set(firestore.collection(tombstoneCollectionName).document(blob.getId()),
+          new Tombstone(blob.getId(), path, System.currentTimeMillis()));
+      return true;
+    }
+    writes.update(blob.getReference(), REF_COUNT, refCount - count);
+    return false;
+  }
+
+  /**
+   * Get the IDs of the blobs that are referenced by at least one file.
+   *
+   * @param contentIds content-addressed IDs of the blobs
+   * @return the IDs with a reference count
+   */
+  public Set<String> getReferencedBlobs(Collection<String> contentIds)
+      throws InterruptedException, ExecutionException {
+    if (contentIds.isEmpty()) {
+      return Set.of();
+    }
+    CollectionReference collection = firestore.collection(blobCollectionName);
+    DocumentReference[] docRefs =
+        contentIds.stream().map(collection::document).toArray(DocumentReference[]::new);
+    Set<String> referenced = new HashSet<>();
+    for (DocumentSnapshot document : firestore.getAll(docRefs, FieldMask.of(REF_COUNT)).get()) {
+      if (document.exists()) {
+        referenced.add(document.getId());
+      }
+    }
+    return referenced;
+  }
+
+  /**
+   * Search the tombstones whose next attempt is due, oldest first.
+   *
+   * @param limit maximum number of tombstones return
+   * @return list of tombstones
+   */
+  public List<Tombstone> getDueTombstones(int limit)
+      throws InterruptedException, ExecutionException {
+    QuerySnapshot snapshot = firestore.collection(tombstoneCollectionName)
+        .whereLessThanOrEqualTo(NEXT_ATTEMPT, System.currentTimeMillis())
+        .orderBy(NEXT_ATTEMPT)
+        .limit(limit)
+        .get()
+        .get();
+    return snapshot.getDocuments().stream()
+        .map(document -> document.toObject(Tombstone.class))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Delete tombstones whose blobs were swept or referenced again.
+   *
+   * @param tombstoneIds unique ids of the tombstones
+   */
+  public void deleteTombstones(List<String> tombstoneIds)
+      throws InterruptedException, ExecutionException {
+    CollectionReference collection = firestore.collection(tombstoneCollectionName);
+    for (List<String> chunk : Lists.partition(tombstoneIds, MAX_BATCH_WRITES)) {
+      WriteBatch batch = firestore.batch();
+      chunk.forEach(tombstoneId -> batch.delete(collection.document(tombstoneId)));
+      batch.commit().get();
+    }
+  }
+
+  /**
+   * Save the attempt count and the time of the next attempt of tombstones whose sweep failed.
+   * The updates are sent concurrently and one at a time, so a tombstone removed in the meantime by
+   * a new reference fails its own update only and is not recreated.
+   *
+   * @param tombstones the tombstones to retry
+   */
+  public void retryTombstones(List<Tombstone> tombstones)
+      throws InterruptedException, ExecutionException {
+    CollectionReference collection = firestore.collection(tombstoneCollectionName);
+    List<ApiFuture<WriteResult>> futures = tombstones.stream()
+        .map(tombstone -> collection.document(tombstone.getId()).update(
+            ATTEMPTS, tombstone.getAttempts(), NEXT_ATTEMPT, tombstone.getNextAttempt()))
+        .collect(Collectors.toList());
+    ApiFutures.successfulAsList(futures).get();
+  }
+
+  /**
+   * Search which of the paths in Cloud Storage any file refers to. The paths are queried in
+   * concurrent chunks of at most {@value #MAX_IN_VALUES}, the limit of an "in" filter.
+   *
+   * @param paths paths of the content
+   * @return the paths that a file refers to
+   */
+  public Set<String> getPathsInUse(Collection<String> paths)
+      throws InterruptedException, ExecutionException {
+    List<ApiFuture<QuerySnapshot>> futures = new ArrayList<>();
+    for (List<String> chunk : Lists.partition(new ArrayList<>(paths), MAX_IN_VALUES)) {
+      futures.add(firestore.collection(collectionName)
+          .whereIn(PATH, new ArrayList<>(chunk))
+          .select(PATH)
+          .get());
+    }
+    Set<String> inUse = new HashSet<>();
+    for (QuerySnapshot snapshot : ApiFutures.allAsList(futures).get()) {
+      snapshot.getDocuments().forEach(document -> inUse.add(document.getString(PATH)));
+    }
+    return inUse;
+  }
+
+  /**
+   * Save a resumable upload session to Firestore.
+   *
+   * @param session the upload session
+   */
+  public void saveUploadSession(UploadSession session)
+      throws InterruptedException, ExecutionException {
+    firestore.collection(uploadCollectionName).document(session.getId()).set(session).get();
+  }
+
+  /**
+   * Search a resumable upload session with given uploadId.
+   *
+   * @param uploadId unique id of the upload
+   * @return the upload session, or null if it does not exist
+   */
+  public UploadSession getUploadSession(String uploadId)
+      throws InterruptedException, ExecutionException {
+    DocumentSnapshot document =
+        firestore.collection(uploadCollectionName).document(uploadId).get().get();
+    return document.exists() ? document.toObject(UploadSession.class) : null;
+  }
+
+  /**
+   * Update the number of bytes persisted by a resumable upload session.
+   *
+   * @param uploadId unique id of the upload
+   * @param offset number of bytes persisted
+   */
+  public void updateUploadOffset(String uploadId, long offset)
+      throws InterruptedException, ExecutionException {
+    firestore.collection(uploadCollectionName).document(uploadId).update(OFFSET, offset).get();
+  }
+
+  /**
+   * Search the resumable upload sessions created before a given time, oldest first.
+   *
+   * @param cutoff time in milliseconds the sessions were created before
+   * @param limit maximum number of sessions return
+   * @return list of upload sessions
+   */
+  public List<UploadSession> getUploadSessionsBefore(long cutoff, int limit)
+      throws InterruptedException, ExecutionException {
+    QuerySnapshot snapshot = firestore.collection(uploadCollectionName)
+        .whereLessThan(CREATE_TIME, cutoff)
+        .orderBy(CREATE_TIME)
+        .limit(limit)
+        .get()
+        .get();
+    return snapshot.getDocuments().stream()
+        .map(document -> document.toObject(UploadSession.class))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Delete a resumable upload session from Firestore.
+   *
+   * @param uploadId unique id of the upload
+   */
+  public void deleteUploadSession(String uploadId)
+      throws InterruptedException, ExecutionException {
+    firestore.collection(uploadCollectionName).document(uploadId).delete().get();
+  }
+
+  /**
+   * Delete many files from Firestore, and remove their references to their content.
+   *
+   * <p>The files are deleted in transactions of at most {@value #MAX_BATCH_WRITES} writes, which
+   * are run concurrently. Each transaction reads the files again, and deletes them together with
+   * their tag index entries, the changes of the tag counters, the change marker and the removal
+   * of their references to their content, so files deleted in the meantime are not released
+   * twice.
+   *
+   * @param fileMetas metadata of the files, with their tags, order numbers and sizes
+   * @return error messages of the files whose transaction failed or that no longer exist, by
+   *     fileId
    */
-  public void delete(String fileId) throws InterruptedException, ExecutionException {
-    firestore.collection(collectionName).document(fileId).delete().get();
+  public Map<String, String> deleteAll(List<FileMeta> fileMetas) throws InterruptedException {
+    List<List<FileMeta>> chunks = partitionByWrites(fileMetas);
+    List<ApiFuture<List<FileMeta>>> futures = new ArrayList<>();
+    for (List<FileMeta> chunk : chunks) {
+      List<String> fileIds = chunk.stream().map(FileMeta::getId).collect(Collectors.toList());
+      futures.add(firestore.runTransaction(transaction -> deleteFiles(transaction, fileIds)));
+    }
+    Map<String, String> failures = new HashMap<>();
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        Set<String> deletedIds = futures.get(i).get().stream()
+            .map(FileMeta::getId)
+            .collect(Collectors.toSet());
+        chunks.get(i).stream()
+            .filter(fileMeta -> !deletedIds.contains(fileMeta.getId()))
+            .forEach(fileMeta -> failures.put(fileMeta.getId(), "file not found"));
+      } catch (ExecutionException e) {
+        String message = e.getCause().getMessage();
+        chunks.get(i).forEach(fileMeta -> failures.put(fileMeta.getId(), message));
+      }
+    }
+    fileCache.synchronous().invalidateAll(
+        fileMetas.stream().map(FileMeta::getId).collect(Collectors.toList()));
+    fileMetas.stream()
+        .filter(fileMeta -> !failures.containsKey(fileMeta.getId()))
+        .forEach(fileMeta -> fileNameIndex.remove(fileMeta.getId()));
+    return failures;
+  }
+
+  /**
+   * Delete the files that exist in a transaction, with their tag index entries, the changes of
+   * the tag counters, an increment of the change marker and the removal of their references to
+   * their content.
+   *
+   * @param transaction the transaction, with nothing read or written yet
+   * @param fileIds unique ids of the files
+   * @return metadata of the deleted files, as read in the transaction
+   */
+  private List<FileMeta> deleteFiles(Transaction transaction, List<String> fileIds)
+      throws InterruptedException, ExecutionException {
+    CollectionReference collection = firestore.collection(collectionName);
+    DocumentReference[] docRefs =
+        fileIds.stream().distinct().map(collection::document).toArray(DocumentReference[]::new);
+    List<FileMeta> fileMetas = transaction.getAll(docRefs).get().stream()
+        .filter(DocumentSnapshot::exists)
+        .map(this::convertDoc2FileMeta)
+        .collect(Collectors.toList());
+    if (fileMetas.isEmpty()) {
+      return fileMetas;
+    }
+    Map<String, List<FileMeta>> byContent = fileMetas.stream()
+        .collect(Collectors.groupingBy(fileMeta -> LdsUtil.getPathId(fileMeta.getPath())));
+    CollectionReference blobs = firestore.collection(blobCollectionName);
+    DocumentReference[] blobRefs =
+        byContent.keySet().stream().map(blobs::document).toArray(DocumentReference[]::new);
+    List<DocumentSnapshot> blobDocuments = transaction.getAll(blobRefs).get();
+
+    Map<String, TagIndex.TagDelta> deltas = new HashMap<>();
+    for (FileMeta fileMeta : fileMetas) {
+      transaction.delete(collection.document(fileMeta.getId()));
+      writeTagIndex(transaction, fileMeta, null);
+      TagIndex.addTagDeltas(deltas, fileMeta, -1);
+    }
+    writeTagCounters(transaction, deltas);
+    bumpChangeMarker(transaction);
+    for (DocumentSnapshot blob : blobDocuments) {
+      List<FileMeta> sharing = byContent.get(blob.getId());
+      writeBlobRelease(transaction, blob, sharing.get(0).getPath(), sharing.size());
+    }
+    return fileMetas;
   }
 
   /** Delete a collection in Firestore. */
   public void deleteCollection() throws InterruptedException, ExecutionException {
     firestore.recursiveDelete(firestore.collection(collectionName)).get();
+    firestore.recursiveDelete(firestore.collection(blobCollectionName)).get();
+    firestore.recursiveDelete(firestore.collection(uploadCollectionName)).get();
+    firestore.recursiveDelete(firestore.collection(tombstoneCollectionName)).get();
+    firestore.recursiveDelete(firestore.collection(tagIndexCollectionName)).get();
+    firestore.recursiveDelete(firestore.collection(tagCounterCollectionName)).get();
+    fileCache.synchronous().invalidateAll();
+    fileNameIndex.clear();
+    bumpChangeMarker(firestore.batch()).commit().get();
+  }
+
+  /**
+   * Search files whose thumbnails are pending and not leased by any instance. The files never
+   * attempted come first, oldest first, then the failed attempts whose lease expired.
+   *
+   * @param limit maximum number of files return
+   * @return list of files data
+   */
+  public List<BaseFile> getPendingThumbnails(int limit)
+      throws InterruptedException, ExecutionException {
+    QuerySnapshot snapshot = firestore.collection(collectionName)
+        .whereEqualTo(THUMBNAIL_STATE, ThumbnailState.PENDING.name())
+        .whereLessThanOrEqualTo(THUMBNAIL_LEASE, System.currentTimeMillis())
+        .orderBy(THUMBNAIL_LEASE)
+        .orderBy(ORDER_NO)
+        .limit(limit)
+        .get()
+        .get();
+    return convertDoc2File(snapshot.getDocuments());
+  }
+
+  /**
+   * Claim the pending thumbnail of a file for a while, so that no other instance generates it
+   * at the same time. A claim that is not followed by a new state expires with its lease, and
+   * the thumbnail is attempted again.
+   *
+   * @param fileId unique id of the file
+   * @param path path of the content the thumbnail is generated from
+   * @param leaseMillis duration of the lease in milliseconds
+   * @return number of the attempt, or 0 if the thumbnail is not pending, is leased by another
+   *     instance, or the file was deleted or its content replaced
+   */
+  public int claimThumbnail(String fileId, String path, long leaseMillis)
+      throws InterruptedException, ExecutionException {
+    DocumentReference docRef = firestore.collection(collectionName).document(fileId);
+    return firestore.runTransaction(transaction -> {
+      DocumentSnapshot document = transaction.get(docRef).get();
+      long now = System.currentTimeMillis();
+      if (!document.exists() || !path.equals(document.getString(PATH))
+          || !ThumbnailState.PENDING.name().equals(document.getString(THUMBNAIL_STATE))
+          || getLong(document, THUMBNAIL_LEASE) > now) {
+        return 0;
+      }
+      int attempt = (int) getLong(document, THUMBNAIL_ATTEMPTS) + 1;
+      transaction.update(docRef, THUMBNAIL_LEASE, now + leaseMillis, THUMBNAIL_ATTEMPTS, attempt);
+      return attempt;
+    }).get();
+  }
+
+  /**
+   * Update the thumbnail state of a file, unless the file was deleted or its content replaced
+   * since the thumbnail was requested.
+   *
+   * @param fileId unique id of the file
+   * @param path path of the content the thumbnail was generated from
+   * @param state new state of the thumbnail
+   */
+  public void updateThumbnailState(String fileId, String path, ThumbnailState state)
+      throws InterruptedException, ExecutionException {
+    DocumentReference docRef = firestore.collection(collectionName).document(fileId);
+    firestore.runTransaction(transaction -> {
+      DocumentSnapshot document = transaction.get(docRef).get();
+      if (!document.exists() || !path.equals(document.getString(PATH))) {
+        return null;
+      }
+      transaction.update(docRef, THUMBNAIL_STATE, state.name());
+      bumpChangeMarker(transaction);
+      return null;
+    }).get();
+    fileCache.synchronous().invalidate(fileId);
+  }
+
+  /**
+   * Get the change marker of the collection without blocking the calling thread.
+   *
+   * <p>Every write made through this service increments one shard of the marker in the same
+   * commit, so an unchanged sum of the shards means that no query result can have changed.
+   * Reading it costs a single batched read of the shards instead of a query. While the replica is
+   * synced, its version is returned instead, as the results are read from the replica, which may
+   * lag behind the marker.
+   *
+   * @return future of the current marker, 0 if the collection was never written
+   */
+  public CompletableFuture<Long> getChangeMarkerAsync() {
+    if (fileReplica.isSynced()) {
+      return CompletableFuture.completedFuture(fileReplica.getVersion());
+    }
+    CollectionReference markers = firestore.collection(markerCollectionName);
+    DocumentReference[] shardRefs = new DocumentReference[markerShards];
+    for (int shard = 0; shard < markerShards; shard++) {
+      shardRefs[shard] = markers.document(MARKER_DOCUMENT + "-" + shard);
+    }
+    ApiFuture<List<DocumentSnapshot>> future = firestore.getAll(shardRefs, FieldMask.of(VERSION));
+    return LdsUtil.toCompletableFuture(future).thenApply(documents -> documents.stream()
+        .filter(DocumentSnapshot::exists)
+        .mapToLong(document -> getLong(document, VERSION))
+        .sum());
+  }
+
+  /**
+   * Get the posting list of a tag in the tag index. Each posting is keyed by the order number of
+   * a file behind a hash prefix, and holds its ID and order number.
+   *
+   * @param tag the tag
+   * @return the collection of postings
+   */
+  private CollectionReference getPostings(String tag) {
+    return firestore.collection(tagIndexCollectionName).document(TagIndex.getTagId(tag))
+        .collection(POSTINGS);
+  }
+
+  /**
+   * Add the changes of the tag index between two versions of a file to a write batch.
+   *
+   * @param writes the batch that saves or deletes the file
+   * @param oldMeta previous version of the file, or null if it is new
+   * @param newMeta new version of the file, or null if it is deleted
+   */
+  private void writeTagIndex(UpdateBuilder<?> writes, FileMeta oldMeta, FileMeta newMeta) {
+    TagIndex.getRemovedPostings(oldMeta, newMeta).forEach((tag, orderNo) ->
+        writes.delete(getPostings(tag).document(TagIndex.getPostingId(orderNo))));
+    TagIndex.getAddedPostings(oldMeta, newMeta).forEach((tag, orderNo) ->
+        writes.set(getPostings(tag).document(TagIndex.getPostingId(orderNo)),
+            Map.of(ID, newMeta.getId(), ORDER_NO, orderNo)));
+  }
+
+  /**
+   * Get the number of files and their total size for each tag, summed over the shards of the tag
+   * counters. Tags without files are left out.
+   *
+   * @return statistics of the tags, the most used first
+   */
+  public List<TagStats> getTagStats() throws InterruptedException, ExecutionException {
+    Map<String, TagStats> stats = new HashMap<>();
+    for (QueryDocumentSnapshot document :
+        firestore.collection(tagCounterCollectionName).get().get().getDocuments()) {
+      TagStats tagStats = stats.computeIfAbsent(
+          document.getString(TAG), tag -> new TagStats(tag, 0, 0));
+      tagStats.setCount(tagStats.getCount() + getLong(document, COUNT));
+      tagStats.setBytes(tagStats.getBytes() + getLong(document, BYTES));
+    }
+    return stats.values().stream()
+        .filter(tagStats -> tagStats.getCount() > 0)
+        .sorted(Comparator.comparingLong(TagStats::getCount).reversed()
+            .thenComparing(TagStats::getTag))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Add the changes of the tag counters to a write batch. Each tag is counted on a few shards,
+   * and each write increments a random one, so that frequent writes of a popular tag do not
+   * contend on a single document.
+   *
+   * @param writes the batch that saves or deletes the files
+   * @param deltas changes by tag
+   */
+  private void writeTagCounters(UpdateBuilder<?> writes, Map<String, TagIndex.TagDelta> deltas) {
+    CollectionReference counters = firestore.collection(tagCounterCollectionName);
+    deltas.forEach((tag, delta) -> {
+      if (delta.getCount() == 0 && delta.getBytes() == 0) {
+        return;
+      }
+      String counterId =
+          TagIndex.getCounterId(tag, ThreadLocalRandom.current().nextInt(tagCounterShards));
+      writes.set(counters.document(counterId), Map.of(TAG, tag,
+          COUNT, FieldValue.increment(delta.getCount()),
+          BYTES, FieldValue.increment(delta.getBytes())), SetOptions.merge());
+    });
+  }
+
+  /**
+   * Get the number of distinct tags of a file.
+   *
+   * @param fileMeta metadata of the file
+   * @return number of distinct tags
+   */
+  private int getTagCount(FileMeta fileMeta) {
+    return fileMeta.getTags() == null ? 0 : (int) fileMeta.getTags().stream().distinct().count();
+  }
+
+  /**
+   * Get a number field of a document.
+   *
+   * @param document the document
+   * @param field name of the field
+   * @return value of the field, or 0 if it is missing
+   */
+  private long getLong(DocumentSnapshot document, String field) {
+    Long value = document.getLong(field);
+    return value == null ? 0 : value;
+  }
+
+  /**
+   * Split files into chunks whose documents, tag index entries, tag counters and references to
+   * their content fit in a write batch or a transaction together with the change marker.
+   *
+   * @param fileMetas metadata of the files
+   * @return the chunks, in the order of the input
+   */
+  private List<List<FileMeta>> partitionByWrites(List<FileMeta> fileMetas) {
+    List<List<FileMeta>> chunks = new ArrayList<>();
+    List<FileMeta> chunk = new ArrayList<>();
+    int writes = 0;
+    for (FileMeta fileMeta : fileMetas) {
+      // the reference to the content may take its document and its tombstone
+      int fileWrites = 3 + TagIndex.getPostingKeys(fileMeta).size() + getTagCount(fileMeta);
+      if (!chunk.isEmpty() && writes + fileWrites > MAX_BATCH_WRITES - 1) {
+        chunks.add(chunk);
+        chunk = new ArrayList<>();
+        writes = 0;
+      }
+      chunk.add(fileMeta);
+      writes += fileWrites;
+    }
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  /**
+   * Add an increment of the change marker to a write batch or a transaction. The marker is
+   * counted on a few shards, and each write increments a random one, so that frequent writes do
+   * not contend on a single document.
+   *
+   * @param writes the batch or transaction that changes the collection
+   * @return the same batch or transaction
+   */
+  private <T extends UpdateBuilder<T>> T bumpChangeMarker(T writes) {
+    DocumentReference shardRef = firestore.collection(markerCollectionName)
+        .document(MARKER_DOCUMENT + "-" + ThreadLocalRandom.current().nextInt(markerShards));
+    return writes.set(shardRef, Map.of(VERSION, FieldValue.increment(1)), SetOptions.merge());
   }
 
   /**
@@ -126,13 +1692,20 @@ public class FirestoreService {
   private List<BaseFile> convertDoc2File(List<QueryDocumentSnapshot> documents) {
     String resourceBasePath = LdsUtil.getResourceBasePath(basePath);
     return documents.stream()
-        .map(doc -> new BaseFile(doc, resourceBasePath))
+        .map(doc -> signedUrlService.sign(new BaseFile(doc, resourceBasePath)))
         .collect(Collectors.toList());
   }
 
+  private FileMeta convertDoc2FileMeta(DocumentSnapshot document) {
+    FileMeta fileMeta = document.toObject(FileMeta.class);
+    fileMeta.setId(document.getId());
+    return fileMeta;
+  }
+
   /** Close the channels and release resources. */
   @PreDestroy
   public void close() throws Exception {
+    stopReplicaListener();
     firestore.close();
   }
 }
@@ -23,6 +23,7 @@ import io.opentelemetry.sdk.OpenTelemetrySdk;
 import org.springframework.stereotype.Service;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class OpenTelemetryService {
@@ -50,4 +51,27 @@ public class OpenTelemetryService {
 			span.end();
 		}
 	}
+
+	/**
+	 * create a new span for an asynchronous operation. The callable only starts the operation
+	 * within the span, and the span ends when the returned future completes.
+	 *
+	 * @param instrumentationScopeName represents the name of the instrumentation library that is being used.
+	 * @param spanName  represents the name of the span that is being created.
+	 * @param callable is a function that starts the operation within the span.
+	 * @return future of generic type
+	 */
+	public <T> CompletableFuture<T> spanScopeAsync(String instrumentationScopeName, String spanName,
+			Callable<CompletableFuture<T>> callable) throws Exception {
+		Tracer tracer = openTelemetrySdk.getTracer(instrumentationScopeName, INSTRUMENTATION_SCOPE_VERSION);
+		Span span = tracer.spanBuilder(spanName).startSpan();
+		CompletableFuture<T> future;
+		try (Scope ss = span.makeCurrent()) {
+			future = callable.call();
+		} catch (Exception e) {
+			span.end();
+			throw e;
+		}
+		return future.whenComplete((result, t) -> span.end());
+	}
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.storage.Blob;
+import com.google.common.collect.Lists;
+import com.googlecodesamples.cloud.jss.lds.model.PurgeState;
+import com.googlecodesamples.cloud.jss.lds.model.PurgeStatusResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Backend service for the background purge of all files.
+ *
+ * <p>The bucket is listed one bounded page at a time, and each page is split into batch requests
+ * of {@value StorageService#MAX_BATCH_DELETES} deletes that run concurrently, with at most
+ * purge.concurrency batches in flight, so memory does not grow with the size of the bucket. The
+ * Firestore collections are deleted in parallel with the blobs. Only one purge runs at a time on
+ * an instance, and its progress is kept in memory.
+ */
+@Service
+public class PurgeService {
+  private static final Logger log = LoggerFactory.getLogger(PurgeService.class);
+  private final FirestoreService firestoreService;
+  private final StorageService storageService;
+  private final AtomicBoolean running = new AtomicBoolean();
+  private final AtomicLong listedObjects = new AtomicLong();
+  private final AtomicLong deletedObjects = new AtomicLong();
+  private final AtomicLong failedObjects = new AtomicLong();
+  private volatile PurgeState state = PurgeState.IDLE;
+  private volatile boolean listingComplete;
+  private volatile boolean metadataDeleted;
+  private volatile long startMillis;
+  private volatile long endMillis;
+  private volatile String error;
+  private ExecutorService coordinator;
+  private ExecutorService batchExecutor;
+
+  @Value("${storage.bucket.name}")
+  private String bucketName;
+
+  @Value("${purge.page.size}")
+  private int pageSize;
+
+  @Value("${purge.concurrency}")
+  private int concurrency;
+
+  public PurgeService(FirestoreService firestoreService, StorageService storageService) {
+    this.firestoreService = firestoreService;
+    this.storageService = storageService;
+  }
+
+  /** Create the thread that runs the purge and the pool that sends the batch requests. */
+  @PostConstruct
+  public void init() {
+    this.coordinator = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("purge-"));
+    this.batchExecutor =
+        Executors.newFixedThreadPool(concurrency, new CustomizableThreadFactory("purge-batch-"));
+  }
+
+  /**
+   * Start the purge of all files, unless one is running already.
+   *
+   * @return true if a purge was started
+   */
+  public boolean start() {
+    if (!running.compareAndSet(false, true)) {
+      return false;
+    }
+    listedObjects.set(0);
+    deletedObjects.set(0);
+    failedObjects.set(0);
+    listingComplete = false;
+    metadataDeleted = false;
+    error = null;
+    startMillis = System.currentTimeMillis();
+    endMillis = 0;
+    state = PurgeState.RUNNING;
+    coordinator.execute(this::run);
+    return true;
+  }
+
+  /**
+   * Get the progress of the current or last purge.
+   *
+   * <p>The rate is the number of objects processed per second. The ETA is only known once the
+   * whole bucket is listed, which runs ahead of the deletes.
+   *
+   * @return state, counts, rate and ETA of the purge
+   */
+  public PurgeStatusResponse getStatus() {
+    PurgeStatusResponse status = new PurgeStatusResponse();
+    status.setState(state);
+    if (state == PurgeState.IDLE) {
+      return status;
+    }
+    long listed = listedObjects.get();
+    long processed = deletedObjects.get() + failedObjects.get();
+    long end = endMillis == 0 ? System.currentTimeMillis() : endMillis;
+    double elapsedSeconds = Math.max(end - startMillis, 1) / 1000.0;
+    double rate = processed / elapsedSeconds;
+    status.setStartTime(new Date(startMillis));
+    status.setEndTime(endMillis == 0 ? null : new Date(endMillis));
+    status.setListedObjects(listed);
+    status.setDeletedObjects(deletedObjects.get());
+    status.setFailedObjects(failedObjects.get());
+    status.setListingComplete(listingComplete);
+    status.setMetadataDeleted(metadataDeleted);
+    status.setRate(rate);
+    if (state != PurgeState.RUNNING) {
+      status.setEtaSeconds(0L);
+    } else if (listingComplete && rate > 0) {
+      status.setEtaSeconds((long) Math.ceil((listed - processed) / rate));
+    }
+    status.setError(error);
+    return status;
+  }
+
+  /** Stop sending batch requests; a purge in progress ends where it is. */
+  @PreDestroy
+  public void close() {
+    coordinator.shutdownNow();
+    batchExecutor.shutdownNow();
+  }
+
+  private void run() {
+    CompletableFuture<Void> metadata = CompletableFuture.runAsync(() -> {
+      try {
+        firestoreService.deleteCollection();
+        metadataDeleted = true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CompletionException(e);
+      } catch (ExecutionException e) {
+        throw new CompletionException(e.getCause());
+      }
+    }, batchExecutor);
+    Semaphore permits = new Semaphore(concurrency);
+    try {
+      for (Page<Blob> page = storageService.list(bucketName, pageSize); page != null;
+          page = page.getNextPage()) {
+        List<String> fileIds = new ArrayList<>();
+        page.getValues().forEach(blob -> fileIds.add(blob.getName()));
+        for (List<String> chunk : Lists.partition(fileIds, StorageService.MAX_BATCH_DELETES)) {
+          permits.acquire();
+          listedObjects.addAndGet(chunk.size());
+          batchExecutor.execute(() -> deleteBatch(chunk, permits));
+        }
+      }
+      listingComplete = true;
+      // wait for the batches in flight
+      permits.acquire(concurrency);
+      permits.release(concurrency);
+      metadata.join();
+      state = failedObjects.get() == 0 ? PurgeState.COMPLETED : PurgeState.FAILED;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      fail(e);
+    } catch (RuntimeException e) {
+      fail(e instanceof CompletionException ? e.getCause() : e);
+    } finally {
+      endMillis = System.currentTimeMillis();
+      running.set(false);
+    }
+  }
+
+  private void deleteBatch(List<String> fileIds, Semaphore permits) {
+    try {
+      int deleted = storageService.deleteBatch(bucketName, fileIds);
+      deletedObjects.addAndGet(deleted);
+      failedObjects.addAndGet(fileIds.size() - deleted);
+    } catch (RuntimeException e) {
+      log.error("failed to delete a batch of " + fileIds.size() + " files", e);
+      failedObjects.addAndGet(fileIds.size());
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void fail(Throwable e) {
+    log.error("purge failed", e);
+    error = e.getMessage();
+    state = PurgeState.FAILED;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Byte cache on local disk, in a ring of memory-mapped segment files of a fixed size.
+ *
+ * <p>Values are appended to the current segment. When it is full, the next segment of the ring
+ * is reused, and the entries it held are evicted, so the oldest writes are evicted first and the
+ * disk used never exceeds the size of the ring. The index of the entries is kept on heap, so the
+ * segments are emptied when the cache is opened.
+ */
+public class SegmentedDiskCache implements Closeable {
+  private static final String SEGMENT_PREFIX = "segment-";
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Path directory;
+  private final int segmentBytes;
+  private final FileChannel[] channels;
+  private final MappedByteBuffer[] segments;
+  private final List<List<String>> segmentKeys = new ArrayList<>();
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private int current;
+  private int writeOffset;
+  private long bytes;
+
+  /**
+   * Create the segment files in a directory and map them.
+   *
+   * @param directory directory of the segment files
+   * @param segmentCount number of segments in the ring
+   * @param segmentBytes size of each segment, and the largest value that can be cached
+   */
+  public SegmentedDiskCache(Path directory, int segmentCount, int segmentBytes)
+      throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.channels = new FileChannel[segmentCount];
+    this.segments = new MappedByteBuffer[segmentCount];
+    Files.createDirectories(directory);
+    for (int i = 0; i < segmentCount; i++) {
+      channels[i] = FileChannel.open(directory.resolve(SEGMENT_PREFIX + i),
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      segments[i] = channels[i].map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+      segmentKeys.add(new ArrayList<>());
+    }
+  }
+
+  /**
+   * Get a cached value.
+   *
+   * @param key the key
+   * @return a copy of the value, or null if it is not cached
+   */
+  public byte[] get(String key) {
+    lock.readLock().lock();
+    try {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        missCount.increment();
+        return null;
+      }
+      byte[] value = new byte[entry.length];
+      segments[entry.segment].get(entry.offset, value);
+      hitCount.increment();
+      return value;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Cache a value, evicting the oldest segment if the current one is full. Values larger than a
+   * segment are not cached.
+   *
+   * @param key the key
+   * @param value the value
+   */
+  public void put(String key, byte[] value) {
+    if (value.length > segmentBytes) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      remove(key);
+      if (writeOffset + value.length > segmentBytes) {
+        current = (current + 1) % segments.length;
+        writeOffset = 0;
+        segmentKeys.get(current).forEach(evicted -> {
+          Entry entry = entries.get(evicted);
+          if (entry != null && entry.segment == current) {
+            remove(evicted);
+          }
+        });
+        segmentKeys.get(current).clear();
+      }
+      segments[current].put(writeOffset, value);
+      entries.put(key, new Entry(current, writeOffset, value.length));
+      segmentKeys.get(current).add(key);
+      writeOffset += value.length;
+      bytes += value.length;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a value. Its space is reclaimed when its segment is reused.
+   *
+   * @param key the key
+   */
+  public void invalidate(String key) {
+    lock.writeLock().lock();
+    try {
+      remove(key);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Get the number of cached values.
+   *
+   * @return number of entries
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the size of the cached values, without the space of the removed ones not reused yet.
+   *
+   * @return bytes held
+   */
+  public long getBytes() {
+    lock.readLock().lock();
+    try {
+      return bytes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the size of the ring.
+   *
+   * @return bytes of all segments
+   */
+  public long getCapacity() {
+    return (long) segmentBytes * segments.length;
+  }
+
+  /** Get the number of lookups that found their value. */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /** Get the number of lookups that did not find their value. */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /** Close and delete the segment files, and the directory if nothing else is left in it. */
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      entries.clear();
+      for (int i = 0; i < channels.length; i++) {
+        channels[i].close();
+        Files.deleteIfExists(directory.resolve(SEGMENT_PREFIX + i));
+      }
+      try (Stream<Path> files = Files.list(directory)) {
+        if (files.findAny().isEmpty()) {
+          Files.delete(directory);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Remove the entry of a key, if any. */
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      bytes -= entry.length;
+    }
+  }
+
+  /** Location of a value in the segments. */
+  private static final class Entry {
+    private final int segment;
+    private final int offset;
+    private final int length;
+
+    private Entry(int segment, int offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
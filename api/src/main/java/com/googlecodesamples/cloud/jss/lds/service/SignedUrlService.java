@@ -0,0 +1,140 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.auth.ServiceAccountSigner;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
+import jakarta.annotation.PostConstruct;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+/**
+ * Backend service for V4 signed download URLs.
+ *
+ * <p>When enabled, the URLs of the files point to Cloud Storage directly instead of the resource
+ * path. Time is divided into signing windows of the validity minus the refresh margin. A URL is
+ * signed once per object and window and expires at the start of the window plus the validity, so
+ * every URL handed out has at least the margin left, and all URLs change together when a new
+ * window starts.
+ */
+@Service
+public class SignedUrlService {
+  private final StorageService storageService;
+  private Cache<String, String> urlCache;
+  private ServiceAccountSigner signer;
+  private long windowMillis;
+
+  @Value("${storage.bucket.name}")
+  private String bucketName;
+
+  @Value("${storage.signed.url.enabled}")
+  private boolean enabled;
+
+  @Value("${storage.signed.url.validity.seconds}")
+  private long validitySeconds;
+
+  @Value("${storage.signed.url.margin.seconds}")
+  private long marginSeconds;
+
+  @Value("${storage.signed.url.key.path}")
+  private String keyPath;
+
+  @Value("${storage.signed.url.cache.size}")
+  private long cacheSize;
+
+  public SignedUrlService(StorageService storageService) {
+    this.storageService = storageService;
+  }
+
+  /**
+   * Create the URL cache, and load the signing key if one is configured. Without a key the URLs
+   * are signed with the default credentials.
+   */
+  @PostConstruct
+  public void init() throws IOException {
+    this.windowMillis = (validitySeconds - marginSeconds) * 1000;
+    if (windowMillis <= 0) {
+      throw new IllegalStateException("the signed URL validity must exceed the margin");
+    }
+    this.urlCache = Caffeine.newBuilder()
+        .maximumSize(cacheSize)
+        .expireAfterWrite(Duration.ofMillis(windowMillis))
+        .build();
+    if (enabled && StringUtils.hasText(keyPath)) {
+      try (InputStream key = new FileInputStream(keyPath)) {
+        this.signer = ServiceAccountCredentials.fromStream(key);
+      }
+    }
+  }
+
+  /**
+   * Get a copy of a file with signed URLs, if signed URLs are enabled. The thumbnail URL is only
+   * signed for images. The file itself is not changed, as it may be shared by the metadata cache
+   * or the replica.
+   *
+   * @param file the file
+   * @return the signed copy, or the same file if signed URLs are disabled
+   */
+  public BaseFile sign(BaseFile file) {
+    if (!enabled || file.getPath() == null) {
+      return file;
+    }
+    BaseFile signed = new BaseFile();
+    BeanUtils.copyProperties(file, signed);
+    signed.setUrl(getSignedUrl(file.getPath()));
+    if (file.checkImageFileType()) {
+      signed.setThumbUrl(getSignedUrl(file.genThumbnailPath()));
+    }
+    return signed;
+  }
+
+  /**
+   * Get the signing window the URLs are currently signed in.
+   *
+   * @return start of the current window in milliseconds, or 0 if signed URLs are disabled
+   */
+  public long getSigningWindow() {
+    if (!enabled) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    return now - now % windowMillis;
+  }
+
+  /**
+   * Get the signed URL of an object in the current window, signing it on first use.
+   *
+   * @param path path of the object in the bucket
+   * @return the signed URL
+   */
+  private String getSignedUrl(String path) {
+    long windowStart = getSigningWindow();
+    return urlCache.get(path + "@" + windowStart, key -> {
+      long validityMillis = windowStart + validitySeconds * 1000 - System.currentTimeMillis();
+      return storageService.signUrl(bucketName, path, validityMillis, signer).toString();
+    });
+  }
+}
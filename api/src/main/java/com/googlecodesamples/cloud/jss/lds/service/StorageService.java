@@ -16,22 +16,88 @@
 
 package com.googlecodesamples.cloud.jss.lds.service;
 
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.InputStreamContent;
 import com.google.api.gax.paging.Page;
+import com.google.auth.ServiceAccountSigner;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.http.HttpTransportOptions;
 import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageBatch;
+import com.google.cloud.storage.StorageBatchResult;
+import com.google.cloud.storage.StorageException;
 import com.google.cloud.storage.StorageOptions;
-import javax.annotation.PreDestroy;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 /** Backend service controller for CloudStorage */
 @Service
 public class StorageService {
+  private static final Logger log = LoggerFactory.getLogger(StorageService.class);
+  public static final int MAX_BATCH_DELETES = 100;
+  private static final int HTTP_RESUME_INCOMPLETE = 308;
+  private static final int UPLOAD_CHUNK_ALIGNMENT = 256 * 1024;
+  private static final String UPLOAD_PATH = "/upload/storage/v1/b/%s/o";
   private final Storage storage;
+  private final HttpRequestFactory requestFactory;
+
+  @Value("${storage.upload.chunk.size}")
+  private int uploadChunkSize;
+
+  @Value("${storage.download.buffer.size}")
+  private int downloadBufferSize;
+
+  @Value("${storage.download.buffer.pool.size}")
+  private int downloadBufferPoolSize;
+
+  private BlockingQueue<ByteBuffer> downloadBuffers;
 
   public StorageService() {
-    this.storage = StorageOptions.getDefaultInstance().getService();
+    StorageOptions options = StorageOptions.getDefaultInstance();
+    HttpTransportOptions transportOptions = (HttpTransportOptions) options.getTransportOptions();
+    this.storage = options.getService();
+    this.requestFactory = transportOptions.getHttpTransportFactory().create()
+        .createRequestFactory(transportOptions.getHttpRequestInitializer(options));
+  }
+
+  /** Create the pool of download buffers, which are allocated on first use. */
+  @PostConstruct
+  public void init() {
+    this.downloadBuffers = new ArrayBlockingQueue<>(downloadBufferPoolSize);
   }
 
   /**
@@ -47,6 +113,229 @@ public class StorageService {
     storage.create(blobInfo, content);
   }
 
+  /**
+   * Save a file to Cloud Storage by streaming its content in chunks.
+   *
+   * <p>At most one chunk of the file is buffered in memory at a time.
+   *
+   * @param bucketName name of the bucket
+   * @param fileId unique id of the file
+   * @param contentType content type of the file
+   * @param content input stream of the file content
+   */
+  public void save(String bucketName, String fileId, String contentType, InputStream content)
+      throws IOException {
+    BlobInfo blobInfo = BlobInfo.newBuilder(bucketName, fileId).setContentType(contentType).build();
+    try (WriteChannel writer = storage.writer(blobInfo)) {
+      writer.setChunkSize(uploadChunkSize);
+      ByteStreams.copy(Channels.newChannel(content), writer);
+    }
+  }
+
+  /**
+   * Start a resumable upload session for a file.
+   *
+   * <p>The session URI identifies the upload in the resumable upload protocol of Cloud Storage
+   * and authorizes writes to it, so it must not be shared with clients.
+   *
+   * @param bucketName name of the bucket
+   * @param fileId unique id of the file
+   * @param contentType content type of the file
+   * @param size size of the file in bytes
+   * @return URI of the upload session
+   */
+  public String createUploadSession(String bucketName, String fileId, String contentType,
+      long size) throws IOException {
+    GenericUrl url = new GenericUrl(
+        storage.getOptions().getHost() + String.format(UPLOAD_PATH, bucketName));
+    url.set("uploadType", "resumable");
+    url.set("name", fileId);
+    HttpRequest request = requestFactory.buildPostRequest(url, new EmptyContent());
+    request.getHeaders().set("X-Upload-Content-Type", contentType);
+    request.getHeaders().set("X-Upload-Content-Length", size);
+    HttpResponse response = request.execute();
+    try {
+      return response.getHeaders().getLocation();
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  /**
+   * Write a chunk of a file to a resumable upload session. The content is streamed to Cloud
+   * Storage without being buffered.
+   *
+   * <p>Every chunk but the last must be a multiple of 256 KiB. Cloud Storage may persist only a
+   * part of a chunk, so the caller resumes from the returned offset.
+   *
+   * @param sessionUri URI of the upload session
+   * @param offset offset of the chunk in the file
+   * @param length length of the chunk in bytes
+   * @param size size of the file in bytes
+   * @param content content of the chunk
+   * @return number of bytes of the file persisted by Cloud Storage
+   */
+  public long writeUploadChunk(String sessionUri, long offset, long length, long size,
+      InputStream content) throws IOException {
+    boolean last = offset + length == size;
+    if (length < 0 || offset + length > size) {
+      throw new IllegalArgumentException("the chunk exceeds the size of the file");
+    }
+    if (!last && (length == 0 || length % UPLOAD_CHUNK_ALIGNMENT != 0)) {
+      throw new IllegalArgumentException(
+          "chunks before the last must be a multiple of " + UPLOAD_CHUNK_ALIGNMENT + " bytes");
+    }
+    HttpRequest request;
+    if (length == 0) {
+      request = requestFactory.buildPutRequest(new GenericUrl(sessionUri), new EmptyContent());
+      request.getHeaders().setContentRange("bytes */" + size);
+    } else {
+      InputStreamContent body = new InputStreamContent(null, content).setLength(length);
+      request = requestFactory.buildPutRequest(new GenericUrl(sessionUri), body);
+      request.getHeaders().setContentRange(
+          "bytes " + offset + "-" + (offset + length - 1) + "/" + (last ? size : "*"));
+    }
+    return executeUploadRequest(request, size);
+  }
+
+  /**
+   * Get the number of bytes of a file persisted by a resumable upload session.
+   *
+   * @param sessionUri URI of the upload session
+   * @param size size of the file in bytes
+   * @return number of bytes persisted, equal to the size when the upload is complete
+   */
+  public long getUploadOffset(String sessionUri, long size) throws IOException {
+    HttpRequest request =
+        requestFactory.buildPutRequest(new GenericUrl(sessionUri), new EmptyContent());
+    request.getHeaders().setContentRange("bytes */" + size);
+    return executeUploadRequest(request, size);
+  }
+
+  /**
+   * Cancel a resumable upload session, so that Cloud Storage discards the bytes persisted so far.
+   * Sessions that are complete or expired already are left as they are.
+   *
+   * @param sessionUri URI of the upload session
+   */
+  public void cancelUploadSession(String sessionUri) throws IOException {
+    HttpRequest request = requestFactory.buildDeleteRequest(new GenericUrl(sessionUri));
+    request.setThrowExceptionOnExecuteError(false);
+    request.execute().disconnect();
+  }
+
+  /**
+   * Check whether a file exists in Cloud Storage.
+   *
+   * @param bucketName name of the bucket
+   * @param fileId unique id of the file
+   * @return true if the file exists
+   */
+  public boolean exists(String bucketName, String fileId) {
+    return storage.get(BlobId.of(bucketName, fileId)) != null;
+  }
+
+  /**
+   * Open a stream to read a file from Cloud Storage.
+   *
+   * @param bucketName name of the bucket
+   * @param fileId unique id of the file
+   * @return input stream of the file content, to be closed by the caller
+   */
+  public InputStream read(String bucketName, String fileId) {
+    return Channels.newInputStream(storage.reader(BlobId.of(bucketName, fileId)));
+  }
+
+  /**
+   * Read a small file from Cloud Storage into memory.
+   *
+   * @param bucketName name of the bucket
+   * @param fileId unique id of the file
+   * @return content of the file, or null if it does not exist
+   */
+  public byte[] readAllBytes(String bucketName, String fileId) {
+    try {
+      return storage.readAllBytes(BlobId.of(bucketName, fileId));
+    } catch (StorageException e) {
+      if (e.getCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Get the metadata of a file in Cloud Storage.
+   *
+   * @param bucketName name of the bucket
+   * @param fileId unique id of the file
+   * @return the metadata of the file, or null if it does not exist
+   */
+  public Blob get(String bucketName, String fileId) {
+    return storage.get(BlobId.of(bucketName, fileId));
+  }
+
+  /**
+   * Create a V4 signed URL to download a file.
+   *
+   * @param bucketName name of the bucket
+   * @param fileId unique id of the file
+   * @param validityMillis time the URL is valid for, in milliseconds
+   * @param signer the key to sign with, or null to use the credentials of the client
+   * @return the signed URL
+   */
+  public URL signUrl(String bucketName, String fileId, long validityMillis,
+      ServiceAccountSigner signer) {
+    BlobInfo blobInfo = BlobInfo.newBuilder(bucketName, fileId).build();
+    if (signer == null) {
+      return storage.signUrl(blobInfo, validityMillis, TimeUnit.MILLISECONDS,
+          Storage.SignUrlOption.withV4Signature());
+    }
+    return storage.signUrl(blobInfo, validityMillis, TimeUnit.MILLISECONDS,
+        Storage.SignUrlOption.withV4Signature(), Storage.SignUrlOption.signWith(signer));
+  }
+
+  /**
+   * Copy a range of a file from Cloud Storage to an output stream.
+   *
+   * <p>Only the requested range is read from Cloud Storage, and it is copied through a heap
+   * buffer of fixed size taken from a pool, so the memory used does not depend on the length of
+   * the range. The output stream takes the backing array of the buffer without another copy.
+   *
+   * @param blobId id of the file, including the generation to read
+   * @param start offset of the first byte of the range
+   * @param length number of bytes to copy
+   * @param outputStream the stream to copy to, not closed
+   */
+  public void copyRange(BlobId blobId, long start, long length, OutputStream outputStream)
+      throws IOException {
+    ByteBuffer buffer = downloadBuffers.poll();
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(downloadBufferSize);
+    }
+    WritableByteChannel output = Channels.newChannel(outputStream);
+    try (ReadChannel reader = storage.reader(blobId)) {
+      reader.setChunkSize(downloadBufferSize);
+      reader.seek(start);
+      reader.limit(start + length);
+      long remaining = length;
+      while (remaining > 0) {
+        buffer.clear();
+        int read = reader.read(buffer);
+        if (read < 0) {
+          throw new EOFException("unexpected end of " + blobId.getName());
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          output.write(buffer);
+        }
+        remaining -= read;
+      }
+    } finally {
+      downloadBuffers.offer(buffer);
+    }
+  }
+
   /**
    * Delete a file with given fileId.
    *
@@ -58,20 +347,157 @@ public class StorageService {
   }
 
   /**
-   * Delete all files in the bucket.
+   * Get the generations of many files, in batch requests of at most {@value #MAX_BATCH_DELETES}
+   * files.
    *
    * @param bucketName name of the bucket
+   * @param fileIds unique ids of the files
+   * @return generation of each file that exists, by fileId
+   * @throws StorageException if the lookup of any file fails
    */
-  public void batchDelete(String bucketName) {
-    Page<Blob> blobs = storage.list(bucketName);
-    if (!blobs.getValues().iterator().hasNext()) {
-      return;
+  public Map<String, Long> getGenerations(String bucketName, List<String> fileIds) {
+    Map<String, Long> generations = new HashMap<>();
+    for (List<String> chunk : Lists.partition(fileIds, MAX_BATCH_DELETES)) {
+      StorageBatch batchRequest = storage.batch();
+      List<StorageBatchResult<Blob>> results = chunk.stream()
+          .map(fileId -> batchRequest.get(BlobId.of(bucketName, fileId), Storage.BlobGetOption
+              .fields(Storage.BlobField.NAME, Storage.BlobField.GENERATION)))
+          .collect(Collectors.toList());
+      batchRequest.submit();
+      for (StorageBatchResult<Blob> result : results) {
+        Blob blob = result.get();
+        if (blob != null) {
+          generations.put(blob.getName(), blob.getGeneration());
+        }
+      }
     }
-    StorageBatch batchRequest = storage.batch();
-    for (Blob blob : blobs.iterateAll()) {
-      batchRequest.delete(blob.getBlobId());
+    return generations;
+  }
+
+  /**
+   * Delete given generations of many files, in batch requests of at most
+   * {@value #MAX_BATCH_DELETES} files. A file that was rewritten since its generation was read
+   * is kept, and reported like a file that failed to delete.
+   *
+   * @param bucketName name of the bucket
+   * @param generations generation of each file, by fileId
+   * @return unique ids of the files that still exist
+   */
+  public Set<String> deleteGenerations(String bucketName, Map<String, Long> generations) {
+    Set<String> failed = new HashSet<>();
+    List<String> fileIds = new ArrayList<>(generations.keySet());
+    for (List<String> chunk : Lists.partition(fileIds, MAX_BATCH_DELETES)) {
+      StorageBatch batchRequest = storage.batch();
+      List<StorageBatchResult<Boolean>> results = chunk.stream()
+          .map(fileId -> batchRequest.delete(BlobId.of(bucketName, fileId),
+              Storage.BlobSourceOption.generationMatch(generations.get(fileId))))
+          .collect(Collectors.toList());
+      batchRequest.submit();
+      for (int i = 0; i < chunk.size(); i++) {
+        try {
+          results.get(i).get();
+        } catch (StorageException e) {
+          if (e.getCode() != HttpStatusCodes.STATUS_CODE_PRECONDITION_FAILED) {
+            log.warn("failed to delete " + chunk.get(i), e);
+          }
+          failed.add(chunk.get(i));
+        }
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Delete files in a single batch request.
+   *
+   * @param bucketName name of the bucket
+   * @param fileIds unique ids of at most {@value #MAX_BATCH_DELETES} files
+   * @return number of files that no longer exist, whether deleted now or already missing
+   */
+  public int deleteBatch(String bucketName, List<String> fileIds) {
+    if (fileIds.isEmpty()) {
+      return 0;
     }
+    StorageBatch batchRequest = storage.batch();
+    List<StorageBatchResult<Boolean>> results = fileIds.stream()
+        .map(fileId -> batchRequest.delete(BlobId.of(bucketName, fileId)))
+        .collect(Collectors.toList());
     batchRequest.submit();
+    int deleted = 0;
+    for (StorageBatchResult<Boolean> result : results) {
+      try {
+        result.get();
+        deleted++;
+      } catch (StorageException e) {
+        log.warn("failed to delete a file in a batch", e);
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * List the names of the files in a bucket, one page at a time.
+   *
+   * @param bucketName name of the bucket
+   * @param pageSize maximum number of files per page
+   * @return the first page of files, with only the names filled
+   */
+  public Page<Blob> list(String bucketName, int pageSize) {
+    return storage.list(bucketName, Storage.BlobListOption.pageSize(pageSize),
+        Storage.BlobListOption.fields(Storage.BlobField.NAME));
+  }
+
+  /**
+   * List the files under a prefix with their generations and update times, one page at a time.
+   *
+   * @param bucketName name of the bucket
+   * @param prefix prefix of the names of the files
+   * @param pageSize maximum number of files per page
+   * @param pageToken token of the page to continue from, or null to start from the first page
+   * @return the page of files
+   */
+  public Page<Blob> list(String bucketName, String prefix, int pageSize, String pageToken) {
+    List<Storage.BlobListOption> options = new ArrayList<>(List.of(
+        Storage.BlobListOption.prefix(prefix),
+        Storage.BlobListOption.pageSize(pageSize),
+        Storage.BlobListOption.fields(Storage.BlobField.NAME, Storage.BlobField.GENERATION,
+            Storage.BlobField.UPDATED)));
+    if (pageToken != null) {
+      options.add(Storage.BlobListOption.pageToken(pageToken));
+    }
+    return storage.list(bucketName, options.toArray(new Storage.BlobListOption[0]));
+  }
+
+  /**
+   * Send a request of the resumable upload protocol and read the persisted offset from the
+   * response.
+   *
+   * @param request the request to the upload session
+   * @param size size of the file in bytes
+   * @return number of bytes persisted
+   * @throws IllegalStateException if the upload session has expired
+   */
+  private long executeUploadRequest(HttpRequest request, long size) throws IOException {
+    request.setThrowExceptionOnExecuteError(false);
+    request.setFollowRedirects(false);
+    HttpResponse response = request.execute();
+    try {
+      int statusCode = response.getStatusCode();
+      if (statusCode == HttpStatusCodes.STATUS_CODE_OK || statusCode == 201) {
+        return size;
+      }
+      if (statusCode == HTTP_RESUME_INCOMPLETE) {
+        // the range of the persisted bytes, as in "bytes=0-1048575"
+        String range = response.getHeaders().getRange();
+        return range == null ? 0 : Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+      }
+      if (statusCode == HttpStatusCodes.STATUS_CODE_NOT_FOUND || statusCode == 410) {
+        throw new IllegalStateException("the upload session has expired");
+      }
+      throw new HttpResponseException(response);
+    } finally {
+      response.disconnect();
+    }
   }
 
   /** Close the channels and release resources. */
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.storage.Blob;
+import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
+import com.googlecodesamples.cloud.jss.lds.model.Tombstone;
+import com.googlecodesamples.cloud.jss.lds.model.UploadSession;
+import com.googlecodesamples.cloud.jss.lds.util.LdsUtil;
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Backend service that deletes unreferenced content from Cloud Storage in the background.
+ *
+ * <p>When the last file referring to a blob is deleted or updated, a tombstone is written in the
+ * same transaction that releases the reference. The sweeper deletes the blobs of due tombstones,
+ * their thumbnails and their resized images in batches, and retries failures with an exponential backoff. A blob that
+ * is referenced again before it is swept is kept: the new reference removes the tombstone, and
+ * the blobs are deleted only at the generation read before the references were checked, so
+ * content written again by a new upload is never deleted, and its tombstone is checked again on
+ * the next attempt.
+ *
+ * <p>The sweeper also scans the bucket slowly for thumbnails and resized images whose content no
+ * file refers to, which are left behind by files deleted before tombstones were recorded.
+ *
+ * <p>Resumable uploads that are not completed within their time to live are cancelled, and their
+ * content is deleted unless the upload was completed as a file.
+ */
+@Service
+public class SweeperService {
+  private static final Logger log = LoggerFactory.getLogger(SweeperService.class);
+  private static final String THUMBNAIL_EXTENSION = "_small";
+  private static final int ORPHAN_PAGE_SIZE = 1000;
+  private static final int DERIVATIVE_PAGE_SIZE = 100;
+  private final FirestoreService firestoreService;
+  private final StorageService storageService;
+  private String orphanPageToken;
+
+  @Value("${storage.bucket.name}")
+  private String bucketName;
+
+  @Value("${resource.path}")
+  private String basePath;
+
+  @Value("${gc.sweep.enabled}")
+  private boolean sweepEnabled;
+
+  @Value("${gc.sweep.batch.size}")
+  private int batchSize;
+
+  @Value("${gc.retry.base.ms}")
+  private long retryBaseMillis;
+
+  @Value("${gc.retry.max.ms}")
+  private long retryMaxMillis;
+
+  @Value("${gc.orphan.enabled}")
+  private boolean orphanEnabled;
+
+  @Value("${gc.orphan.grace.ms}")
+  private long orphanGraceMillis;
+
+  @Value("${gc.orphan.pages.per.run}")
+  private int orphanPagesPerRun;
+
+  @Value("${upload.session.ttl.ms}")
+  private long uploadTtlMillis;
+
+  public SweeperService(FirestoreService firestoreService, StorageService storageService) {
+    this.firestoreService = firestoreService;
+    this.storageService = storageService;
+  }
+
+  /** Sweep the due tombstones, one batch at a time, until no full batch is left. */
+  @Scheduled(initialDelayString = "${gc.sweep.interval.ms}",
+      fixedDelayString = "${gc.sweep.interval.ms}")
+  public void sweepTombstones() {
+    if (!sweepEnabled) {
+      return;
+    }
+    try {
+      while (sweepBatch() == batchSize) {
+        log.debug("swept a full batch of tombstones");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | RuntimeException e) {
+      log.warn("failed to sweep tombstones", e);
+    }
+  }
+
+  /**
+   * Delete the blobs, thumbnails and resized images of one batch of due tombstones.
+   *
+   * @return number of tombstones processed
+   */
+  public int sweepBatch() throws InterruptedException, ExecutionException {
+    List<Tombstone> tombstones = firestoreService.getDueTombstones(batchSize);
+    if (tombstones.isEmpty()) {
+      return 0;
+    }
+    List<String> paths = new ArrayList<>();
+    tombstones.forEach(tombstone -> {
+      paths.add(tombstone.getPath());
+      paths.add(tombstone.genThumbnailPath());
+    });
+    // generations are read before the references, so a blob written again afterwards is kept
+    Map<String, Long> generations = new HashMap<>();
+    List<List<String>> derivatives = new ArrayList<>();
+    for (Tombstone tombstone : tombstones) {
+      derivatives.add(listDerivatives(tombstone, generations));
+    }
+    generations.putAll(storageService.getGenerations(bucketName, paths));
+    Set<String> referenced = firestoreService.getReferencedBlobs(
+        tombstones.stream().map(Tombstone::getId).collect(Collectors.toList()));
+
+    List<List<String>> tombstonePaths = new ArrayList<>();
+    Map<String, Long> unreferenced = new HashMap<>();
+    for (int i = 0; i < tombstones.size(); i++) {
+      Tombstone tombstone = tombstones.get(i);
+      List<String> blobPaths = new ArrayList<>(derivatives.get(i));
+      blobPaths.add(tombstone.getPath());
+      blobPaths.add(tombstone.genThumbnailPath());
+      tombstonePaths.add(blobPaths);
+      if (referenced.contains(tombstone.getId())) {
+        continue;
+      }
+      for (String path : blobPaths) {
+        if (generations.containsKey(path)) {
+          unreferenced.put(path, generations.get(path));
+        }
+      }
+    }
+    Set<String> failed = storageService.deleteGenerations(bucketName, unreferenced);
+
+    List<String> doneIds = new ArrayList<>();
+    List<Tombstone> retries = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < tombstones.size(); i++) {
+      Tombstone tombstone = tombstones.get(i);
+      if (tombstonePaths.get(i).stream().anyMatch(failed::contains)) {
+        tombstone.setAttempts(tombstone.getAttempts() + 1);
+        tombstone.setNextAttempt(now + getRetryDelay(tombstone.getAttempts()));
+        retries.add(tombstone);
+      } else {
+        doneIds.add(tombstone.getId());
+      }
+    }
+    firestoreService.deleteTombstones(doneIds);
+    if (!retries.isEmpty()) {
+      log.warn("failed to sweep " + retries.size() + " tombstones, retrying later");
+      firestoreService.retryTombstones(retries);
+    }
+    return tombstones.size();
+  }
+
+  /**
+   * List the resized images of the content of a tombstone, which are named after its thumbnail.
+   *
+   * @param tombstone the tombstone
+   * @param generations receives the generation of each resized image, by path
+   * @return paths of the resized images
+   */
+  private List<String> listDerivatives(Tombstone tombstone, Map<String, Long> generations) {
+    List<String> derivatives = new ArrayList<>();
+    Page<Blob> page = storageService.list(bucketName, tombstone.genThumbnailPath() + "_",
+        DERIVATIVE_PAGE_SIZE, null);
+    for (Blob blob : page.iterateAll()) {
+      derivatives.add(blob.getName());
+      generations.put(blob.getName(), blob.getGeneration());
+    }
+    return derivatives;
+  }
+
+  /**
+   * Scan a bounded number of pages of the bucket for orphaned thumbnails and resized images,
+   * continuing from where the previous scan stopped.
+   */
+  @Scheduled(initialDelayString = "${gc.orphan.interval.ms}",
+      fixedDelayString = "${gc.orphan.interval.ms}")
+  public void sweepOrphans() {
+    if (!orphanEnabled) {
+      return;
+    }
+    try {
+      for (int i = 0; i < orphanPagesPerRun; i++) {
+        Page<Blob> page = storageService.list(bucketName, basePath, ORPHAN_PAGE_SIZE,
+            orphanPageToken);
+        sweepOrphanPage(page.getValues());
+        orphanPageToken = page.getNextPageToken();
+        if (orphanPageToken == null) {
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | RuntimeException e) {
+      log.warn("failed to sweep orphaned thumbnails and resized images", e);
+    }
+  }
+
+  /**
+   * Delete the thumbnails and resized images of a page whose content no file refers to. Objects
+   * updated within the grace period are skipped, as their file may not be saved yet.
+   *
+   * @param blobs one page of files in the bucket
+   */
+  private void sweepOrphanPage(Iterable<Blob> blobs)
+      throws InterruptedException, ExecutionException {
+    long cutoff = System.currentTimeMillis() - orphanGraceMillis;
+    Map<String, List<Blob>> candidates = new HashMap<>();
+    for (Blob blob : blobs) {
+      int index = blob.getName().indexOf(THUMBNAIL_EXTENSION);
+      OffsetDateTime updateTime = blob.getUpdateTimeOffsetDateTime();
+      if (index > 0 && updateTime != null
+          && updateTime.toInstant().toEpochMilli() < cutoff) {
+        candidates.computeIfAbsent(blob.getName().substring(0, index), path -> new ArrayList<>())
+            .add(blob);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return;
+    }
+    Set<String> referenced = firestoreService.getReferencedBlobs(candidates.keySet().stream()
+        .map(LdsUtil::getPathId)
+        .collect(Collectors.toSet()));
+    candidates.keySet().removeIf(path -> referenced.contains(LdsUtil.getPathId(path)));
+    Set<String> inUse = candidates.isEmpty()
+        ? Set.of() : firestoreService.getPathsInUse(candidates.keySet());
+    Map<String, Long> orphans = new HashMap<>();
+    for (Map.Entry<String, List<Blob>> entry : candidates.entrySet()) {
+      if (!inUse.contains(entry.getKey())) {
+        entry.getValue().forEach(blob -> orphans.put(blob.getName(), blob.getGeneration()));
+      }
+    }
+    if (!orphans.isEmpty()) {
+      log.info("deleting " + orphans.size() + " orphaned thumbnails and resized images");
+      storageService.deleteGenerations(bucketName, orphans);
+    }
+  }
+
+  /** Clean up the expired resumable uploads, one batch at a time, until no full batch is left. */
+  @Scheduled(initialDelayString = "${gc.upload.interval.ms}",
+      fixedDelayString = "${gc.upload.interval.ms}")
+  public void sweepExpiredUploads() {
+    if (!sweepEnabled) {
+      return;
+    }
+    try {
+      while (sweepUploadBatch() == batchSize) {
+        log.debug("swept a full batch of expired uploads");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | RuntimeException e) {
+      log.warn("failed to sweep expired uploads", e);
+    }
+  }
+
+  /**
+   * Cancel one batch of resumable uploads that expired at least a grace period ago, delete their
+   * content unless the upload was completed as a file, and delete their sessions. The grace
+   * period lets requests that read a session just before it expired finish.
+   *
+   * @return number of upload sessions processed
+   */
+  public int sweepUploadBatch() throws InterruptedException, ExecutionException {
+    long cutoff = System.currentTimeMillis() - uploadTtlMillis - orphanGraceMillis;
+    List<UploadSession> sessions = firestoreService.getUploadSessionsBefore(cutoff, batchSize);
+    if (sessions.isEmpty()) {
+      return 0;
+    }
+    List<String> uploadIds =
+        sessions.stream().map(UploadSession::getId).collect(Collectors.toList());
+    Set<String> completedIds = firestoreService.getFileMetasByIds(uploadIds).stream()
+        .map(FileMeta::getId)
+        .collect(Collectors.toSet());
+    for (UploadSession session : sessions) {
+      if (!completedIds.contains(session.getId())) {
+        try {
+          storageService.cancelUploadSession(session.getSessionUri());
+        } catch (IOException e) {
+          log.warn("failed to cancel upload " + session.getId(), e);
+        }
+        storageService.delete(bucketName, session.getPath());
+      }
+      firestoreService.deleteUploadSession(session.getId());
+    }
+    log.info("cleaned up " + sessions.size() + " expired uploads");
+    return sessions.size();
+  }
+
+  /**
+   * Get the delay before the next attempt of a tombstone.
+   *
+   * @param attempts number of failed attempts
+   * @return the delay in milliseconds
+   */
+  private long getRetryDelay(int attempts) {
+    return Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempts - 1, 30));
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.google.common.hash.Hashing;
+import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.springframework.util.StringUtils;
+
+/**
+ * Keys and changes of the tag index and the tag counters kept in Firestore.
+ *
+ * <p>Each tag has a posting list that refers to its files by order number. The document IDs of
+ * the postings are prefixed with a hash of the order number, so that postings of files saved
+ * one after the other do not land next to each other and create a write hotspot.
+ */
+final class TagIndex {
+  private static final int POSTING_PREFIX_LENGTH = 8;
+
+  private TagIndex() {
+  }
+
+  /**
+   * Get the ID of a tag, as used in document IDs. Tags are hashed, as they may contain characters
+   * that are not allowed in document IDs.
+   *
+   * @param tag the tag
+   * @return the ID of the tag
+   */
+  static String getTagId(String tag) {
+    return Hashing.sha256().hashString(tag, StandardCharsets.UTF_8).toString();
+  }
+
+  /**
+   * Get the ID of a shard of the counter of a tag.
+   *
+   * @param tag the tag
+   * @param shard index of the shard
+   * @return the document ID of the shard
+   */
+  static String getCounterId(String tag, int shard) {
+    return getTagId(tag) + "-" + shard;
+  }
+
+  /**
+   * Get the document ID of a posting.
+   *
+   * @param orderNo order number of the file
+   * @return the document ID, the order number behind a hash prefix
+   */
+  static String getPostingId(String orderNo) {
+    String hash = Hashing.sha256().hashString(orderNo, StandardCharsets.UTF_8).toString();
+    return hash.substring(0, POSTING_PREFIX_LENGTH) + "-" + orderNo;
+  }
+
+  /**
+   * Get the order number of a file in the posting list of each of its tags.
+   *
+   * @param fileMeta metadata of the file, or null
+   * @return order number by tag, empty if the file has no tags or no order number
+   */
+  static Map<String, String> getPostingKeys(FileMeta fileMeta) {
+    Map<String, String> postings = new HashMap<>();
+    if (fileMeta != null && fileMeta.getTags() != null
+        && StringUtils.hasText(fileMeta.getOrderNo())) {
+      fileMeta.getTags().forEach(tag -> postings.put(tag, fileMeta.getOrderNo()));
+    }
+    return postings;
+  }
+
+  /**
+   * Get the postings to delete when a file changes from one version to another.
+   *
+   * @param oldMeta previous version of the file, or null if it is new
+   * @param newMeta new version of the file, or null if it is deleted
+   * @return order number of the deleted posting by tag
+   */
+  static Map<String, String> getRemovedPostings(FileMeta oldMeta, FileMeta newMeta) {
+    return getPostingChanges(getPostingKeys(oldMeta), getPostingKeys(newMeta));
+  }
+
+  /**
+   * Get the postings to write when a file changes from one version to another.
+   *
+   * @param oldMeta previous version of the file, or null if it is new
+   * @param newMeta new version of the file, or null if it is deleted
+   * @return order number of the added posting by tag
+   */
+  static Map<String, String> getAddedPostings(FileMeta oldMeta, FileMeta newMeta) {
+    return getPostingChanges(getPostingKeys(newMeta), getPostingKeys(oldMeta));
+  }
+
+  /**
+   * Get the changes of the counts and sizes of the tags when a file changes from one version to
+   * another. Tags whose count and size do not change are left out.
+   *
+   * @param oldMeta previous version of the file, or null if it is new
+   * @param newMeta new version of the file, or null if it is deleted
+   * @return changes by tag
+   */
+  static Map<String, TagDelta> getTagDeltas(FileMeta oldMeta, FileMeta newMeta) {
+    Map<String, TagDelta> deltas = new HashMap<>();
+    addTagDeltas(deltas, oldMeta, -1);
+    addTagDeltas(deltas, newMeta, 1);
+    deltas.values().removeIf(delta -> delta.count == 0 && delta.bytes == 0);
+    return deltas;
+  }
+
+  /**
+   * Add the changes of the counts and sizes of the tags of a file.
+   *
+   * @param deltas changes by tag
+   * @param fileMeta metadata of the file, or null
+   * @param sign 1 if the file is added, -1 if it is removed
+   */
+  static void addTagDeltas(Map<String, TagDelta> deltas, FileMeta fileMeta, int sign) {
+    if (fileMeta == null || fileMeta.getTags() == null) {
+      return;
+    }
+    fileMeta.getTags().stream().distinct().forEach(tag -> {
+      TagDelta delta = deltas.computeIfAbsent(tag, key -> new TagDelta());
+      delta.count += sign;
+      delta.bytes += sign * fileMeta.getSize();
+    });
+  }
+
+  /**
+   * Get the postings of one version that the other version does not have.
+   *
+   * @param postings order number by tag of one version
+   * @param others order number by tag of the other version
+   * @return the postings not in the other version
+   */
+  private static Map<String, String> getPostingChanges(
+      Map<String, String> postings, Map<String, String> others) {
+    Map<String, String> changes = new HashMap<>();
+    postings.forEach((tag, orderNo) -> {
+      if (!orderNo.equals(others.get(tag))) {
+        changes.put(tag, orderNo);
+      }
+    });
+    return changes;
+  }
+
+  /** Change of the number of files of a tag and their total size. */
+  static final class TagDelta {
+    private long count;
+    private long bytes;
+
+    long getCount() {
+      return count;
+    }
+
+    long getBytes() {
+      return bytes;
+    }
+  }
+}
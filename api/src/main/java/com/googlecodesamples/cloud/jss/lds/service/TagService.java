@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.model.TagListResponse;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Backend service that keeps a rollup of the tag counters in memory.
+ *
+ * <p>The counters are updated in the same writes as the files, and summed over their shards on
+ * an interval. Requests are answered from the last rollup, so their cost does not depend on the
+ * number of files, and the counts may lag behind the files by up to one interval.
+ */
+@Service
+public class TagService {
+  private static final Logger log = LoggerFactory.getLogger(TagService.class);
+  private final FirestoreService firestoreService;
+  private volatile TagListResponse rollup;
+
+  public TagService(FirestoreService firestoreService) {
+    this.firestoreService = firestoreService;
+  }
+
+  /**
+   * Get the tags with their file counts and total sizes. The first call reads the counters if no
+   * rollup was made yet.
+   *
+   * @return the last rollup of the tag counters
+   */
+  public TagListResponse getTags() throws InterruptedException, ExecutionException {
+    TagListResponse current = rollup;
+    return current != null ? current : refresh();
+  }
+
+  /** Refresh the rollup of the tag counters. */
+  @Scheduled(initialDelayString = "${tag.rollup.interval.ms}",
+      fixedDelayString = "${tag.rollup.interval.ms}")
+  public void refreshRollup() {
+    try {
+      refresh();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | RuntimeException e) {
+      log.warn("failed to refresh the tag rollup", e);
+    }
+  }
+
+  /**
+   * Sum the tag counters over their shards and keep the result.
+   *
+   * @return the new rollup
+   */
+  public TagListResponse refresh() throws InterruptedException, ExecutionException {
+    Date refreshTime = new Date();
+    TagListResponse current = new TagListResponse(firestoreService.getTagStats(), refreshTime);
+    rollup = current;
+    return current;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.googlecodesamples.cloud.jss.lds.model.ThumbnailCacheStatsResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Two-tier cache of the bytes of thumbnails.
+ *
+ * <p>The first tier is a heap cache bounded by the total size of its values, which only holds
+ * thumbnails up to a size limit. The second is a {@link SegmentedDiskCache} on local disk. A
+ * thumbnail found on disk is promoted to the heap, and a thumbnail read from Cloud Storage is
+ * added to both tiers. Thumbnails are keyed by their path, which is derived from the hash of the
+ * content, so a cached thumbnail never goes stale; entries are still invalidated when their file
+ * is updated or deleted, to free the space early.
+ *
+ * <p>The heap tier holds the loads in progress too, so concurrent misses of the same thumbnail
+ * wait for a single read of the disk tier or Cloud Storage. A thumbnail over the size limit is
+ * dropped from the heap tier once it is loaded.
+ */
+@Component
+public class ThumbnailCache {
+  private static final Logger log = LoggerFactory.getLogger(ThumbnailCache.class);
+  private static final String DEFAULT_DISK_DIRECTORY = "lds-thumbnail-cache-";
+  private final StorageService storageService;
+  private final LongAdder storageReads = new LongAdder();
+  private AsyncCache<String, byte[]> memoryCache;
+  private SegmentedDiskCache diskCache;
+
+  @Value("${storage.bucket.name}")
+  private String bucketName;
+
+  @Value("${thumbnail.cache.memory.max.bytes}")
+  private long memoryMaxBytes;
+
+  @Value("${thumbnail.cache.memory.max.entry.bytes}")
+  private int memoryMaxEntryBytes;
+
+  @Value("${thumbnail.cache.disk.enabled}")
+  private boolean diskEnabled;
+
+  @Value("${thumbnail.cache.disk.path}")
+  private String diskPath;
+
+  @Value("${thumbnail.cache.disk.segments}")
+  private int diskSegments;
+
+  @Value("${thumbnail.cache.disk.segment.bytes}")
+  private int diskSegmentBytes;
+
+  public ThumbnailCache(StorageService storageService) {
+    this.storageService = storageService;
+  }
+
+  /**
+   * Create the tiers. Without a configured path, the disk tier uses a new temporary directory,
+   * so that instances on the same host do not share segment files. The disk tier is skipped if
+   * its directory cannot be used.
+   */
+  @PostConstruct
+  public void init() {
+    this.memoryCache = Caffeine.newBuilder()
+        .maximumWeight(memoryMaxBytes)
+        .weigher((String path, byte[] bytes) -> bytes.length)
+        .recordStats()
+        .buildAsync();
+    if (!diskEnabled) {
+      return;
+    }
+    try {
+      Path directory = StringUtils.hasText(diskPath) ? Path.of(diskPath)
+          : Files.createTempDirectory(DEFAULT_DISK_DIRECTORY);
+      this.diskCache = new SegmentedDiskCache(directory, diskSegments, diskSegmentBytes);
+    } catch (IOException e) {
+      log.warn("disk tier of the thumbnail cache disabled", e);
+    }
+  }
+
+  /**
+   * Get the bytes of a thumbnail, from the first tier that holds it, or from Cloud Storage.
+   *
+   * @param path path of the thumbnail in Cloud Storage
+   * @return the bytes, or null if the thumbnail does not exist
+   */
+  public byte[] get(String path) {
+    CompletableFuture<byte[]> loading = new CompletableFuture<>();
+    CompletableFuture<byte[]> future = memoryCache.get(path, (key, executor) -> loading);
+    if (future == loading) {
+      try {
+        byte[] bytes = load(path);
+        loading.complete(bytes);
+        if (bytes != null && bytes.length > memoryMaxEntryBytes) {
+          memoryCache.asMap().remove(path, loading);
+        }
+      } catch (RuntimeException e) {
+        loading.completeExceptionally(e);
+      }
+    }
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Read the bytes of a thumbnail that is not in the heap tier, from the disk tier or from Cloud
+   * Storage. A thumbnail read from Cloud Storage is added to the disk tier.
+   *
+   * @param path path of the thumbnail in Cloud Storage
+   * @return the bytes, or null if the thumbnail does not exist
+   */
+  private byte[] load(String path) {
+    if (diskCache != null) {
+      byte[] bytes = diskCache.get(path);
+      if (bytes != null) {
+        return bytes;
+      }
+    }
+    storageReads.increment();
+    byte[] bytes = storageService.readAllBytes(bucketName, path);
+    if (bytes != null && diskCache != null) {
+      diskCache.put(path, bytes);
+    }
+    return bytes;
+  }
+
+  /**
+   * Remove a thumbnail from both tiers.
+   *
+   * @param path path of the thumbnail in Cloud Storage
+   */
+  public void invalidate(String path) {
+    memoryCache.synchronous().invalidate(path);
+    if (diskCache != null) {
+      diskCache.invalidate(path);
+    }
+  }
+
+  /**
+   * Get the statistics of both tiers.
+   *
+   * @return hits, misses, entries and bytes held of each tier, and the reads of Cloud Storage
+   */
+  public ThumbnailCacheStatsResponse getStats() {
+    CacheStats memoryStats = memoryCache.synchronous().stats();
+    long memoryBytes = memoryCache.synchronous().policy().eviction()
+        .map(eviction -> eviction.weightedSize().orElse(0))
+        .orElse(0L);
+    ThumbnailCacheStatsResponse stats = new ThumbnailCacheStatsResponse();
+    stats.setMemoryEntries(memoryCache.synchronous().estimatedSize());
+    stats.setMemoryBytes(memoryBytes);
+    stats.setMemoryHitCount(memoryStats.hitCount());
+    stats.setMemoryMissCount(memoryStats.missCount());
+    if (diskCache != null) {
+      stats.setDiskEntries(diskCache.size());
+      stats.setDiskBytes(diskCache.getBytes());
+      stats.setDiskCapacityBytes(diskCache.getCapacity());
+      stats.setDiskHitCount(diskCache.getHitCount());
+      stats.setDiskMissCount(diskCache.getMissCount());
+    }
+    stats.setStorageReadCount(storageReads.sum());
+    return stats;
+  }
+
+  /** Delete the segment files of the disk tier. */
+  @PreDestroy
+  public void close() throws IOException {
+    if (diskCache != null) {
+      diskCache.close();
+    }
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
+import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
+import com.googlecodesamples.cloud.jss.lds.model.ThumbnailState;
+import com.googlecodesamples.cloud.jss.lds.util.ImageUtil;
+import com.googlecodesamples.cloud.jss.lds.util.LdsUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.coobird.thumbnailator.Thumbnails;
+import net.coobird.thumbnailator.geometry.Positions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+/**
+ * Backend service for the thumbnail generation pipeline.
+ *
+ * <p>Files are saved with a pending thumbnail state. The thumbnails are generated from the content
+ * in Cloud Storage on a CPU sized pool with a bounded queue. When the queue is full the job stays
+ * pending in Firestore and is picked up later by the poller, which may run on any instance,
+ * including instances started with the thumbnail-worker profile. Each job is claimed with a
+ * lease before it runs, so it runs on one instance at a time, and a job that fails or whose
+ * instance stops is attempted again once its lease expires, up to a maximum number of attempts.
+ *
+ * <p>Images are decoded with source subsampling, so the memory used per job depends on the target
+ * size rather than on the resolution of the original, and images with more pixels than allowed
+ * are rejected before their raster is allocated.
+ */
+@Service
+public class ThumbnailService {
+  private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+  private static final int THUMBNAIL_SIZE = 300;
+  private static final int[] DERIVATIVE_WIDTHS = {160, 320, 640, 1280, 1920};
+  // width to height, from 1:3 to 3:1
+  private static final double[] DERIVATIVE_ASPECT_RATIOS =
+      {1.0 / 3, 1.0 / 2, 9.0 / 16, 2.0 / 3, 3.0 / 4, 1, 4.0 / 3, 3.0 / 2, 16.0 / 9, 2, 3};
+  private static final String FIT_CONTAIN = "contain";
+  private static final String FIT_COVER = "cover";
+  private static final String FIT_FILL = "fill";
+  private final FirestoreService firestoreService;
+  private final StorageService storageService;
+  private final Set<String> inFlightIds = ConcurrentHashMap.newKeySet();
+  private ThreadPoolExecutor executor;
+
+  @Value("${storage.bucket.name}")
+  private String bucketName;
+
+  @Value("${thumbnail.pool.size}")
+  private int poolSize;
+
+  @Value("${thumbnail.queue.capacity}")
+  private int queueCapacity;
+
+  @Value("${thumbnail.local.enabled}")
+  private boolean localEnabled;
+
+  @Value("${thumbnail.poll.enabled}")
+  private boolean pollEnabled;
+
+  @Value("${thumbnail.poll.grace.ms}")
+  private long pollGraceMillis;
+
+  @Value("${thumbnail.lease.ms}")
+  private long leaseMillis;
+
+  @Value("${thumbnail.max.attempts}")
+  private int maxAttempts;
+
+  @Value("${image.max.pixels}")
+  private long maxPixels;
+
+  public ThumbnailService(FirestoreService firestoreService, StorageService storageService) {
+    this.firestoreService = firestoreService;
+    this.storageService = storageService;
+  }
+
+  /** Create the thumbnail pool, sized to the number of processors unless configured. */
+  @PostConstruct
+  public void init() {
+    int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("thumbnail-"));
+  }
+
+  /**
+   * Request the thumbnail of a newly saved file. The thumbnail is generated on this instance if
+   * local generation is enabled and the queue has room, otherwise it is left to the poller.
+   *
+   * @param fileMeta metadata of the file, saved with a pending thumbnail state
+   */
+  public void submit(FileMeta fileMeta) {
+    if (localEnabled && fileMeta.getThumbnailState() == ThumbnailState.PENDING) {
+      enqueue(fileMeta);
+    }
+  }
+
+  /** Pick up the pending thumbnails that no instance is generating, as far as the queue allows. */
+  @Scheduled(initialDelayString = "${thumbnail.poll.interval.ms}",
+      fixedDelayString = "${thumbnail.poll.interval.ms}")
+  public void pollPendingThumbnails() {
+    int capacity = executor.getQueue().remainingCapacity();
+    if (!pollEnabled || capacity == 0) {
+      return;
+    }
+    try {
+      long cutoff = System.currentTimeMillis() - pollGraceMillis;
+      List<BaseFile> files = firestoreService.getPendingThumbnails(capacity);
+      // recently written files are most likely being processed by the instance that saved them
+      files.stream()
+          .filter(file -> file.getThumbnailAttempts() > 0
+              || LdsUtil.getOrderNoTime(file.getOrderNo()) < cutoff)
+          .forEach(this::enqueue);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.warn("failed to poll pending thumbnails", e);
+    }
+  }
+
+  /**
+   * Get the path of a resized image of a file, creating it in Cloud Storage on first use.
+   *
+   * <p>The width is snapped up to one of a fixed set of widths, and the aspect ratio of the
+   * requested box to the nearest of a fixed set of ratios from 1:3 to 3:1, so that a small
+   * number of derivatives of bounded size is stored per image.
+   *
+   * @param fileMeta metadata of the image file
+   * @param width requested width
+   * @param height requested height, or null to keep the aspect ratio of the image
+   * @param fit contain to fit inside the box, cover to fill it and crop, fill to stretch
+   * @return path of the derivative in Cloud Storage
+   */
+  public String getOrCreateDerivative(FileMeta fileMeta, int width, Integer height, String fit)
+      throws IOException {
+    if (width <= 0 || (height != null && height <= 0)) {
+      throw new IllegalArgumentException("width and height must be positive");
+    }
+    if (!List.of(FIT_CONTAIN, FIT_COVER, FIT_FILL).contains(fit)) {
+      throw new IllegalArgumentException("fit must be one of contain, cover or fill");
+    }
+    int snappedWidth = snapWidth(width);
+    int snappedHeight = height == null
+        ? 0 : (int) Math.round(snappedWidth / snapAspectRatio((double) width / height));
+    String path = fileMeta.genDerivativePath(snappedWidth, snappedHeight, fit);
+    if (storageService.exists(bucketName, path)) {
+      return path;
+    }
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (InputStream content = storageService.read(bucketName, fileMeta.getPath())) {
+      BufferedImage image = ImageUtil.readSubsampled(content, snappedWidth, snappedHeight,
+          maxPixels);
+      Thumbnails.Builder<BufferedImage> builder =
+          Thumbnails.of(image).outputFormat(getFormatName(fileMeta));
+      if (snappedHeight == 0) {
+        builder.width(snappedWidth);
+      } else if (FIT_COVER.equals(fit)) {
+        builder.size(snappedWidth, snappedHeight).crop(Positions.CENTER);
+      } else {
+        builder.size(snappedWidth, snappedHeight).keepAspectRatio(FIT_CONTAIN.equals(fit));
+      }
+      builder.toOutputStream(byteArrayOutputStream);
+    }
+    String contentType = URLConnection.guessContentTypeFromName(fileMeta.getName());
+    storageService.save(bucketName, path, contentType, byteArrayOutputStream.toByteArray());
+    return path;
+  }
+
+  /**
+   * Get the number of thumbnails waiting in the queue of this instance.
+   *
+   * @return size of the queue
+   */
+  public int getQueueSize() {
+    return executor.getQueue().size();
+  }
+
+  /** Stop accepting thumbnail jobs; the pending ones are picked up again by the poller. */
+  @PreDestroy
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private static int snapWidth(int width) {
+    for (int derivativeWidth : DERIVATIVE_WIDTHS) {
+      if (width <= derivativeWidth) {
+        return derivativeWidth;
+      }
+    }
+    return DERIVATIVE_WIDTHS[DERIVATIVE_WIDTHS.length - 1];
+  }
+
+  private static double snapAspectRatio(double aspectRatio) {
+    double snapped = DERIVATIVE_ASPECT_RATIOS[0];
+    for (double derivativeAspectRatio : DERIVATIVE_ASPECT_RATIOS) {
+      // compared on a log scale, so that 1:2 and 2:1 are as far from 1:1
+      if (Math.abs(Math.log(aspectRatio / derivativeAspectRatio))
+          < Math.abs(Math.log(aspectRatio / snapped))) {
+        snapped = derivativeAspectRatio;
+      }
+    }
+    return snapped;
+  }
+
+  private static String getFormatName(FileMeta fileMeta) {
+    return StringUtils.getFilenameExtension(fileMeta.getName()).toLowerCase();
+  }
+
+  private void enqueue(FileMeta fileMeta) {
+    if (!inFlightIds.add(fileMeta.getId())) {
+      return;
+    }
+    try {
+      executor.execute(() -> process(fileMeta));
+    } catch (RejectedExecutionException e) {
+      inFlightIds.remove(fileMeta.getId());
+      log.info("thumbnail queue is full, leaving " + fileMeta.getId() + " pending");
+    }
+  }
+
+  private void process(FileMeta fileMeta) {
+    try {
+      int attempt =
+          firestoreService.claimThumbnail(fileMeta.getId(), fileMeta.getPath(), leaseMillis);
+      if (attempt == 0) {
+        return;
+      }
+      ThumbnailState state = ThumbnailState.READY;
+      try {
+        createThumbnail(fileMeta);
+      } catch (IOException | RuntimeException e) {
+        log.error("failed to create thumbnail of " + fileMeta.getId() + ", attempt " + attempt, e);
+        if (attempt < maxAttempts) {
+          // left pending, the poller attempts it again once the lease expires
+          return;
+        }
+        state = ThumbnailState.FAILED;
+      }
+      firestoreService.updateThumbnailState(fileMeta.getId(), fileMeta.getPath(), state);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.error("failed to claim or update thumbnail state of " + fileMeta.getId(), e);
+    } finally {
+      inFlightIds.remove(fileMeta.getId());
+    }
+  }
+
+  /**
+   * Create a thumbnail of the given file from its content in Cloud Storage.
+   *
+   * @param fileMeta metadata of the file
+   */
+  private void createThumbnail(FileMeta fileMeta) throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (InputStream content = storageService.read(bucketName, fileMeta.getPath())) {
+      BufferedImage image = ImageUtil.readSubsampled(content, THUMBNAIL_SIZE, THUMBNAIL_SIZE,
+          maxPixels);
+      Thumbnails.of(image)
+          .outputFormat(getFormatName(fileMeta))
+          .size(THUMBNAIL_SIZE, THUMBNAIL_SIZE)
+          .keepAspectRatio(false)
+          .toOutputStream(byteArrayOutputStream);
+    }
+    String contentType = URLConnection.guessContentTypeFromName(fileMeta.getName());
+    storageService.save(bucketName, fileMeta.genThumbnailPath(), contentType,
+        byteArrayOutputStream.toByteArray());
+  }
+}
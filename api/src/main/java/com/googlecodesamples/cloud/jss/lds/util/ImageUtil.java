@@ -0,0 +1,111 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Set;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import net.coobird.thumbnailator.util.exif.ExifFilterUtils;
+import net.coobird.thumbnailator.util.exif.ExifUtils;
+import net.coobird.thumbnailator.util.exif.Orientation;
+
+/**
+ * Utility functions for decoding images with bounded memory.
+ */
+public class ImageUtil {
+  private static final int FIRST_IMAGE_INDEX = 0;
+  private static final Set<Orientation> TRANSPOSED_ORIENTATIONS = Set.of(
+      Orientation.LEFT_TOP, Orientation.RIGHT_TOP, Orientation.RIGHT_BOTTOM,
+      Orientation.LEFT_BOTTOM);
+
+  /**
+   * Decode an image with only as many pixels as needed for the target size.
+   *
+   * <p>The dimensions are read from the image header first, and the raster is decoded with source
+   * subsampling, so the decoded image is at least the target size in each dimension but not
+   * needlessly larger. The EXIF orientation of the image is applied to the result.
+   *
+   * @param inputStream content of the image
+   * @param width target width
+   * @param height target height, or 0 to size by the width only
+   * @param maxPixels largest number of source pixels accepted
+   * @return the decoded image
+   * @throws IllegalArgumentException if the image has more pixels than allowed
+   */
+  public static BufferedImage readSubsampled(InputStream inputStream, int width, int height,
+      long maxPixels) throws IOException {
+    try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
+      if (imageInputStream == null) {
+        throw new IOException("unsupported image input");
+      }
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+      if (!readers.hasNext()) {
+        throw new IOException("unsupported image format");
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(imageInputStream, true, true);
+        int sourceWidth = reader.getWidth(FIRST_IMAGE_INDEX);
+        int sourceHeight = reader.getHeight(FIRST_IMAGE_INDEX);
+        if ((long) sourceWidth * sourceHeight > maxPixels) {
+          throw new IllegalArgumentException("image of " + sourceWidth + "x" + sourceHeight
+              + " exceeds the limit of " + maxPixels + " pixels");
+        }
+        Orientation orientation = ExifUtils.getExifOrientation(reader, FIRST_IMAGE_INDEX);
+        boolean transposed = orientation != null && TRANSPOSED_ORIENTATIONS.contains(orientation);
+        int subsampling = getSubsampling(sourceWidth, sourceHeight,
+            transposed ? height : width, transposed ? width : height);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage image = reader.read(FIRST_IMAGE_INDEX, param);
+        if (orientation == null || orientation == Orientation.TOP_LEFT) {
+          return image;
+        }
+        return ExifFilterUtils.getFilterForOrientation(orientation).apply(image);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Get the largest subsampling factor that keeps the image at least the target size.
+   *
+   * @param sourceWidth width of the source image
+   * @param sourceHeight height of the source image
+   * @param width target width, or 0 to ignore the width
+   * @param height target height, or 0 to ignore the height
+   * @return the subsampling factor, at least 1
+   */
+  public static int getSubsampling(int sourceWidth, int sourceHeight, int width, int height) {
+    int factor = Integer.MAX_VALUE;
+    if (width > 0) {
+      factor = Math.min(factor, sourceWidth / width);
+    }
+    if (height > 0) {
+      factor = Math.min(factor, sourceHeight / height);
+    }
+    return factor == Integer.MAX_VALUE ? 1 : Math.max(1, factor);
+  }
+}
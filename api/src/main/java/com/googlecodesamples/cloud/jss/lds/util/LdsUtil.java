@@ -16,8 +16,23 @@
 
 package com.googlecodesamples.cloud.jss.lds.util;
 
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
+import org.springframework.util.DigestUtils;
 import org.springframework.util.StringUtils;
 
 /**
@@ -25,6 +40,7 @@ import org.springframework.util.StringUtils;
  */
 public class LdsUtil {
   private static final char URL_SLASH = '/';
+  private static final char ORDER_NO_SEPARATOR = '-';
 
   /**
    * Get base path of a file.
@@ -37,6 +53,18 @@ public class LdsUtil {
     return basePath.substring(0, basePath.length() - bucketBasePath.length());
   }
 
+  /**
+   * Compute the SHA-256 hash of a content, used as its content-addressed ID.
+   *
+   * @param content the content to hash, read to the end but not closed
+   * @return the hash in hexadecimal
+   */
+  public static String hashContent(InputStream content) throws IOException {
+    HashingInputStream hashingInputStream = new HashingInputStream(Hashing.sha256(), content);
+    ByteStreams.exhaust(hashingInputStream);
+    return hashingInputStream.hash().toString();
+  }
+
   /**
    * Get relative path of a file from the base.
    *
@@ -67,4 +95,99 @@ public class LdsUtil {
     String[] pathArr = path.split(String.valueOf(URL_SLASH));
     return pathArr[pathArr.length - 1];
   }
+
+  /**
+   * Get the creation time encoded at the start of an order number.
+   *
+   * @param orderNo the order number of a file
+   * @return the time in milliseconds, or 0 if the order number has no time
+   */
+  public static long getOrderNoTime(String orderNo) {
+    if (orderNo == null || orderNo.indexOf(ORDER_NO_SEPARATOR) <= 0) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(orderNo.substring(0, orderNo.indexOf(ORDER_NO_SEPARATOR)));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Generate a strong ETag from the content that identifies a version of a resource.
+   *
+   * @param content the version identifying content
+   * @return the quoted ETag
+   */
+  public static String generateETag(String content) {
+    return "\"" + DigestUtils.md5DigestAsHex(content.getBytes(StandardCharsets.UTF_8)) + "\"";
+  }
+
+  /**
+   * Check whether an If-None-Match header matches an ETag, using the weak comparison.
+   *
+   * @param ifNoneMatch value of the If-None-Match header, may be null
+   * @param etag the current strong ETag of the resource, may be null
+   * @return true if the client already has the current version
+   */
+  public static boolean matchETag(String ifNoneMatch, String etag) {
+    if (!StringUtils.hasText(ifNoneMatch) || etag == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = candidate.trim();
+      if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check whether an If-Range header matches the current version of a resource, in which case
+   * the Range header applies. An ETag is compared with the strong comparison, and a date must
+   * equal the last modification time.
+   *
+   * @param ifRange value of the If-Range header, may be null
+   * @param etag the current strong ETag of the resource
+   * @param lastModified the last modification time of the resource in milliseconds
+   * @return true if the requested ranges should be sent
+   */
+  public static boolean matchIfRange(String ifRange, String etag, long lastModified) {
+    if (!StringUtils.hasText(ifRange)) {
+      return true;
+    }
+    String value = ifRange.trim();
+    if (value.startsWith("\"") || value.startsWith("W/")) {
+      return value.equals(etag);
+    }
+    try {
+      long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+      return date == lastModified / 1000;
+    } catch (DateTimeParseException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Adapt an ApiFuture returned by the Google Cloud client libraries to a CompletableFuture.
+   *
+   * @param apiFuture the future of a client library call
+   * @return a CompletableFuture completed with the same result or failure
+   */
+  public static <T> CompletableFuture<T> toCompletableFuture(ApiFuture<T> apiFuture) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    ApiFutures.addCallback(apiFuture, new ApiFutureCallback<T>() {
+      @Override
+      public void onFailure(Throwable t) {
+        future.completeExceptionally(t);
+      }
+
+      @Override
+      public void onSuccess(T result) {
+        future.complete(result);
+      }
+    }, MoreExecutors.directExecutor());
+    return future;
+  }
 }
@@ -16,10 +16,15 @@
 
 package com.googlecodesamples.cloud.jss.lds.controller;
 
+import com.google.cloud.storage.Blob;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
 import com.googlecodesamples.cloud.jss.lds.model.BaseFileTest;
+import com.googlecodesamples.cloud.jss.lds.model.FileResponse;
+import com.googlecodesamples.cloud.jss.lds.model.PurgeState;
+import com.googlecodesamples.cloud.jss.lds.model.PurgeStatusResponse;
+import com.googlecodesamples.cloud.jss.lds.model.UploadSession;
 import com.googlecodesamples.cloud.jss.lds.service.FileService;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -30,14 +35,23 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -70,7 +84,10 @@ public class FileControllerTest {
     List<BaseFile> expectedResp = BaseFileTest.getTestFiles(size, true);
 
     // set up mock service response
-    Mockito.when(fileService.getFilesByTag(tags, orderNo, size)).thenReturn(expectedResp);
+    Mockito.when(fileService.getChangeMarkerAsync())
+            .thenReturn(CompletableFuture.completedFuture(1L));
+    Mockito.when(fileService.getFilesByTagAsync(tags, orderNo, size, List.of()))
+            .thenReturn(CompletableFuture.completedFuture(expectedResp));
 
     // set up simulated HTTP request to the service
     MockHttpServletRequestBuilder mockHttpReq = MockMvcRequestBuilders.get("/api/files")
@@ -81,7 +98,10 @@ public class FileControllerTest {
             .queryParam("size", String.valueOf(size));
 
     // generate mock response from the simulated request
-    String mockResp = mockMvc.perform(mockHttpReq)
+    MvcResult asyncResult = mockMvc.perform(mockHttpReq)
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    String mockResp = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
             .andExpect(MockMvcResultMatchers.status().isOk())
             .andReturn().getResponse().getContentAsString();
     log.info("mockResp: " + mockResp);
@@ -94,10 +114,262 @@ public class FileControllerTest {
     assertThat(mockResp).isEqualTo(convertedObj.toString());
   }
 
+  @Test
+  public void testGetFileReturnsNotFound() throws Exception {
+    Mockito.when(fileService.getFileByIdAsync("unknown-id"))
+            .thenReturn(CompletableFuture.completedFuture(null));
+
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files/unknown-id"))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isNotFound());
+  }
+
+  @Test
+  public void testGetImageReturnsNotFound() throws Exception {
+    Mockito.when(fileService.getFileById("unknown-id")).thenReturn(null);
+
+    mockMvc.perform(MockMvcRequestBuilders.get("/api/files/unknown-id/image").param("w", "320"))
+            .andExpect(MockMvcResultMatchers.status().isNotFound());
+  }
+
+  @Test
+  public void testWriteUploadChunkReturnsConflict() throws Exception {
+    UploadSession session =
+        new UploadSession("upload-id", "session-uri", "resource/upload-id", "test.bin", 1024);
+    session.setOffset(512);
+    Mockito.when(fileService.getUpload("upload-id")).thenReturn(session);
+
+    mockMvc.perform(MockMvcRequestBuilders.put("/api/uploads/upload-id")
+                    .param("offset", "0")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content(new byte[512]))
+            .andExpect(MockMvcResultMatchers.status().isConflict())
+            .andExpect(MockMvcResultMatchers.jsonPath("$.offset").value(512));
+    Mockito.verify(fileService, Mockito.never()).writeUploadChunk(Mockito.any(),
+        Mockito.anyLong(), Mockito.any());
+  }
+
+  @Test
+  public void testCompleteUploadReturnsConflict() throws Exception {
+    UploadSession session =
+        new UploadSession("upload-id", "session-uri", "resource/upload-id", "test.bin", 1024);
+    Mockito.when(fileService.getUpload("upload-id")).thenReturn(session);
+    Mockito.when(fileService.refreshUpload(session)).thenReturn(session);
+
+    mockMvc.perform(MockMvcRequestBuilders.post("/api/uploads/upload-id/complete")
+                    .param("tags", "test-tag"))
+            .andExpect(MockMvcResultMatchers.status().isConflict());
+    Mockito.verify(fileService, Mockito.never()).completeUpload(Mockito.any(), Mockito.any());
+  }
+
+  @Test
+  public void testGetContentReturnsPartialContent() throws Exception {
+    mockContent(10);
+
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files/test-id/content")
+                    .header(HttpHeaders.RANGE, "bytes=2-5"))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isPartialContent())
+            .andExpect(MockMvcResultMatchers.header()
+                    .string(HttpHeaders.CONTENT_RANGE, "bytes 2-5/10"))
+            .andExpect(MockMvcResultMatchers.header().longValue(HttpHeaders.CONTENT_LENGTH, 4))
+            .andExpect(MockMvcResultMatchers.content().string("2345"));
+  }
+
+  @Test
+  public void testGetContentReturnsMultipleRanges() throws Exception {
+    mockContent(10);
+
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files/test-id/content")
+                    .header(HttpHeaders.RANGE, "bytes=0-1,-2"))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isPartialContent())
+            .andReturn();
+    String body = result.getResponse().getContentAsString();
+    assertThat(result.getResponse().getContentType()).startsWith("multipart/byteranges");
+    assertThat(body).contains("Content-Range: bytes 0-1/10\r\n\r\n01");
+    assertThat(body).contains("Content-Range: bytes 8-9/10\r\n\r\n89");
+    assertThat(result.getResponse().getContentAsByteArray().length)
+        .isEqualTo(Integer.parseInt(result.getResponse().getHeader(HttpHeaders.CONTENT_LENGTH)));
+  }
+
+  @Test
+  public void testGetContentReturnsRangeNotSatisfiable() throws Exception {
+    mockContent(10);
+
+    mockMvc.perform(MockMvcRequestBuilders.get("/api/files/test-id/content")
+                    .header(HttpHeaders.RANGE, "bytes=20-"))
+            .andExpect(MockMvcResultMatchers.status().isRequestedRangeNotSatisfiable())
+            .andExpect(MockMvcResultMatchers.header()
+                    .string(HttpHeaders.CONTENT_RANGE, "bytes */10"));
+  }
+
+  @Test
+  public void testResetReturnsConflictWhileRunning() throws Exception {
+    PurgeStatusResponse status = new PurgeStatusResponse();
+    status.setState(PurgeState.RUNNING);
+    Mockito.when(fileService.resetFile()).thenReturn(false);
+    Mockito.when(fileService.getResetStatus()).thenReturn(status);
+
+    mockMvc.perform(MockMvcRequestBuilders.delete("/api/reset"))
+            .andExpect(MockMvcResultMatchers.status().isConflict())
+            .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.LOCATION,
+                    "/api/reset/status"))
+            .andExpect(MockMvcResultMatchers.jsonPath("$.state").value("RUNNING"));
+  }
+
+  @Test
+  public void testGetFileReturnsNotModified() throws Exception {
+    BaseFile file = BaseFileTest.getTestFiles(1, true).get(0);
+    String etag = new FileResponse(file).genETag();
+    Mockito.when(fileService.getFileByIdAsync(file.getId()))
+            .thenReturn(CompletableFuture.completedFuture(file));
+
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files/" + file.getId())
+                    .header(HttpHeaders.IF_NONE_MATCH, etag))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isNotModified())
+            .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, etag));
+  }
+
+  @Test
+  public void testGetFilesReturnsNotModifiedWithoutQuery() throws Exception {
+    List<String> tags = List.of("test-tag");
+    String etag = "\"known-etag\"";
+    Mockito.when(fileService.getChangeMarkerAsync())
+            .thenReturn(CompletableFuture.completedFuture(1L));
+    Mockito.when(fileService.getListETag(tags, null, 50, List.of(), false, 1L)).thenReturn(etag);
+
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files")
+                    .queryParam("tags", "test-tag")
+                    .header(HttpHeaders.IF_NONE_MATCH, etag))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isNotModified());
+    Mockito.verify(fileService, Mockito.never()).getFilesByTagAsync(tags, null, 50, List.of());
+  }
+
+  @Test
+  public void testGetFilesWithFields() throws Exception {
+    List<String> fields = List.of("id", "name");
+    Mockito.when(fileService.getChangeMarkerAsync())
+            .thenReturn(CompletableFuture.completedFuture(1L));
+    Mockito.when(fileService.getFilesByTagAsync(List.of(), null, 50, fields))
+            .thenReturn(CompletableFuture.completedFuture(BaseFileTest.getTestFiles(2, true)));
+
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files")
+                    .queryParam("fields", "id, name"))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    String resp = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isOk())
+            .andReturn().getResponse().getContentAsString();
+    JsonObject file = new Gson().fromJson(resp, JsonObject.class)
+            .getAsJsonArray("files").get(0).getAsJsonObject();
+    assertThat(file.keySet()).containsExactly("id", "name");
+  }
+
+  @Test
+  public void testStreamFiles() throws Exception {
+    List<BaseFile> files = BaseFileTest.getTestFiles(3, true);
+    Mockito.doAnswer(invocation -> {
+      Consumer<BaseFile> consumer = invocation.getArgument(4);
+      files.forEach(consumer);
+      return null;
+    }).when(fileService).streamFilesByTag(Mockito.eq(List.of()), Mockito.isNull(),
+            Mockito.eq(50), Mockito.eq(List.of("id")), Mockito.any());
+
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files")
+                    .queryParam("fields", "id")
+                    .accept(MediaType.APPLICATION_NDJSON))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isOk())
+            .andReturn();
+    assertThat(result.getResponse().getContentType())
+            .isEqualTo(MediaType.APPLICATION_NDJSON_VALUE);
+    String expected = files.stream()
+            .map(file -> "{\"id\":\"" + file.getId() + "\"}\n")
+            .collect(Collectors.joining());
+    assertThat(result.getResponse().getContentAsString()).isEqualTo(expected);
+  }
+
+  @Test
+  public void testGetFilesRejectsUnknownField() throws Exception {
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files")
+                    .queryParam("fields", "id,secret"))
+            .andReturn();
+    mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    Mockito.verify(fileService, Mockito.never()).getChangeMarkerAsync();
+  }
+
+  @Test
+  public void testGetFilesMatchingAllTags() throws Exception {
+    List<String> tags = List.of("cat", "dog");
+    Mockito.when(fileService.getChangeMarkerAsync())
+            .thenReturn(CompletableFuture.completedFuture(1L));
+    Mockito.when(fileService.getFilesByAllTagsAsync(tags, null, 50, List.of()))
+            .thenReturn(CompletableFuture.completedFuture(BaseFileTest.getTestFiles(1, true)));
+
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files")
+                    .queryParam("tags", "cat dog")
+                    .queryParam("match", "all"))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isOk());
+    Mockito.verify(fileService, Mockito.never()).getFilesByTagAsync(tags, null, 50, List.of());
+    Mockito.verify(fileService).putListETag(Mockito.eq(tags), Mockito.isNull(), Mockito.eq(50),
+            Mockito.eq(List.of()), Mockito.eq(true), Mockito.eq(1L), Mockito.anyString());
+  }
+
+  @Test
+  public void testGetFilesRejectsUnknownMatch() throws Exception {
+    MvcResult asyncResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/files")
+                    .queryParam("tags", "cat dog")
+                    .queryParam("match", "some"))
+            .andReturn();
+    mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
+            .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    Mockito.verify(fileService, Mockito.never()).getChangeMarkerAsync();
+  }
+
   @Test
   public void testDeleteFileReturnsNotFound() throws Exception {
     mockMvc.perform(MockMvcRequestBuilders.delete("/files/unknown-id"))
             .andExpect(MockMvcResultMatchers.status().isNotFound())
             .andExpect(MockMvcResultMatchers.content().string(""));
   }
+
+  private void mockContent(int length) throws Exception {
+    BaseFile file = BaseFileTest.getTestFiles(1, false).get(0);
+    Blob content = Mockito.mock(Blob.class);
+    Mockito.when(content.getSize()).thenReturn((long) length);
+    Mockito.when(content.getGeneration()).thenReturn(1L);
+    Mockito.when(content.getUpdateTimeOffsetDateTime())
+        .thenReturn(OffsetDateTime.ofInstant(Instant.EPOCH, ZoneOffset.UTC));
+    Mockito.when(fileService.getFileById("test-id")).thenReturn(file);
+    Mockito.when(fileService.getContent(file)).thenReturn(content);
+    Mockito.doAnswer(invocation -> {
+      long start = invocation.getArgument(1);
+      long rangeLength = invocation.getArgument(2);
+      OutputStream out = invocation.getArgument(3);
+      for (long i = start; i < start + rangeLength; i++) {
+        out.write('0' + (int) i);
+      }
+      return null;
+    }).when(fileService).writeContent(Mockito.eq(content), Mockito.anyLong(), Mockito.anyLong(),
+        Mockito.any());
+  }
 }
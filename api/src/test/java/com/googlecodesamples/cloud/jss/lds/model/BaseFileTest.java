@@ -45,6 +45,31 @@ public class BaseFileTest {
     assertThat(file.checkImageFileType()).isTrue();
   }
 
+  @Test
+  public void testGetSourceFields() {
+    assertThat(BaseFile.getSourceFields(List.of("id", "name", "thumbUrl", "orderNo")))
+        .containsExactly("name", "path", "orderNo");
+    assertThat(BaseFile.getSourceFields(List.of("id", "createTime"))).isEmpty();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGetSourceFieldsRejectsUnknownField() {
+    BaseFile.getSourceFields(List.of("secret"));
+  }
+
+  @Test
+  public void testCreateFromFileMeta() {
+    FileMeta fileMeta =
+        new FileMeta("test-id", "resource/test-path", "test.png", List.of("test-tag"), 1);
+    Date updateTime = new Date();
+    BaseFile file = new BaseFile(fileMeta, "/", null, updateTime);
+    assertThat(file.getId()).isEqualTo("test-id");
+    assertThat(file.getOrderNo()).isEqualTo(fileMeta.getOrderNo());
+    assertThat(file.getUrl()).isEqualTo("/resource/test-path");
+    assertThat(file.getThumbUrl()).isEqualTo("/resource/test-path_small");
+    assertThat(file.getUpdateTime()).isEqualTo(updateTime);
+  }
+
   public static List<BaseFile> getTestFiles(int serialNumber, boolean isImage) {
     List<BaseFile> testFiles = new ArrayList<>();
     for (int i = 0; i < serialNumber; i++) {
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.List;
+import java.util.UUID;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class FileNameIndexTest {
+
+  @Autowired
+  FileNameIndex fileNameIndex;
+
+  @MockBean
+  FirestoreService firestoreService;
+
+  @Before
+  public void clearIndex() {
+    fileNameIndex.clear();
+  }
+
+  @Test
+  public void testSearchRanksAndPaginates() {
+    fileNameIndex.put("other", "my_holiday.png", "1000-other");
+    fileNameIndex.put("word", "Summer Holiday.jpg", "2000-word");
+    fileNameIndex.put("prefix", "holiday-2023.jpg", "3000-prefix");
+    fileNameIndex.put("exact", "HOLIDAY", "500-exact");
+    fileNameIndex.put("none", "birthday.jpg", "4000-none");
+    fileNameIndex.put("newer", "holidays.png", "5000-newer");
+
+    assertThat(fileNameIndex.search("Holiday", null, 10))
+        .containsExactly("exact", "newer", "prefix", "word", "other").inOrder();
+    assertThat(fileNameIndex.search("holiday", null, 2))
+        .containsExactly("exact", "newer").inOrder();
+    assertThat(fileNameIndex.search("holiday", "5000-newer", 2))
+        .containsExactly("prefix", "word").inOrder();
+    assertThat(fileNameIndex.search("holiday", "2000-word", 2)).containsExactly("other");
+    assertThrows(IllegalArgumentException.class, () -> fileNameIndex.search("ho", null, 10));
+  }
+
+  @Test
+  public void testSearchOrdersTiesById() {
+    String low = "00000000-0000-0000-0000-000000000001";
+    String high = "ffffffff-0000-0000-0000-000000000000";
+    fileNameIndex.put(low, "notes.txt", "1000-" + low);
+    fileNameIndex.put(high, "notes.txt", "1000-" + high);
+
+    assertThat(fileNameIndex.search("notes", null, 10)).containsExactly(high, low).inOrder();
+    assertThat(fileNameIndex.search("notes", "1000-" + high, 10)).containsExactly(low);
+  }
+
+  @Test
+  public void testUpdateAndRemove() {
+    String fileId = UUID.randomUUID().toString();
+    fileNameIndex.put(fileId, "report.pdf", "1000-" + fileId);
+    fileNameIndex.put(fileId, "summary.pdf", "1000-" + fileId);
+    assertThat(fileNameIndex.search("report", null, 10)).isEmpty();
+    assertThat(fileNameIndex.search("summary", null, 10)).containsExactly(fileId);
+
+    fileNameIndex.putIfAbsent(fileId, "report.pdf", "1000-" + fileId);
+    assertThat(fileNameIndex.search("summary", null, 10)).containsExactly(fileId);
+
+    fileNameIndex.remove(fileId);
+    fileNameIndex.putIfAbsent(fileId, "summary.pdf", "1000-" + fileId);
+    assertThat(fileNameIndex.search("summary", null, 10)).isEmpty();
+  }
+
+  @Test
+  public void testCompaction() {
+    for (int i = 0; i < 3000; i++) {
+      fileNameIndex.put("file-" + i, "photo-" + i + ".jpg", i + "-file-" + i);
+    }
+    for (int i = 0; i < 2500; i++) {
+      fileNameIndex.remove("file-" + i);
+    }
+    fileNameIndex.compact();
+    assertThat(fileNameIndex.size()).isEqualTo(500);
+    List<String> fileIds = fileNameIndex.search("photo-299", null, 100);
+    assertThat(fileIds).hasSize(10);
+    assertThat(fileIds.get(0)).isEqualTo("file-2999");
+    assertThat(fileNameIndex.search("photo-1", null, 100)).isEmpty();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class FileReplicaTest {
+
+  @Autowired
+  FileReplica fileReplica;
+
+  @MockBean
+  FirestoreService firestoreService;
+
+  @Test
+  public void testServesPagesAndAppliesChanges() {
+    fileReplica.load(List.of(
+        newFile("a", "1-a", List.of("cat")),
+        newFile("b", "2-b", List.of("dog")),
+        newFile("c", "3-c", List.of("cat", "dog")),
+        newFile("d", "4-d", List.of("bird"))), System.currentTimeMillis());
+    long version = fileReplica.getVersion();
+
+    assertThat(fileReplica.isSynced()).isTrue();
+    assertThat(getIds(List.of(), null, 2)).containsExactly("d", "c").inOrder();
+    assertThat(getIds(List.of("cat", "dog"), null, 10)).containsExactly("c", "b", "a").inOrder();
+    assertThat(getIds(List.of("cat", "dog"), "3-c", 1)).containsExactly("b");
+
+    fileReplica.apply(List.of(newFile("b", "2-b", List.of("bird"))), List.of("c"),
+        System.currentTimeMillis());
+    assertThat(fileReplica.getVersion()).isEqualTo(version + 1);
+    assertThat(getIds(List.of("dog"), null, 10)).isEmpty();
+    assertThat(getIds(List.of("bird"), null, 10)).containsExactly("d", "b").inOrder();
+    assertThat(fileReplica.getFile("c")).isNull();
+
+    fileReplica.getFile("a").setUrl("signed");
+    assertThat(fileReplica.getFile("a").getUrl()).isNull();
+    assertThat(fileReplica.getStats(true).getSize()).isEqualTo(3);
+
+    fileReplica.markUnsynced();
+    assertThat(fileReplica.getStats(true).isSynced()).isFalse();
+  }
+
+  private List<String> getIds(List<String> tags, String orderNo, int size) {
+    return fileReplica.getFilesByTag(tags, orderNo, size).stream()
+        .map(BaseFile::getId)
+        .collect(Collectors.toList());
+  }
+
+  private static BaseFile newFile(String id, String orderNo, List<String> tags) {
+    BaseFile file = new BaseFile();
+    file.setId(id);
+    file.setOrderNo(orderNo);
+    file.setTags(tags);
+    return file;
+  }
+}
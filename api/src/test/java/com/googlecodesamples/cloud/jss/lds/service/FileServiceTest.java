@@ -16,8 +16,13 @@
 
 package com.googlecodesamples.cloud.jss.lds.service;
 
+import com.google.cloud.Timestamp;
 import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
 import com.googlecodesamples.cloud.jss.lds.model.BaseFileTest;
+import com.googlecodesamples.cloud.jss.lds.model.FileDeleteResponse;
+import com.googlecodesamples.cloud.jss.lds.model.FileListResponse;
+import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
+import com.googlecodesamples.cloud.jss.lds.model.ThumbnailState;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -27,17 +32,25 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -66,6 +79,9 @@ public class FileServiceTest {
   @MockBean
   StorageService storageService;
 
+  @MockBean
+  ThumbnailService thumbnailService;
+
   @Before
   public void setUpMockService() throws Exception {
     Resource resource = new ClassPathResource("gcp.jpeg");
@@ -73,37 +89,153 @@ public class FileServiceTest {
     mockFiles = new ArrayList<>();
 
     for (int i = 0; i < LIST_SIZE; i++) {
-      mockMultipartFiles.add(new MockMultipartFile("test-image", resource.getInputStream()));
+      mockMultipartFiles.add(new MockMultipartFile(
+          "files", resource.getFilename(), MediaType.IMAGE_JPEG_VALUE, resource.getInputStream()));
     }
     mockFiles = BaseFileTest.getTestFiles(LIST_SIZE, IS_IMAGE);
 
     // set up mock service responses
     Mockito.when(firestoreService.getFileById(any())).thenReturn(mockFiles.get(0));
     Mockito.when(firestoreService.getFilesByTag(TAGS, ORDER_NUM, LIST_SIZE)).thenReturn(mockFiles);
-    Mockito.doNothing().when(firestoreService).save(any());
-    Mockito.doNothing().when(firestoreService).delete(any());
+    Mockito.when(firestoreService.save(any())).thenReturn(Timestamp.now());
+    Mockito.when(firestoreService.saveAll(any(), any())).thenAnswer(invocation -> {
+      List<?> fileMetas = invocation.getArgument(0);
+      return fileMetas.stream().map(fileMeta -> Timestamp.now()).collect(Collectors.toList());
+    });
     Mockito.doNothing().when(firestoreService).deleteCollection();
 
-    Mockito.doNothing().when(storageService).save(any(), any(), any(), any());
+    Mockito.doNothing().when(storageService).save(any(), any(), any(), any(byte[].class));
+    Mockito.doNothing().when(storageService).save(any(), any(), any(), any(InputStream.class));
     Mockito.doNothing().when(storageService).delete(any(), any());
-    Mockito.doNothing().when(storageService).batchDelete(any());
   }
 
   @Test
-  public void testUploadFiles() throws InterruptedException, ExecutionException, IOException {
-    List<BaseFile> files = fileService.uploadFiles(mockMultipartFiles, TAGS);
+  public void testUploadFiles() throws InterruptedException, ExecutionException {
+    FileListResponse response = fileService.uploadFiles(mockMultipartFiles, TAGS);
+    List<BaseFile> files = response.getFiles();
+    assertThat(response.getErrors()).isEmpty();
     assertThat(files).isNotEmpty();
     assertThat(files.size()).isEqualTo(LIST_SIZE);
     assertThat(files.get(0).checkImageFileType()).isTrue();
     assertThat(files.get(0).getTags()).isEqualTo(TAGS);
+    assertThat(files.get(0).getThumbnailState()).isEqualTo(ThumbnailState.PENDING);
+    assertThat(files.get(0).isThumbnailReady()).isFalse();
+    Mockito.verify(thumbnailService, Mockito.times(LIST_SIZE)).submit(any());
+  }
+
+  @Test
+  public void testUploadFilesReportsFailures()
+      throws InterruptedException, ExecutionException, IOException {
+    Mockito.doThrow(new IOException("storage unavailable"))
+        .when(storageService).save(any(), any(), any(), any(InputStream.class));
+    FileListResponse response = fileService.uploadFiles(mockMultipartFiles, TAGS);
+    assertThat(response.getFiles()).isEmpty();
+    assertThat(response.getErrors().size()).isEqualTo(LIST_SIZE);
+    assertThat(response.getErrors().get(0).getMessage()).contains("storage unavailable");
+  }
+
+  @Test
+  public void testUploadFilesReleasesFailedBatchOnly()
+      throws InterruptedException, ExecutionException {
+    Mockito.doAnswer(invocation -> {
+      List<FileMeta> fileMetas = invocation.getArgument(0);
+      Map<String, String> failures = invocation.getArgument(1);
+      failures.put(fileMetas.get(1).getId(), "batch failed");
+      return Arrays.asList(Timestamp.now(), null);
+    }).when(firestoreService).saveAll(any(), any());
+    FileListResponse response = fileService.uploadFiles(mockMultipartFiles, TAGS);
+    assertThat(response.getFiles().size()).isEqualTo(1);
+    assertThat(response.getErrors().size()).isEqualTo(1);
+    assertThat(response.getErrors().get(0).getMessage()).isEqualTo("batch failed");
+    Mockito.verify(firestoreService, Mockito.times(1)).releaseBlob(any(), any());
+    Mockito.verify(thumbnailService, Mockito.times(1)).submit(any());
+  }
+
+  @Test
+  public void testUploadFilesSkipsStoredContent()
+      throws InterruptedException, ExecutionException, IOException {
+    Mockito.when(firestoreService.acquireBlob(any())).thenReturn(false);
+    Mockito.when(storageService.exists(any(), any())).thenReturn(true);
+    FileListResponse response = fileService.uploadFiles(mockMultipartFiles, TAGS);
+    assertThat(response.getFiles().size()).isEqualTo(LIST_SIZE);
+    assertThat(response.getFiles().get(0).getPath())
+        .isEqualTo(response.getFiles().get(1).getPath());
+    assertThat(response.getFiles().get(0).getThumbnailState()).isEqualTo(ThumbnailState.READY);
+    Mockito.verify(storageService, Mockito.never())
+        .save(any(), any(), any(), any(InputStream.class));
+  }
+
+  @Test
+  public void testDeleteFileDefersContent() throws InterruptedException, ExecutionException {
+    Mockito.when(firestoreService.delete(FILE_ID)).thenReturn(mockFiles.get(0));
+    assertThat(fileService.deleteFile(FILE_ID)).isTrue();
+    Mockito.verify(firestoreService).delete(FILE_ID);
+    Mockito.verify(firestoreService, Mockito.never()).releaseBlob(any(), any());
+    Mockito.verifyNoInteractions(storageService);
+  }
+
+  @Test
+  public void testDeleteFileTwiceReleasesOnce() throws Exception {
+    // the content is released in the same transaction as the delete, which finds no file twice
+    Mockito.when(firestoreService.delete(FILE_ID)).thenReturn(mockFiles.get(0)).thenReturn(null);
+    CompletableFuture<Boolean> first = CompletableFuture.supplyAsync(() -> deleteFile(FILE_ID));
+    CompletableFuture<Boolean> second = CompletableFuture.supplyAsync(() -> deleteFile(FILE_ID));
+    assertThat(List.of(first.get(), second.get())).containsExactly(true, false);
+    Mockito.verify(firestoreService, Mockito.times(2)).delete(FILE_ID);
+    Mockito.verify(firestoreService, Mockito.never()).releaseBlob(any(), any());
+    Mockito.verify(firestoreService, Mockito.never()).releaseBlobAsync(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testDeleteFiles() throws InterruptedException, ExecutionException {
+    List<FileMeta> fileMetas = List.of(
+        new FileMeta("id-1", "resource/shared", "a.png", TAGS, 1),
+        new FileMeta("id-2", "resource/shared", "b.png", TAGS, 1),
+        new FileMeta("id-3", "resource/single", "c.png", TAGS, 1));
+    Mockito.when(firestoreService.getFileMetasByIds(any())).thenReturn(fileMetas);
+    // id-3 was deleted by a concurrent request between the read and the transaction
+    Mockito.when(firestoreService.deleteAll(any())).thenReturn(Map.of("id-3", "file not found"));
+
+    FileDeleteResponse response =
+        fileService.deleteFiles(List.of("id-1", "id-2", "id-3", "unknown-id"));
+    assertThat(response.getDeleted()).containsExactly("id-1", "id-2");
+    assertThat(response.getErrors().size()).isEqualTo(2);
+    assertThat(response.getErrors().get(0).getId()).isEqualTo("unknown-id");
+    assertThat(response.getErrors().get(1).getId()).isEqualTo("id-3");
+    Mockito.verify(firestoreService, Mockito.never()).releaseBlobAsync(any(), any(), anyLong());
+    Mockito.verifyNoInteractions(storageService);
   }
 
   @Test
   public void testUpdateFile() throws InterruptedException, ExecutionException, IOException {
-    BaseFile file = fileService.updateFile(mockMultipartFiles.get(0), TAGS, mockFiles.get(0));
+    BaseFile previous = mockFiles.get(0);
+    Mockito.doAnswer(invocation -> new FirestoreService.FileUpdate(previous,
+        invocation.<Function<BaseFile, FileMeta>>getArgument(1).apply(previous),
+        Timestamp.now()))
+        .when(firestoreService).update(Mockito.eq(previous.getId()), any(), Mockito.eq(true));
+
+    BaseFile file = fileService.updateFile(mockMultipartFiles.get(0), TAGS, previous.getId());
     assertThat(file).isNotNull();
     assertThat(file.checkImageFileType()).isTrue();
     assertThat(file.getTags()).isEqualTo(TAGS);
+    // the old content is released by the update transaction, not from a separate read
+    Mockito.verify(firestoreService, Mockito.never()).releaseBlob(any(), any());
+  }
+
+  @Test
+  public void testUpdateMissingFileReleasesNewContent() throws Exception {
+    Mockito.doReturn(null).when(firestoreService).update(any(), any(), Mockito.eq(true));
+
+    assertThat(fileService.updateFile(mockMultipartFiles.get(0), TAGS, "unknown-id")).isNull();
+    Mockito.verify(firestoreService).releaseBlob(any(), any());
+  }
+
+  private boolean deleteFile(String fileId) {
+    try {
+      return fileService.deleteFile(fileId);
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
   }
 
   @Test
@@ -21,6 +21,8 @@ import static com.google.common.truth.Truth.assertThat;
 import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
 import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -71,6 +73,29 @@ public class FirestoreServiceIT {
     assertThat(testFile).isNull();
   }
 
+  @Test
+  public void testDuplicateDeletesReleaseContentOnce() throws Exception {
+    String otherId = "other-test-id";
+    String contentId = "test-id";
+    firestoreService.acquireBlob(contentId);
+    firestoreService.acquireBlob(contentId);
+    firestoreService.save(createFileMeta());
+    firestoreService.save(
+        new FileMeta(otherId, FILE_META_PATH, FILE_META_NAME, FILE_META_TAGS, FILE_META_SIZE));
+    try {
+      List<CompletableFuture<FileMeta>> deletes = List.of(
+          firestoreService.deleteAsync(FILE_META_ID), firestoreService.deleteAsync(FILE_META_ID));
+      long deleted = deletes.stream().map(CompletableFuture::join).filter(Objects::nonNull).count();
+      assertThat(deleted).isEqualTo(1);
+      assertThat(firestoreService.getReferencedBlobs(List.of(contentId))).contains(contentId);
+
+      assertThat(firestoreService.delete(otherId)).isNotNull();
+      assertThat(firestoreService.getReferencedBlobs(List.of(contentId))).isEmpty();
+    } finally {
+      firestoreService.delete(otherId);
+    }
+  }
+
   @Test
   public void testDeleteCollection() throws InterruptedException, ExecutionException {
     firestoreService.save(createFileMeta());
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.storage.Blob;
+import com.googlecodesamples.cloud.jss.lds.model.PurgeState;
+import com.googlecodesamples.cloud.jss.lds.model.PurgeStatusResponse;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class PurgeServiceTest {
+
+  private static final int BLOB_COUNT = 250;
+
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  @Autowired
+  PurgeService purgeService;
+
+  @MockBean
+  FirestoreService firestoreService;
+
+  @MockBean
+  StorageService storageService;
+
+  @Test
+  public void testPurgeDeletesAllPages() throws Exception {
+    List<Blob> blobs = new ArrayList<>();
+    for (int i = 0; i < BLOB_COUNT; i++) {
+      Blob blob = Mockito.mock(Blob.class);
+      Mockito.when(blob.getName()).thenReturn("resource/blob-" + i);
+      blobs.add(blob);
+    }
+    Page<Blob> lastPage = mockPage(blobs.subList(200, BLOB_COUNT), null);
+    Page<Blob> firstPage = mockPage(blobs.subList(0, 200), lastPage);
+    Mockito.when(storageService.list(any(), anyInt())).thenReturn(firstPage);
+    Mockito.when(storageService.deleteBatch(any(), any()))
+        .thenAnswer(invocation -> ((List<?>) invocation.getArgument(1)).size());
+
+    assertThat(purgeService.start()).isTrue();
+    PurgeStatusResponse status = purgeService.getStatus();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (status.getState() == PurgeState.RUNNING && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      status = purgeService.getStatus();
+    }
+
+    assertThat(status.getState()).isEqualTo(PurgeState.COMPLETED);
+    assertThat(status.getListedObjects()).isEqualTo(BLOB_COUNT);
+    assertThat(status.getDeletedObjects()).isEqualTo(BLOB_COUNT);
+    assertThat(status.isMetadataDeleted()).isTrue();
+    assertThat(status.getEtaSeconds()).isEqualTo(0L);
+    Mockito.verify(storageService, Mockito.times(3)).deleteBatch(any(), any());
+    Mockito.verify(firestoreService).deleteCollection();
+  }
+
+  @SuppressWarnings("unchecked")
+  private Page<Blob> mockPage(List<Blob> blobs, Page<Blob> nextPage) {
+    Page<Blob> page = Mockito.mock(Page.class);
+    Mockito.when(page.getValues()).thenReturn(blobs);
+    Mockito.when(page.getNextPage()).thenReturn(nextPage);
+    return page;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.model.BaseFile;
+import com.googlecodesamples.cloud.jss.lds.model.BaseFileTest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "storage.signed.url.enabled=true")
+public class SignedUrlServiceTest {
+
+  private static final boolean IS_IMAGE = true;
+
+  @Autowired
+  SignedUrlService signedUrlService;
+
+  @MockBean
+  StorageService storageService;
+
+  @Test
+  public void testSignReusesUrls() {
+    AtomicInteger signatures = new AtomicInteger();
+    Mockito.when(storageService.signUrl(anyString(), anyString(), anyLong(), any()))
+        .thenAnswer(invocation -> new URL("https://storage.googleapis.com/"
+            + invocation.getArgument(1) + "?X-Goog-Signature=" + signatures.incrementAndGet()));
+
+    BaseFile unsigned = BaseFileTest.getTestFiles(1, IS_IMAGE).get(0);
+    String unsignedUrl = unsigned.getUrl();
+    BaseFile file = signedUrlService.sign(unsigned);
+    BaseFile sameFile = signedUrlService.sign(BaseFileTest.getTestFiles(1, IS_IMAGE).get(0));
+
+    assertThat(file.getUrl()).startsWith("https://storage.googleapis.com/" + file.getPath());
+    assertThat(file.getThumbUrl()).contains(file.genThumbnailPath());
+    assertThat(sameFile.getUrl()).isEqualTo(file.getUrl());
+    assertThat(sameFile.getThumbUrl()).isEqualTo(file.getThumbUrl());
+    assertThat(signatures.get()).isEqualTo(2);
+    assertThat(file).isNotSameInstanceAs(unsigned);
+    assertThat(unsigned.getUrl()).isEqualTo(unsignedUrl);
+    assertThat(signedUrlService.getSigningWindow()).isGreaterThan(0L);
+  }
+}
@@ -22,6 +22,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import com.google.cloud.storage.BucketInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.testing.RemoteStorageHelper;
+import java.util.List;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -78,7 +79,7 @@ public class StorageServiceIT {
   @Test
   public void testBatchDeleteBlob() {
     storageService.save(BUCKET_NAME, FILE_ID, CONTENT_TYPE, CONTENT);
-    storageService.batchDelete(BUCKET_NAME);
+    storageService.deleteBatch(BUCKET_NAME, List.of(FILE_ID));
     assertThat(storage.get(BUCKET_NAME, FILE_ID)).isNull();
   }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.storage.Blob;
+import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
+import com.googlecodesamples.cloud.jss.lds.model.Tombstone;
+import com.googlecodesamples.cloud.jss.lds.model.UploadSession;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class SweeperServiceTest {
+
+  @Autowired
+  SweeperService sweeperService;
+
+  @MockBean
+  FirestoreService firestoreService;
+
+  @MockBean
+  StorageService storageService;
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testSweepBatch() throws Exception {
+    Tombstone swept = new Tombstone("swept", "resource/swept", 0);
+    Tombstone reused = new Tombstone("reused", "resource/reused", 0);
+    Tombstone failing = new Tombstone("failing", "resource/failing", 0);
+    Mockito.when(firestoreService.getDueTombstones(anyInt()))
+        .thenReturn(List.of(swept, reused, failing));
+    Mockito.when(storageService.getGenerations(any(), any())).thenReturn(Map.of(
+        "resource/swept", 1L, "resource/swept_small", 2L,
+        "resource/reused", 3L, "resource/failing", 4L));
+    Page<Blob> noDerivatives = Mockito.mock(Page.class);
+    Mockito.when(noDerivatives.iterateAll()).thenReturn(List.of());
+    Mockito.when(storageService.list(any(), any(), anyInt(), any())).thenReturn(noDerivatives);
+    Page<Blob> sweptDerivatives = Mockito.mock(Page.class);
+    Blob sweptDerivative = mockBlob("resource/swept_small_320x0_contain", 0);
+    Mockito.when(sweptDerivative.getGeneration()).thenReturn(5L);
+    Mockito.when(sweptDerivatives.iterateAll()).thenReturn(List.of(sweptDerivative));
+    Mockito.when(storageService.list(any(), Mockito.eq("resource/swept_small_"), anyInt(), any()))
+        .thenReturn(sweptDerivatives);
+    Page<Blob> reusedDerivatives = Mockito.mock(Page.class);
+    Blob reusedDerivative = mockBlob("resource/reused_small_320x0_contain", 0);
+    Mockito.when(reusedDerivatives.iterateAll()).thenReturn(List.of(reusedDerivative));
+    Mockito.when(storageService.list(any(), Mockito.eq("resource/reused_small_"), anyInt(), any()))
+        .thenReturn(reusedDerivatives);
+    Mockito.when(firestoreService.getReferencedBlobs(any())).thenReturn(Set.of("reused"));
+    Mockito.when(storageService.deleteGenerations(any(), any()))
+        .thenReturn(Set.of("resource/failing"));
+
+    assertThat(sweeperService.sweepBatch()).isEqualTo(3);
+    Mockito.verify(storageService).deleteGenerations(any(), Mockito.eq(Map.of(
+        "resource/swept", 1L, "resource/swept_small", 2L,
+        "resource/swept_small_320x0_contain", 5L, "resource/failing", 4L)));
+    Mockito.verify(firestoreService).deleteTombstones(List.of("swept", "reused"));
+    Mockito.verify(firestoreService).retryTombstones(List.of(failing));
+    assertThat(failing.getAttempts()).isEqualTo(1);
+    assertThat(failing.getNextAttempt()).isGreaterThan(System.currentTimeMillis());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testSweepOrphans() throws Exception {
+    long old = System.currentTimeMillis() - 24 * 3600 * 1000L;
+    List<Blob> blobs = List.of(
+        mockBlob("/resource/kept", old), mockBlob("/resource/kept_small", old),
+        mockBlob("/resource/orphan_small", old),
+        mockBlob("/resource/orphan_small_320x0_contain", old),
+        mockBlob("/resource/recent_small", System.currentTimeMillis()));
+    Page<Blob> page = Mockito.mock(Page.class);
+    Mockito.when(page.getValues()).thenReturn(blobs);
+    Mockito.when(storageService.list(any(), any(), anyInt(), any())).thenReturn(page);
+    Mockito.when(firestoreService.getReferencedBlobs(any())).thenReturn(Set.of());
+    Mockito.when(firestoreService.getPathsInUse(any())).thenReturn(Set.of("/resource/kept"));
+
+    sweeperService.sweepOrphans();
+    Mockito.verify(storageService).deleteGenerations(any(), Mockito.eq(Map.of(
+        "/resource/orphan_small", 1L, "/resource/orphan_small_320x0_contain", 1L)));
+  }
+
+  @Test
+  public void testSweepExpiredUploads() throws Exception {
+    UploadSession abandoned = new UploadSession(
+        "abandoned", "https://upload/abandoned", "resource/abandoned", "a.bin", 10);
+    UploadSession completed = new UploadSession(
+        "completed", "https://upload/completed", "resource/completed", "c.bin", 10);
+    Mockito.when(firestoreService.getUploadSessionsBefore(Mockito.anyLong(), anyInt()))
+        .thenReturn(List.of(abandoned, completed));
+    Mockito.when(firestoreService.getFileMetasByIds(List.of("abandoned", "completed")))
+        .thenReturn(List.of(new FileMeta("completed", "resource/completed", "c.bin", null, 10)));
+
+    assertThat(sweeperService.sweepUploadBatch()).isEqualTo(2);
+    Mockito.verify(storageService).cancelUploadSession("https://upload/abandoned");
+    Mockito.verify(storageService).delete(any(), Mockito.eq("resource/abandoned"));
+    Mockito.verify(storageService, Mockito.never())
+        .cancelUploadSession("https://upload/completed");
+    Mockito.verify(storageService, Mockito.never()).delete(any(), Mockito.eq("resource/completed"));
+    Mockito.verify(firestoreService).deleteUploadSession("abandoned");
+    Mockito.verify(firestoreService).deleteUploadSession("completed");
+  }
+
+  private Blob mockBlob(String name, long updateTime) {
+    Blob blob = Mockito.mock(Blob.class);
+    Mockito.when(blob.getName()).thenReturn(name);
+    Mockito.when(blob.getGeneration()).thenReturn(1L);
+    Mockito.when(blob.getUpdateTimeOffsetDateTime())
+        .thenReturn(Instant.ofEpochMilli(updateTime).atOffset(ZoneOffset.UTC));
+    return blob;
+  }
+}
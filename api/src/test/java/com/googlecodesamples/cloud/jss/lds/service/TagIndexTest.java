@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class TagIndexTest {
+
+  @Test
+  public void testPostingIdSpreadsOrderNumbers() {
+    String first = TagIndex.getPostingId("1680000000000-a");
+    String second = TagIndex.getPostingId("1680000000001-b");
+
+    assertThat(first).endsWith("-1680000000000-a");
+    assertThat(second).endsWith("-1680000000001-b");
+    assertThat(first.substring(0, 8)).isNotEqualTo(second.substring(0, 8));
+    assertThat(TagIndex.getPostingId("1680000000000-a")).isEqualTo(first);
+  }
+
+  @Test
+  public void testWriteNewFile() {
+    FileMeta fileMeta = getFileMeta("1000-a", List.of("red", "blue", "red"));
+
+    assertThat(TagIndex.getRemovedPostings(null, fileMeta)).isEmpty();
+    assertThat(TagIndex.getAddedPostings(null, fileMeta))
+        .containsExactly("red", "1000-a", "blue", "1000-a");
+  }
+
+  @Test
+  public void testWriteRetaggedFile() {
+    FileMeta oldMeta = getFileMeta("1000-a", List.of("red", "blue"));
+    FileMeta newMeta = getFileMeta("1000-a", List.of("blue", "green"));
+
+    assertThat(TagIndex.getRemovedPostings(oldMeta, newMeta)).containsExactly("red", "1000-a");
+    assertThat(TagIndex.getAddedPostings(oldMeta, newMeta)).containsExactly("green", "1000-a");
+  }
+
+  @Test
+  public void testWriteReorderedFile() {
+    FileMeta oldMeta = getFileMeta("1000-a", List.of("red"));
+    FileMeta newMeta = getFileMeta("2000-a", List.of("red"));
+
+    assertThat(TagIndex.getRemovedPostings(oldMeta, newMeta)).containsExactly("red", "1000-a");
+    assertThat(TagIndex.getAddedPostings(oldMeta, newMeta)).containsExactly("red", "2000-a");
+  }
+
+  @Test
+  public void testDeleteFile() {
+    FileMeta fileMeta = getFileMeta("1000-a", List.of("red", "blue"));
+
+    assertThat(TagIndex.getRemovedPostings(fileMeta, null))
+        .containsExactly("red", "1000-a", "blue", "1000-a");
+    assertThat(TagIndex.getAddedPostings(fileMeta, null)).isEmpty();
+  }
+
+  @Test
+  public void testFileWithoutOrderNumberIsNotIndexed() {
+    FileMeta fileMeta = getFileMeta(null, List.of("red"));
+
+    assertThat(TagIndex.getPostingKeys(fileMeta)).isEqualTo(Map.of());
+    assertThat(TagIndex.getAddedPostings(null, fileMeta)).isEmpty();
+  }
+
+  @Test
+  public void testDeltasOfNewFile() {
+    FileMeta fileMeta = getFileMeta("1000-a", List.of("red", "blue", "red"));
+
+    assertThat(getCounts(TagIndex.getTagDeltas(null, fileMeta)))
+        .containsExactly("red", List.of(1L, 10L), "blue", List.of(1L, 10L));
+  }
+
+  @Test
+  public void testDeltasOfRetaggedFile() {
+    FileMeta oldMeta = getFileMeta("1000-a", List.of("red", "blue"));
+    FileMeta newMeta = getFileMeta("1000-a", List.of("blue", "green"));
+
+    assertThat(getCounts(TagIndex.getTagDeltas(oldMeta, newMeta)))
+        .containsExactly("red", List.of(-1L, -10L), "green", List.of(1L, 10L));
+  }
+
+  @Test
+  public void testDeltasOfDeletedFile() {
+    FileMeta fileMeta = getFileMeta("1000-a", List.of("red"));
+
+    assertThat(getCounts(TagIndex.getTagDeltas(fileMeta, null)))
+        .containsExactly("red", List.of(-1L, -10L));
+  }
+
+  @Test
+  public void testDeltasOfResizedFile() {
+    FileMeta oldMeta = getFileMeta("1000-a", List.of("red", "blue"));
+    FileMeta newMeta = getFileMeta("2000-a", List.of("red"));
+    newMeta.setSize(25);
+
+    assertThat(getCounts(TagIndex.getTagDeltas(oldMeta, newMeta)))
+        .containsExactly("red", List.of(0L, 15L), "blue", List.of(-1L, -10L));
+    assertThat(TagIndex.getTagDeltas(oldMeta, oldMeta)).isEmpty();
+  }
+
+  private Map<String, List<Long>> getCounts(Map<String, TagIndex.TagDelta> deltas) {
+    Map<String, List<Long>> counts = new HashMap<>();
+    deltas.forEach((tag, delta) -> counts.put(tag, List.of(delta.getCount(), delta.getBytes())));
+    return counts;
+  }
+
+  private FileMeta getFileMeta(String orderNo, List<String> tags) {
+    FileMeta fileMeta = new FileMeta("a", "resource/a", "a.png", tags, 10);
+    fileMeta.setOrderNo(orderNo);
+    return fileMeta;
+  }
+}
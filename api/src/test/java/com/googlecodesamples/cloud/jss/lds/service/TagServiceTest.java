@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.model.TagListResponse;
+import com.googlecodesamples.cloud.jss.lds.model.TagStats;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class TagServiceTest {
+
+  @Autowired
+  TagService tagService;
+
+  @MockBean
+  FirestoreService firestoreService;
+
+  @Test
+  public void testGetTagsServesRollup() throws Exception {
+    Mockito.when(firestoreService.getTagStats())
+        .thenReturn(List.of(new TagStats("cat", 2, 300)))
+        .thenReturn(List.of(new TagStats("cat", 3, 400)));
+
+    TagListResponse first = tagService.getTags();
+    assertThat(first.getTags().get(0).getCount()).isEqualTo(2);
+    assertThat(tagService.getTags()).isSameInstanceAs(first);
+    Mockito.verify(firestoreService, Mockito.times(1)).getTagStats();
+
+    tagService.refreshRollup();
+    assertThat(tagService.getTags().getTags().get(0).getBytes()).isEqualTo(400);
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.model.ThumbnailCacheStatsResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "thumbnail.cache.disk.enabled=true")
+public class ThumbnailCacheTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Autowired
+  ThumbnailCache thumbnailCache;
+
+  @MockBean
+  FirestoreService firestoreService;
+
+  @MockBean
+  StorageService storageService;
+
+  @Test
+  public void testServesFromTiers() {
+    byte[] small = new byte[100];
+    byte[] large = new byte[100 * 1024];
+    Mockito.when(storageService.readAllBytes(any(), Mockito.eq("small_small"))).thenReturn(small);
+    Mockito.when(storageService.readAllBytes(any(), Mockito.eq("large_small"))).thenReturn(large);
+    ThumbnailCacheStatsResponse before = thumbnailCache.getStats();
+
+    assertThat(thumbnailCache.get("small_small")).isEqualTo(small);
+    assertThat(thumbnailCache.get("small_small")).isEqualTo(small);
+    assertThat(thumbnailCache.get("large_small")).isEqualTo(large);
+    assertThat(thumbnailCache.get("large_small")).isEqualTo(large);
+    thumbnailCache.invalidate("small_small");
+    assertThat(thumbnailCache.get("small_small")).isEqualTo(small);
+
+    ThumbnailCacheStatsResponse after = thumbnailCache.getStats();
+    assertThat(after.getStorageReadCount() - before.getStorageReadCount()).isEqualTo(3);
+    assertThat(after.getMemoryHitCount() - before.getMemoryHitCount()).isEqualTo(1);
+    assertThat(after.getDiskHitCount() - before.getDiskHitCount()).isEqualTo(1);
+    assertThat(after.getDiskBytes()).isAtLeast(small.length + large.length);
+  }
+
+  @Test
+  public void testCoalescesConcurrentMisses() throws Exception {
+    byte[] bytes = new byte[100];
+    CountDownLatch reading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Mockito.when(storageService.readAllBytes(any(), Mockito.eq("shared_small")))
+        .thenAnswer(invocation -> {
+          reading.countDown();
+          release.await();
+          return bytes;
+        });
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<byte[]>> results = new ArrayList<>();
+      results.add(executor.submit(() -> thumbnailCache.get("shared_small")));
+      reading.await();
+      for (int i = 0; i < 3; i++) {
+        results.add(executor.submit(() -> thumbnailCache.get("shared_small")));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      for (Future<byte[]> result : results) {
+        assertThat(result.get()).isEqualTo(bytes);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Mockito.verify(storageService).readAllBytes(any(), Mockito.eq("shared_small"));
+  }
+
+  @Test
+  public void testDiskTierEvictsOldestSegment() throws Exception {
+    try (SegmentedDiskCache diskCache =
+        new SegmentedDiskCache(temporaryFolder.getRoot().toPath(), 2, 10)) {
+      diskCache.put("a", new byte[] {1, 2, 3, 4, 5, 6});
+      diskCache.put("b", new byte[] {7, 8, 9, 10, 11, 12});
+      diskCache.put("c", new byte[] {13, 14, 15});
+      assertThat(diskCache.get("a")).isEqualTo(new byte[] {1, 2, 3, 4, 5, 6});
+
+      diskCache.put("d", new byte[] {16, 17, 18, 19, 20});
+      assertThat(diskCache.get("a")).isNull();
+      assertThat(diskCache.get("b")).isEqualTo(new byte[] {7, 8, 9, 10, 11, 12});
+      assertThat(diskCache.get("d")).isEqualTo(new byte[] {16, 17, 18, 19, 20});
+      assertThat(diskCache.getBytes()).isEqualTo(14);
+
+      diskCache.put("e", new byte[11]);
+      assertThat(diskCache.get("e")).isNull();
+      assertThat(diskCache.size()).isEqualTo(3);
+    }
+  }
+}
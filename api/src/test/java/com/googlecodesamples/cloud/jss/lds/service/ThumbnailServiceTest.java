@@ -0,0 +1,73 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.service;
+
+import com.googlecodesamples.cloud.jss.lds.model.FileMeta;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class ThumbnailServiceTest {
+
+  private static final FileMeta IMAGE =
+      new FileMeta("test-id", "resource/test", "test.png", List.of("test-tag"), 1);
+
+  @Autowired
+  ThumbnailService thumbnailService;
+
+  @MockBean
+  FirestoreService firestoreService;
+
+  @MockBean
+  StorageService storageService;
+
+  @Before
+  public void setUpMockService() {
+    Mockito.when(storageService.exists(any(), any())).thenReturn(true);
+  }
+
+  @Test
+  public void testDerivativeSnapsWidthAndAspectRatio() throws IOException {
+    assertThat(thumbnailService.getOrCreateDerivative(IMAGE, 300, 170, "cover"))
+        .isEqualTo(IMAGE.genDerivativePath(320, 180, "cover"));
+    assertThat(thumbnailService.getOrCreateDerivative(IMAGE, 100, 100, "contain"))
+        .isEqualTo(IMAGE.genDerivativePath(160, 160, "contain"));
+    assertThat(thumbnailService.getOrCreateDerivative(IMAGE, 5000, null, "contain"))
+        .isEqualTo(IMAGE.genDerivativePath(1920, 0, "contain"));
+  }
+
+  @Test
+  public void testDerivativeClampsAspectRatio() throws IOException {
+    assertThat(thumbnailService.getOrCreateDerivative(IMAGE, 1, 1000000, "fill"))
+        .isEqualTo(IMAGE.genDerivativePath(160, 480, "fill"));
+    assertThat(thumbnailService.getOrCreateDerivative(IMAGE, 1000000, 1, "fill"))
+        .isEqualTo(IMAGE.genDerivativePath(1920, 640, "fill"));
+  }
+}
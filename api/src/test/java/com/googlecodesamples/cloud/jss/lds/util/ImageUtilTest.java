@@ -0,0 +1,67 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecodesamples.cloud.jss.lds.util;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Unit test for ImageUtil class
+ */
+public class ImageUtilTest {
+  private static final String TEST_IMAGE = "gcp.jpeg";
+
+  @Test
+  public void testGetSubsampling() {
+    assertThat(ImageUtil.getSubsampling(12000, 9000, 300, 300)).isEqualTo(30);
+    assertThat(ImageUtil.getSubsampling(12000, 9000, 640, 0)).isEqualTo(18);
+    assertThat(ImageUtil.getSubsampling(200, 100, 300, 300)).isEqualTo(1);
+    assertThat(ImageUtil.getSubsampling(200, 100, 0, 0)).isEqualTo(1);
+  }
+
+  @Test
+  public void testReadSubsampled() throws Exception {
+    BufferedImage original;
+    try (InputStream content = new ClassPathResource(TEST_IMAGE).getInputStream()) {
+      original = ImageIO.read(content);
+    }
+    int width = original.getWidth() / 4;
+    int height = original.getHeight() / 4;
+
+    BufferedImage image;
+    try (InputStream content = new ClassPathResource(TEST_IMAGE).getInputStream()) {
+      image = ImageUtil.readSubsampled(content, width, height, Long.MAX_VALUE);
+    }
+    assertThat(image.getWidth()).isAtLeast(width);
+    assertThat(image.getHeight()).isAtLeast(height);
+    assertThat(image.getWidth()).isLessThan(original.getWidth() / 2);
+  }
+
+  @Test
+  public void testReadSubsampledRejectsLargeImages() throws Exception {
+    try (InputStream content = new ClassPathResource(TEST_IMAGE).getInputStream()) {
+      assertThrows(IllegalArgumentException.class,
+          () -> ImageUtil.readSubsampled(content, 300, 300, 1));
+    }
+  }
+}
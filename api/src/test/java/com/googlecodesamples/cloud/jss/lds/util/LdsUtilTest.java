@@ -16,6 +16,10 @@
 
 package com.googlecodesamples.cloud.jss.lds.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import org.junit.Test;
 
 import static com.google.common.truth.Truth.assertThat;
@@ -66,4 +70,51 @@ public class LdsUtilTest {
     String uuid = LdsUtil.generateUuid();
     assertThat(uuid.length()).isEqualTo(36);
   }
+
+  @Test
+  public void testGenerateETag() {
+    String etag = LdsUtil.generateETag("test-id@1");
+    assertThat(etag).startsWith("\"");
+    assertThat(etag).endsWith("\"");
+    assertThat(etag).isEqualTo(LdsUtil.generateETag("test-id@1"));
+    assertThat(etag).isNotEqualTo(LdsUtil.generateETag("test-id@2"));
+  }
+
+  @Test
+  public void testMatchETag() {
+    String etag = "\"abc\"";
+    assertThat(LdsUtil.matchETag("\"abc\"", etag)).isTrue();
+    assertThat(LdsUtil.matchETag("W/\"abc\"", etag)).isTrue();
+    assertThat(LdsUtil.matchETag("\"xyz\", \"abc\"", etag)).isTrue();
+    assertThat(LdsUtil.matchETag("*", etag)).isTrue();
+    assertThat(LdsUtil.matchETag("\"xyz\"", etag)).isFalse();
+    assertThat(LdsUtil.matchETag(null, etag)).isFalse();
+    assertThat(LdsUtil.matchETag("\"abc\"", null)).isFalse();
+  }
+
+  @Test
+  public void testMatchIfRange() {
+    assertThat(LdsUtil.matchIfRange(null, "\"1\"", 0)).isTrue();
+    assertThat(LdsUtil.matchIfRange("\"1\"", "\"1\"", 0)).isTrue();
+    assertThat(LdsUtil.matchIfRange("\"2\"", "\"1\"", 0)).isFalse();
+    assertThat(LdsUtil.matchIfRange("W/\"1\"", "\"1\"", 0)).isFalse();
+    assertThat(LdsUtil.matchIfRange("Thu, 01 Jan 1970 00:00:01 GMT", "\"1\"", 1500)).isTrue();
+    assertThat(LdsUtil.matchIfRange("Thu, 01 Jan 1970 00:00:00 GMT", "\"1\"", 1500)).isFalse();
+    assertThat(LdsUtil.matchIfRange("not a date", "\"1\"", 0)).isFalse();
+  }
+
+  @Test
+  public void testHashContent() throws IOException {
+    InputStream content = new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8));
+    assertThat(LdsUtil.hashContent(content))
+        .isEqualTo("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+  }
+
+  @Test
+  public void testGetOrderNoTime() {
+    assertThat(LdsUtil.getOrderNoTime("1675000000000-test-id")).isEqualTo(1675000000000L);
+    assertThat(LdsUtil.getOrderNoTime("test-id")).isEqualTo(0);
+    assertThat(LdsUtil.getOrderNoTime("")).isEqualTo(0);
+    assertThat(LdsUtil.getOrderNoTime(null)).isEqualTo(0);
+  }
 }